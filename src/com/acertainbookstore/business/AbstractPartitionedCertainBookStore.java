@@ -0,0 +1,1076 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/** {@link AbstractPartitionedCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities over books hash partitioned by ISBN.
+ *
+ * Every operation names the partitions of the books it reads or changes, and
+ * the subclasses decide how it gets exclusive or shared access to them in
+ * {@link #execute(int[], boolean, Operation)}, e.g. by locking the partitions
+ * or by running the operation on the threads owning them. Operations over the
+ * whole store, e.g. listing all books, name every partition.
+ *
+ * The secondary indexes are shared by all partitions and synchronize
+ * themselves, except for the posting lists of the search index, which are
+ * changed while holding the monitor of the index and searched with access to
+ * every partition.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public abstract class AbstractPartitionedCertainBookStore implements BookStore, StockManager {
+
+	/** The mappings of books from ISBN to {@link BookStoreBook}, by partition. */
+	private final List<NavigableMap<Integer, BookStoreBook>> bookMaps;
+
+	/** The indices of all partitions. */
+	private final int[] allPartitions;
+
+	/** The immutable catalogue entries of the books, read without locking. */
+	private final BookCatalogue catalogue = new BookCatalogue();
+
+	/** The books with sale misses, most demanded first. */
+	private final DemandIndex demandIndex = new DemandIndex();
+
+	/** The inverted index of the titles and authors of the books. */
+	private final BookSearchIndex searchIndex = new BookSearchIndex();
+
+	/** The books in stock, ordered by price. */
+	private final BookRangeIndex<Float, Book> priceIndex = new BookRangeIndex<>(BookStoreBook::getPrice,
+			book -> book.getNumCopies() > 0, BookStoreBook::immutableBook);
+
+	/** The books, ordered by the number of copies. */
+	private final BookRangeIndex<Integer, StockBook> stockIndex = new BookRangeIndex<>(BookStoreBook::getNumCopies,
+			book -> true, BookStoreBook::immutableStockBook);
+
+	/** The copies reserved for checkouts, given back when they expire. */
+	private final Reservations reservations = new Reservations(this::expireReservation);
+
+	/** The customers waiting for copies to be restocked. */
+	private final Backorders backorders = new Backorders();
+
+	/**
+	 * An operation on the books of some partitions.
+	 *
+	 * @param <R>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	protected interface Operation<R> {
+
+		/**
+		 * Runs the operation.
+		 *
+		 * @return the result
+		 * @throws BookStoreException
+		 *             if the operation fails
+		 */
+		R run() throws BookStoreException;
+	}
+
+	/**
+	 * Instantiates a new {@link AbstractPartitionedCertainBookStore}.
+	 *
+	 * @param numPartitions
+	 *            the number of partitions
+	 */
+	protected AbstractPartitionedCertainBookStore(int numPartitions) {
+		if (numPartitions <= 0) {
+			throw new IllegalArgumentException("numPartitions = " + numPartitions + ", but it must be positive");
+		}
+
+		bookMaps = new ArrayList<>(numPartitions);
+		allPartitions = new int[numPartitions];
+
+		for (int i = 0; i < numPartitions; i++) {
+			bookMaps.add(new TreeMap<>());
+			allPartitions[i] = i;
+		}
+	}
+
+	/**
+	 * Runs an operation with access to the partitions. Operations must not run
+	 * other operations.
+	 *
+	 * @param <R>
+	 *            the type of the result
+	 * @param partitionIndices
+	 *            the indices of the partitions, distinct and in ascending order
+	 * @param write
+	 *            whether the operation changes the partitions
+	 * @param operation
+	 *            the operation
+	 * @return the result of the operation
+	 * @throws BookStoreException
+	 *             if the operation fails
+	 */
+	protected abstract <R> R execute(int[] partitionIndices, boolean write, Operation<R> operation)
+			throws BookStoreException;
+
+	/**
+	 * Called by the operations with the books they changed, before the
+	 * indexes are updated.
+	 *
+	 * @param books
+	 *            the books
+	 */
+	protected void booksChanged(Collection<BookStoreBook> books) {
+		// Nothing to do by default.
+	}
+
+	/**
+	 * Called by the operations with the books they removed.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 */
+	protected void booksRemoved(Collection<Integer> isbns) {
+		// Nothing to do by default.
+	}
+
+	/**
+	 * Called by the operation removing all books.
+	 */
+	protected void allBooksRemoved() {
+		// Nothing to do by default.
+	}
+
+	/**
+	 * Stops the threads running the operations, if the store has any, once
+	 * they ran the operations started before. The store must not be used
+	 * afterwards.
+	 */
+	public void close() {
+		// Nothing to do by default.
+	}
+
+	/**
+	 * Gets the number of partitions.
+	 *
+	 * @return the number of partitions
+	 */
+	protected final int getNumPartitions() {
+		return allPartitions.length;
+	}
+
+	/**
+	 * Gets the index of the partition of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the index of the partition
+	 */
+	protected final int partitionIndex(int isbn) {
+		// Mix the high bits into the low ones, as HashMap does.
+		return Math.floorMod(isbn ^ (isbn >>> 16), allPartitions.length);
+	}
+
+	/**
+	 * Runs an operation with access to the partitions of the books.
+	 *
+	 * @param <R>
+	 *            the type of the result
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @param write
+	 *            whether the operation changes the books
+	 * @param operation
+	 *            the operation
+	 * @return the result of the operation
+	 * @throws BookStoreException
+	 *             if the operation fails
+	 */
+	private <R> R execute(Collection<Integer> isbns, boolean write, Operation<R> operation)
+			throws BookStoreException {
+		int[] indices = new int[isbns.size()];
+		int numIndices = 0;
+
+		for (Integer isbn : isbns) {
+			indices[numIndices++] = partitionIndex(isbn);
+		}
+
+		Arrays.sort(indices);
+		int numDistinct = 0;
+
+		for (int i = 0; i < numIndices; i++) {
+			if (i == 0 || indices[i] != indices[i - 1]) {
+				indices[numDistinct++] = indices[i];
+			}
+		}
+
+		return execute(numDistinct == numIndices ? indices : Arrays.copyOf(indices, numDistinct), write,
+				operation);
+	}
+
+	/**
+	 * Runs an operation with access to every partition.
+	 *
+	 * @param <R>
+	 *            the type of the result
+	 * @param write
+	 *            whether the operation changes the books
+	 * @param operation
+	 *            the operation
+	 * @return the result of the operation
+	 * @throws BookStoreException
+	 *             if the operation fails
+	 */
+	private <R> R executeAll(boolean write, Operation<R> operation) throws BookStoreException {
+		return execute(allPartitions, write, operation);
+	}
+
+	/**
+	 * Gets a book from its partition, which the running operation must have
+	 * access to.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the book, or null if it is not in the store
+	 */
+	private BookStoreBook getBook(int isbn) {
+		return bookMaps.get(partitionIndex(isbn)).get(isbn);
+	}
+
+	/**
+	 * Streams the books of every partition, which the running operation must
+	 * have access to.
+	 *
+	 * @return the books
+	 */
+	private Stream<BookStoreBook> allBooks() {
+		return bookMaps.stream().flatMap(bookMap -> bookMap.values().stream());
+	}
+
+	/**
+	 * Gets the ISBNs of the copies of books.
+	 *
+	 * @param bookCopies
+	 *            the book copies
+	 * @return the ISBNs
+	 */
+	private static List<Integer> isbnsOf(Collection<BookCopy> bookCopies) {
+		List<Integer> isbns = new ArrayList<>(bookCopies.size());
+
+		for (BookCopy bookCopy : bookCopies) {
+			isbns.add(bookCopy.getISBN());
+		}
+
+		return isbns;
+	}
+
+	private void validate(StockBook book) throws BookStoreException {
+		int isbn = book.getISBN();
+		String bookTitle = book.getTitle();
+		String bookAuthor = book.getAuthor();
+		int noCopies = book.getNumCopies();
+		float bookPrice = book.getPrice();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookTitle)) { // Check if the book has valid title
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isEmpty(bookAuthor)) { // Check if the book has valid author
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (BookStoreUtility.isInvalidNoCopies(noCopies)) { // Check if the book has at least one copy
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (bookPrice < 0.0) { // Check if the price of the book is valid
+			throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
+		}
+
+		if (getBook(isbn) != null) {// Check if the book is not in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.DUPLICATED);
+		}
+	}
+
+	private void validate(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+		int numCopies = bookCopy.getNumCopies();
+
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) { // Check if the number of the book copy is larger than zero
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validate(BookEditorPick editorPickArg) throws BookStoreException {
+		int isbn = editorPickArg.getISBN();
+		validateISBNInStock(isbn); // Check if the book has valid ISBN and in stock
+	}
+
+	private void validate(BookRating bookRating) throws BookStoreException {
+		int rating = bookRating.getRating();
+		validateISBNInStock(bookRating.getISBN()); // Check if the book has valid ISBN and in stock
+
+		if (BookStoreUtility.isInvalidRating(rating)) { // Check if the rating is between 0 and 5
+			throw new BookStoreException(BookStoreConstants.RATING + rating + BookStoreConstants.INVALID);
+		}
+	}
+
+	private void validateISBNInStock(Integer ISBN) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(ISBN)) { // Check if the book has valid ISBN
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+		}
+		if (getBook(ISBN) == null) {// Check if the book is in stock
+			throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addBooks(java.util.Set)
+	 */
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(bookSet.stream().map(StockBook::getISBN).collect(Collectors.toList()), true, () -> {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				validate(book);
+			}
+
+			List<BookStoreBook> addedBooks = new ArrayList<>();
+
+			for (StockBook book : bookSet) {
+				int isbn = book.getISBN();
+				BookStoreBook addedBook = new BookStoreBook(book);
+				bookMaps.get(partitionIndex(isbn)).put(isbn, addedBook);
+				addedBooks.add(addedBook);
+			}
+
+			catalogue.addBooks(addedBooks);
+
+			synchronized (searchIndex) {
+				searchIndex.addBooks(addedBooks);
+			}
+
+			booksChanged(addedBooks);
+			demandIndex.update(addedBooks);
+			stockIndex.update(addedBooks);
+			priceIndex.update(addedBooks);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopies(java.util.Set)
+	 */
+	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(isbnsOf(bookCopiesSet), true, () -> {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				validate(bookCopy);
+			}
+
+			List<BookStoreBook> updatedBooks = new ArrayList<>();
+
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				BookStoreBook book = getBook(bookCopy.getISBN());
+				book.addCopies(bookCopy.getNumCopies());
+				updatedBooks.add(book);
+			}
+
+			// Adding copies resets the sale misses.
+			booksChanged(updatedBooks);
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
+			priceIndex.update(updatedBooks);
+			return null;
+		});
+
+		serveBackorders(bookCopiesSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	public List<StockBook> getBooks() throws BookStoreException {
+		return executeAll(false, () -> allBooks()
+				.map(book -> book.immutableStockBook())
+				.sorted(Comparator.comparingInt(StockBook::getISBN))
+				.collect(Collectors.toList()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int)
+	 */
+	public List<StockBook> getBooks(int afterISBN, int numBooks) throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		// The page is among the first numBooks books after afterISBN of every
+		// partition.
+		return executeAll(false, () -> bookMaps.stream()
+				.flatMap(bookMap -> bookMap.tailMap(afterISBN, false).values().stream()
+						.limit(numBooks))
+				.sorted(Comparator.comparingInt(BookStoreBook::getISBN))
+				.limit(numBooks)
+				.map(book -> book.immutableStockBook())
+				.collect(Collectors.toList()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicks(java.util
+	 * .Set)
+	 */
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException {
+		// Check that all ISBNs that we add/remove are there first.
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(editorPicks.stream().map(BookEditorPick::getISBN).collect(Collectors.toList()), true, () -> {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				validate(editorPickArg);
+			}
+
+			List<BookStoreBook> updatedBooks = new ArrayList<>();
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				BookStoreBook book = getBook(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				updatedBooks.add(book);
+			}
+
+			booksChanged(updatedBooks);
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#buyBooks(java.util.Set)
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (!buyCopies(bookCopiesToBuy, true)) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/**
+	 * Buys the copies of the books if all of them are in stock.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the book copies to buy
+	 * @param recordSaleMisses
+	 *            whether the missing copies are recorded as sale misses
+	 * @return true, if the copies were bought
+	 * @throws BookStoreException
+	 *             if a book is invalid or not in the store
+	 */
+	private boolean buyCopies(Set<BookCopy> bookCopiesToBuy, boolean recordSaleMisses) throws BookStoreException {
+		return execute(isbnsOf(bookCopiesToBuy), true, () -> {
+			List<BookStoreBook> missedBooks = new ArrayList<>();
+
+			// Check that all ISBNs that we buy are there first.
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				validate(bookCopyToBuy);
+			}
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				BookStoreBook book = getBook(bookCopyToBuy.getISBN());
+
+				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+					// If we cannot sell the copies of the book, it is a miss.
+					if (recordSaleMisses) {
+						book.addSaleMiss(bookCopyToBuy.getNumCopies() - book.getNumCopies());
+					}
+
+					missedBooks.add(book);
+				}
+			}
+
+			if (!missedBooks.isEmpty()) {
+				if (recordSaleMisses) {
+					booksChanged(missedBooks);
+					demandIndex.update(missedBooks);
+					stockIndex.update(missedBooks);
+				}
+
+				return false;
+			}
+
+			// Then make the purchase.
+			List<BookStoreBook> boughtBooks = new ArrayList<>();
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				BookStoreBook book = getBook(bookCopyToBuy.getISBN());
+				book.buyCopies(bookCopyToBuy.getNumCopies());
+				boughtBooks.add(book);
+			}
+
+			booksChanged(boughtBooks);
+			demandIndex.update(boughtBooks);
+			stockIndex.update(boughtBooks);
+			priceIndex.update(boughtBooks);
+			return true;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		if (ttlMillis <= 0) {
+			throw new BookStoreException("ttlMillis = " + ttlMillis + ", but it must be positive");
+		}
+
+		// The books are looked up before their copies are taken, so that the
+		// copies are never given back to a book added after a removal.
+		Map<BookCopy, BookStoreBook> reservedCopies = new HashMap<>();
+
+		if (bookCopiesToReserve != null && !bookCopiesToReserve.contains(null)) {
+			execute(isbnsOf(bookCopiesToReserve), false, () -> {
+				for (BookCopy bookCopy : bookCopiesToReserve) {
+					reservedCopies.put(bookCopy, getBook(bookCopy.getISBN()));
+				}
+
+				return null;
+			});
+		}
+
+		// Reserved copies are taken out of the stock like bought ones, so a
+		// failed reservation counts as sale misses too.
+		buyBooks(bookCopiesToReserve);
+		return reservations.add(reservedCopies, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#commitReservation(long)
+	 */
+	@Override
+	public void commitReservation(long reservationId) throws BookStoreException {
+		if (reservations.remove(reservationId) == null) {
+			throw new BookStoreException(BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		Map<BookCopy, BookStoreBook> bookCopies = reservations.remove(reservationId);
+
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		releaseCopies(bookCopies);
+	}
+
+	/**
+	 * Gives the copies of an expired reservation back to the stock.
+	 *
+	 * @param bookCopies
+	 *            the reserved copies, and the books they were taken from
+	 */
+	private void expireReservation(Map<BookCopy, BookStoreBook> bookCopies) {
+		try {
+			releaseCopies(bookCopies);
+		} catch (BookStoreException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Gives the copies of a released or expired reservation back to the books
+	 * they were taken from, unless these books were removed.
+	 *
+	 * @param bookCopies
+	 *            the reserved copies, and the books they were taken from
+	 * @throws BookStoreException
+	 *             if the copies cannot be given back
+	 */
+	private void releaseCopies(Map<BookCopy, BookStoreBook> bookCopies) throws BookStoreException {
+		execute(isbnsOf(bookCopies.keySet()), true, () -> {
+			List<BookStoreBook> releasedBooks = new ArrayList<>();
+
+			for (Map.Entry<BookCopy, BookStoreBook> entry : bookCopies.entrySet()) {
+				BookStoreBook book = getBook(entry.getKey().getISBN());
+
+				// The book may have been removed while the copies were reserved.
+				if (book != null && book == entry.getValue()) {
+					book.releaseCopies(entry.getKey().getNumCopies());
+					releasedBooks.add(book);
+				}
+			}
+
+			booksChanged(releasedBooks);
+			demandIndex.update(releasedBooks);
+			stockIndex.update(releasedBooks);
+			priceIndex.update(releasedBooks);
+			return null;
+		});
+
+		serveBackorders(bookCopies.keySet());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBooks(java.util.Set,
+	 * boolean, long)
+	 */
+	@Override
+	public CompletableFuture<Boolean> awaitBooks(Set<BookCopy> bookCopies, boolean buy, long timeoutMillis)
+			throws BookStoreException {
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (timeoutMillis <= 0) {
+			throw new BookStoreException("timeoutMillis = " + timeoutMillis + ", but it must be positive");
+		}
+
+		execute(isbnsOf(bookCopies), false, () -> {
+			for (BookCopy bookCopy : bookCopies) {
+				validate(bookCopy);
+			}
+
+			return null;
+		});
+
+		Backorders.Backorder backorder = backorders.add(bookCopies, buy, timeoutMillis);
+
+		// The copies may have been restocked before the backorder was placed.
+		serveBackorders(bookCopies);
+		return backorder.getResult();
+	}
+
+	/**
+	 * Fills the backorders waiting for the restocked books which can be
+	 * filled. Must not be called by an operation.
+	 *
+	 * @param bookCopies
+	 *            the restocked copies
+	 */
+	private void serveBackorders(Set<BookCopy> bookCopies) {
+		// Restocks are frequent and backorders rare, so skip the monitor.
+		if (backorders.isEmpty()) {
+			return;
+		}
+
+		backorders.serve(isbnsOf(bookCopies), this::fillBackorder);
+	}
+
+	/**
+	 * Fills a backorder if its copies are in stock, buying them if asked to.
+	 * Copies bought for a backorder are not sale misses when they are not in
+	 * stock, since the miss was recorded when the customer started waiting.
+	 *
+	 * @param backorder
+	 *            the backorder
+	 * @return true, if the backorder was filled
+	 * @throws BookStoreException
+	 *             if a book was removed
+	 */
+	private boolean fillBackorder(Backorders.Backorder backorder) throws BookStoreException {
+		if (backorder.isBuy()) {
+			return buyCopies(backorder.getBookCopies(), false);
+		}
+
+		return areCopiesInStore(backorder.getBookCopies());
+	}
+
+	/**
+	 * Checks whether all the copies of the books are in stock.
+	 *
+	 * @param bookCopies
+	 *            the book copies
+	 * @return true, if all copies are in stock
+	 * @throws BookStoreException
+	 *             if a book is invalid or not in the store
+	 */
+	private boolean areCopiesInStore(Set<BookCopy> bookCopies) throws BookStoreException {
+		return execute(isbnsOf(bookCopies), false, () -> {
+			for (BookCopy bookCopy : bookCopies) {
+				validate(bookCopy);
+
+				if (!getBook(bookCopy.getISBN()).areCopiesInStore(bookCopy.getNumCopies())) {
+					return false;
+				}
+			}
+
+			return true;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		return execute(isbnSet, false, () -> {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			return isbnSet.stream()
+					.map(isbn -> getBook(isbn).immutableStockBook())
+					.collect(Collectors.toList());
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		// Catalogue entries are immutable, so no access to the partitions is needed.
+		return catalogue.getBooks(isbnSet);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getEditorPicks(int)
+	 */
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		return executeAll(false, () -> {
+			List<BookStoreBook> listAllEditorPicks = allBooks()
+					.filter(BookStoreBook::isEditorPick)
+					.collect(Collectors.toList());
+
+			// Find numBooks random indices of books that will be picked.
+			Random rand = new Random();
+			Set<Integer> tobePicked = new HashSet<>();
+			int rangePicks = listAllEditorPicks.size();
+
+			if (rangePicks <= numBooks) {
+
+				// We need to add all books.
+				for (int i = 0; i < listAllEditorPicks.size(); i++) {
+					tobePicked.add(i);
+				}
+			} else {
+
+				// We need to pick randomly the books that need to be returned.
+				while (tobePicked.size() < numBooks) {
+					tobePicked.add(rand.nextInt(rangePicks));
+				}
+			}
+
+			// Return all the books by the randomly chosen indices.
+			return tobePicked.stream()
+					.map(index -> listAllEditorPicks.get(index).immutableBook())
+					.collect(Collectors.toList());
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#searchBooks(java.lang.String,
+	 * int)
+	 */
+	@Override
+	public List<Book> searchBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// The posting lists are only changed with access to some partition.
+		return executeAll(false, () -> searchIndex.search(query, numBooks).stream()
+				.map(isbn -> getBook(isbn).immutableBook())
+				.collect(Collectors.toList()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#autocompleteBooks(java.lang.
+	 * String, int)
+	 */
+	@Override
+	public List<Book> autocompleteBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		return executeAll(false, () -> searchIndex.complete(query, numBooks, this::getAverageRating).stream()
+				.map(isbn -> getBook(isbn).immutableBook())
+				.collect(Collectors.toList()));
+	}
+
+	/**
+	 * Gets the average rating of the book, by which completions are ranked.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the average rating, or -1 if the book was not rated
+	 */
+	private double getAverageRating(int isbn) {
+		return getBook(isbn).getAverageRating();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// Highest average rating first, and then in order of ISBN.
+		return executeAll(false, () -> allBooks()
+				.filter(book -> book.getNumTimesRated() > 0)
+				.sorted(Comparator.comparingDouble(BookStoreBook::getAverageRating).reversed()
+						.thenComparingInt(BookStoreBook::getISBN))
+				.limit(numBooks)
+				.map(BookStoreBook::immutableBook)
+				.collect(Collectors.toList()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand()
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		// Every change to the index is atomic, so no access to the partitions is needed.
+		return demandIndex.getBooksInDemand();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(int)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		return demandIndex.getBooksInDemand(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooksByPrice(float,
+	 * float, int, int)
+	 */
+	@Override
+	public List<Book> getBooksByPrice(float minPrice, float maxPrice, int afterISBN, int numBooks)
+			throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+		return priceIndex.getBooks(minPrice, maxPrice, afterISBN, numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByNumCopies(int,
+	 * int, int, int)
+	 */
+	@Override
+	public List<StockBook> getBooksByNumCopies(int minCopies, int maxCopies, int afterISBN, int numBooks)
+			throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+		return stockIndex.getBooks(minCopies, maxCopies, afterISBN, numBooks);
+	}
+
+	/**
+	 * Checks the start and size of a page of books.
+	 *
+	 * @param afterISBN
+	 *            the ISBN after which the page starts
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @throws BookStoreException
+	 *             if the ISBN or the number of books is negative
+	 */
+	protected final void validatePage(int afterISBN, int numBooks) throws BookStoreException {
+		if (afterISBN < 0) {
+			throw new BookStoreException(BookStoreConstants.ISBN + afterISBN + BookStoreConstants.INVALID);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(bookRating.stream().map(BookRating::getISBN).collect(Collectors.toList()), true, () -> {
+			for (BookRating bookToRate : bookRating) {
+				validate(bookToRate);
+			}
+
+			List<BookStoreBook> ratedBooks = new ArrayList<>();
+
+			for (BookRating bookToRate : bookRating) {
+				BookStoreBook book = getBook(bookToRate.getISBN());
+				book.addRating(bookToRate.getRating());
+				ratedBooks.add(book);
+			}
+
+			booksChanged(ratedBooks);
+			demandIndex.update(ratedBooks);
+			stockIndex.update(ratedBooks);
+			searchIndex.updateScores(ratedBooks, this::getAverageRating);
+			return null;
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
+	 */
+	public void removeAllBooks() throws BookStoreException {
+		executeAll(true, () -> {
+			for (NavigableMap<Integer, BookStoreBook> bookMap : bookMaps) {
+				bookMap.clear();
+			}
+
+			catalogue.removeAllBooks();
+			allBooksRemoved();
+			demandIndex.clear();
+			priceIndex.clear();
+			stockIndex.clear();
+			reservations.clear();
+			searchIndex.clear();
+			return null;
+		});
+
+		backorders.cancelAll(new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#removeBooks(java.util.Set)
+	 */
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		execute(isbnSet, true, () -> {
+			for (Integer ISBN : isbnSet) {
+				validateISBNInStock(ISBN);
+			}
+
+			List<BookStoreBook> removedBooks = new ArrayList<>();
+
+			for (int isbn : isbnSet) {
+				removedBooks.add(bookMaps.get(partitionIndex(isbn)).remove(isbn));
+			}
+
+			catalogue.removeBooks(isbnSet);
+			booksRemoved(isbnSet);
+			demandIndex.remove(isbnSet);
+			priceIndex.remove(isbnSet);
+			stockIndex.remove(isbnSet);
+
+			synchronized (searchIndex) {
+				searchIndex.removeBooks(removedBooks);
+			}
+
+			return null;
+		});
+
+		backorders.cancel(isbnSet, new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
+	}
+}
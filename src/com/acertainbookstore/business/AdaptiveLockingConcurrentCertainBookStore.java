@@ -0,0 +1,217 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+
+/** {@link AdaptiveLockingConcurrentCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities.
+ *
+ * The store locks like {@link TwoLevelLockingConcurrentCertainBookStore}, but
+ * switches at runtime between locking the books a request reads or changes,
+ * so that customers working on different books do not wait for each other,
+ * and locking only the store, like {@link SingleLockConcurrentCertainBookStore},
+ * so that requests spanning many books, such as bulk loads, take one lock
+ * instead of one per book.
+ *
+ * A request locking more books than the escalation threshold switches to
+ * locking only the store right away. Every interval, the store checks the
+ * locks taken since the last check. It switches to locking only the store
+ * if the requests locked on average more than half the threshold in books
+ * and rarely had to wait for them, since the book locks then cost more than
+ * they save. It switches back to locking the books if requests often had to
+ * wait for the store lock and none of them locked more books than the
+ * threshold, and then stays with the books for a while, so that it does not
+ * switch back and forth under the same load. A switch waits until no request
+ * holds a lock, see {@link LockManager#setCoarse(boolean)}, so the requests
+ * waiting for it look like conflicts, and the check after a switch does not
+ * switch again.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class AdaptiveLockingConcurrentCertainBookStore extends TwoLevelLockingConcurrentCertainBookStore {
+
+	/** The default number of books above which a request escalates. */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 64;
+
+	/** The time between two checks of the locks, in milliseconds. */
+	private static final long ADAPT_INTERVAL_MILLIS = 100;
+
+	/**
+	 * The fraction of the acquisitions of a lock which may wait without the
+	 * requests counting as conflicting.
+	 */
+	private static final double MAX_CONFLICT_RATE = 0.01;
+
+	/**
+	 * The fraction of the escalation threshold above which the book locks of
+	 * the average request count as overhead.
+	 */
+	private static final double MAX_BOOK_LOCKS_FRACTION = 0.5;
+
+	/** The minimum number of requests or acquisitions between two checks to switch. */
+	private static final long MIN_REQUESTS = 16;
+
+	/**
+	 * The number of checks after a switch back to locking the books during
+	 * which the store does not switch to locking only the store for overhead.
+	 */
+	private static final int HOLD_OFF_CHECKS = 50;
+
+	/** The number of books above which a request escalates. */
+	private final int escalationThreshold;
+
+	/** The thread checking the locks periodically. */
+	private final ScheduledExecutorService ticker;
+
+	/** The statistics of the store lock at the last check. */
+	private LockManager.LockStatistics lastStoreStatistics;
+
+	/** The statistics of the book locks at the last check. */
+	private LockManager.LockStatistics lastBookStatistics;
+
+	/** The number of large requests at the last check. */
+	private long lastNumLargeRequests = 0;
+
+	/** The number of requests at the last check. */
+	private long lastNumRequests = 0;
+
+	/** The number of book locks at the last check. */
+	private long lastNumBookLocks = 0;
+
+	/** The number of switches at the last check. */
+	private long lastNumSwitches = 0;
+
+	/** The number of checks left before switching for overhead again. */
+	private int holdOffChecks = 0;
+
+	/**
+	 * Instantiates a new {@link AdaptiveLockingConcurrentCertainBookStore}
+	 * with the default escalation threshold.
+	 */
+	public AdaptiveLockingConcurrentCertainBookStore() {
+		this(DEFAULT_ESCALATION_THRESHOLD);
+	}
+
+	/**
+	 * Instantiates a new {@link AdaptiveLockingConcurrentCertainBookStore}.
+	 *
+	 * @param escalationThreshold
+	 *            the number of books above which a request locks only the
+	 *            store
+	 */
+	public AdaptiveLockingConcurrentCertainBookStore(int escalationThreshold) {
+		this(escalationThreshold, 0, 0);
+	}
+
+	/**
+	 * Instantiates a new {@link AdaptiveLockingConcurrentCertainBookStore}
+	 * which may split the copies of the books into shares and apply ratings
+	 * in batches, like {@link TwoLevelLockingConcurrentCertainBookStore}.
+	 *
+	 * @param escalationThreshold
+	 *            the number of books above which a request locks only the
+	 *            store
+	 * @param numCopyShares
+	 *            the number of shares, or 0 not to split the copies
+	 * @param ratingStalenessMillis
+	 *            the time in milliseconds after which ratings are applied at
+	 *            the latest, or 0 to apply them right away
+	 */
+	public AdaptiveLockingConcurrentCertainBookStore(int escalationThreshold, int numCopyShares,
+			long ratingStalenessMillis) {
+		super(numCopyShares, ratingStalenessMillis, newLockManager(escalationThreshold));
+		this.escalationThreshold = escalationThreshold;
+		lastStoreStatistics = getLockManager().getStoreStatistics();
+		lastBookStatistics = getLockManager().getBookStatistics();
+		ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "lock-granularity");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleWithFixedDelay(this::adapt, ADAPT_INTERVAL_MILLIS, ADAPT_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the lock manager of the store.
+	 *
+	 * @param escalationThreshold
+	 *            the number of books above which a request escalates
+	 * @return the lock manager
+	 */
+	private static LockManager newLockManager(int escalationThreshold) {
+		if (escalationThreshold <= 0) {
+			throw new IllegalArgumentException(
+					"escalationThreshold = " + escalationThreshold + ", but it must be positive");
+		}
+
+		return new LockManager(escalationThreshold);
+	}
+
+	/**
+	 * Switches to locking only the store if the requests since the last check
+	 * locked many books each without waiting for them, and back to locking
+	 * the books if they often waited for the store lock and none of them was
+	 * large.
+	 */
+	public synchronized void adapt() {
+		LockManager lockManager = getLockManager();
+		LockManager.LockStatistics storeStatistics = lockManager.getStoreStatistics();
+		LockManager.LockStatistics bookStatistics = lockManager.getBookStatistics();
+		long numLargeRequests = lockManager.getNumLargeRequests();
+		long numRequests = lockManager.getNumRequests();
+		long numBookLocks = lockManager.getNumBookLocks();
+		long numSwitches = lockManager.getNumSwitches();
+		long acquisitions = storeStatistics.getAcquisitions() - lastStoreStatistics.getAcquisitions();
+		long waits = storeStatistics.getWaits() - lastStoreStatistics.getWaits();
+		// Removing books drops the counters of their locks.
+		long bookAcquisitions = Math.max(0, bookStatistics.getAcquisitions() - lastBookStatistics.getAcquisitions());
+		long bookWaits = Math.max(0, bookStatistics.getWaits() - lastBookStatistics.getWaits());
+		long requests = numRequests - lastNumRequests;
+		long bookLocks = numBookLocks - lastNumBookLocks;
+		boolean sawLargeRequests = numLargeRequests > lastNumLargeRequests;
+		boolean sawSwitches = numSwitches > lastNumSwitches;
+
+		lastStoreStatistics = storeStatistics;
+		lastBookStatistics = bookStatistics;
+		lastNumLargeRequests = numLargeRequests;
+		lastNumRequests = numRequests;
+		lastNumBookLocks = numBookLocks;
+		lastNumSwitches = numSwitches;
+
+		if (holdOffChecks > 0) {
+			holdOffChecks--;
+		}
+
+		// Requests wait for a switch as if they conflicted, so the interval
+		// of a switch tells nothing about the granularity switched to.
+		if (sawSwitches) {
+			return;
+		}
+
+		// Large requests switch to the store lock by themselves.
+		if (lockManager.isCoarse()) {
+			if (!sawLargeRequests && acquisitions >= MIN_REQUESTS && waits > acquisitions * MAX_CONFLICT_RATE) {
+				lockManager.setCoarse(false);
+				holdOffChecks = HOLD_OFF_CHECKS;
+			}
+		} else if (holdOffChecks == 0 && requests >= MIN_REQUESTS
+				&& bookLocks > requests * escalationThreshold * MAX_BOOK_LOCKS_FRACTION
+				&& bookWaits <= bookAcquisitions * MAX_CONFLICT_RATE) {
+			lockManager.setCoarse(true);
+		}
+	}
+
+	/**
+	 * Stops checking the locks. The store keeps its current granularity, and
+	 * only large requests still switch it.
+	 */
+	public void close() {
+		ticker.shutdown();
+	}
+}
@@ -0,0 +1,430 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.TimerWheel;
+
+/**
+ * {@link Backorders} keeps the customers waiting for copies of books which
+ * were not in stock. A waiting customer is only a {@link Backorder} with a
+ * future, not a thread, so any number of customers can wait at once.
+ *
+ * The stores call {@link #serve(Collection, Filler)} with the ISBNs of the
+ * books they restocked, after releasing their locks. The backorders for these
+ * books are then tried in the order they were placed, and those which the
+ * store can fill, i.e. whose copies are in stock or could be bought, complete
+ * their futures with true. Backorders which are not filled within their
+ * timeout complete with false.
+ *
+ * A thread serving backorders claims them under the monitor of this object,
+ * so a backorder is never filled by two threads at once, and fills them after
+ * releasing the monitor, since filling them takes the locks of the store. A
+ * backorder restocked again while it is being filled is tried again by the
+ * thread filling it, and one timing out or cancelled meanwhile is completed
+ * by that thread once it knows whether the backorder was filled. The stores
+ * must never call {@link #serve(Collection, Filler)} while holding their own
+ * locks.
+ */
+public class Backorders {
+
+	/** The duration of a tick of the timer wheel in milliseconds. */
+	private static final long TICK_MILLIS = 10;
+
+	/** The number of buckets of the timer wheel, about five seconds per turn. */
+	private static final int NUM_BUCKETS = 512;
+
+	/** The sequence number of the next backorder. */
+	private final AtomicLong nextSequence = new AtomicLong();
+
+	/** The pending backorders by ISBN, in the order they were placed. */
+	private final Map<Integer, List<Backorder>> backordersByISBN = new HashMap<>();
+
+	/** The number of pending backorders, read without the monitor. */
+	private volatile int numPending = 0;
+
+	/** The timeouts of the backorders. */
+	private final TimerWheel<Backorder> timeouts = new TimerWheel<>(TICK_MILLIS, NUM_BUCKETS);
+
+	/** The thread advancing the timer wheel, started with the first backorder. */
+	private ScheduledExecutorService ticker = null;
+
+	/**
+	 * {@link Filler} fills a backorder in a store.
+	 */
+	@FunctionalInterface
+	public interface Filler {
+
+		/**
+		 * Fills the backorder if the store can.
+		 *
+		 * @param backorder
+		 *            the backorder
+		 * @return true, if the backorder was filled
+		 * @throws BookStoreException
+		 *             if the backorder can never be filled
+		 */
+		boolean fill(Backorder backorder) throws BookStoreException;
+	}
+
+	/**
+	 * Places a backorder.
+	 *
+	 * @param bookCopies
+	 *            the copies waited for
+	 * @param buy
+	 *            whether the copies are bought when they are in stock
+	 * @param timeoutMillis
+	 *            the time to wait in milliseconds
+	 * @return the backorder
+	 */
+	public synchronized Backorder add(Set<BookCopy> bookCopies, boolean buy, long timeoutMillis) {
+		startTicker();
+
+		Backorder backorder = new Backorder(nextSequence.getAndIncrement(), bookCopies, buy);
+
+		for (BookCopy bookCopy : backorder.bookCopies) {
+			backordersByISBN.computeIfAbsent(bookCopy.getISBN(), isbn -> new ArrayList<>()).add(backorder);
+		}
+
+		numPending++;
+		timeouts.schedule(backorder, timeoutMillis);
+		return backorder;
+	}
+
+	/**
+	 * Checks whether no backorders are pending, without waiting for the
+	 * monitor. A backorder placed concurrently may be missed, which is safe
+	 * since the stores serve every backorder once right after placing it.
+	 *
+	 * @return true, if no backorders are pending
+	 */
+	public boolean isEmpty() {
+		return numPending == 0;
+	}
+
+	/**
+	 * Tries to fill the pending backorders for the books, in the order they
+	 * were placed.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @param filler
+	 *            the filler of the backorders
+	 */
+	public void serve(Collection<Integer> isbns, Filler filler) {
+		List<Backorder> claimed = new ArrayList<>();
+
+		synchronized (this) {
+			Set<Backorder> candidates = new LinkedHashSet<>();
+
+			for (Integer isbn : isbns) {
+				List<Backorder> backorders = backordersByISBN.get(isbn);
+
+				if (backorders != null) {
+					candidates.addAll(backorders);
+				}
+			}
+
+			for (Backorder backorder : candidates) {
+				if (backorder.serving) {
+					// The thread filling it tries it again.
+					backorder.restocked = true;
+				} else {
+					backorder.serving = true;
+					claimed.add(backorder);
+				}
+			}
+		}
+
+		claimed.sort(Comparator.comparingLong(backorder -> backorder.sequence));
+
+		while (!claimed.isEmpty()) {
+			Map<Backorder, BookStoreException> filled = new HashMap<>();
+			boolean tried = false;
+
+			try {
+				for (Backorder backorder : claimed) {
+					try {
+						if (filler.fill(backorder)) {
+							filled.put(backorder, null);
+						}
+					} catch (BookStoreException ex) {
+						filled.put(backorder, ex);
+					}
+				}
+
+				tried = true;
+			} finally {
+				claimed = release(claimed, filled, tried);
+			}
+		}
+	}
+
+	/**
+	 * Releases claimed backorders after trying to fill them. Removes and
+	 * completes those which were filled, failed, timed out or were cancelled,
+	 * and claims again those restocked meanwhile.
+	 *
+	 * @param claimed
+	 *            the claimed backorders, in the order they were placed
+	 * @param filled
+	 *            the backorders which were filled, mapped to null, or failed,
+	 *            mapped to their exception
+	 * @param retry
+	 *            whether to claim the restocked backorders again
+	 * @return the backorders claimed again, in the order they were placed
+	 */
+	private List<Backorder> release(List<Backorder> claimed, Map<Backorder, BookStoreException> filled,
+			boolean retry) {
+		List<Backorder> finished = new ArrayList<>();
+		List<Backorder> restocked = new ArrayList<>();
+
+		synchronized (this) {
+			for (Backorder backorder : claimed) {
+				boolean wasRestocked = backorder.restocked;
+				backorder.serving = false;
+				backorder.restocked = false;
+
+				if (filled.containsKey(backorder)) {
+					remove(backorder);
+					finished.add(backorder);
+				} else if (backorder.timedOut || backorder.cancellation != null) {
+					// Already removed, but left to this thread to complete.
+					finished.add(backorder);
+				} else if (wasRestocked && retry) {
+					backorder.serving = true;
+					restocked.add(backorder);
+				}
+			}
+		}
+
+		// Futures are completed outside of the monitor, since completing them
+		// runs the actions of the waiting customers.
+		for (Backorder backorder : finished) {
+			if (filled.containsKey(backorder) && filled.get(backorder) == null) {
+				backorder.result.complete(true);
+			} else if (filled.containsKey(backorder)) {
+				backorder.result.completeExceptionally(filled.get(backorder));
+			} else if (backorder.cancellation != null) {
+				backorder.result.completeExceptionally(backorder.cancellation);
+			} else {
+				backorder.result.complete(false);
+			}
+		}
+
+		return restocked;
+	}
+
+	/**
+	 * Fails the pending backorders for books which were removed.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @param ex
+	 *            the exception the backorders fail with
+	 */
+	public void cancel(Collection<Integer> isbns, BookStoreException ex) {
+		Set<Backorder> cancelled = new LinkedHashSet<>();
+
+		synchronized (this) {
+			for (Integer isbn : isbns) {
+				List<Backorder> backorders = backordersByISBN.get(isbn);
+
+				if (backorders != null) {
+					cancelled.addAll(backorders);
+				}
+			}
+
+			for (Backorder backorder : cancelled) {
+				remove(backorder);
+
+				if (backorder.serving) {
+					// The thread filling it completes it.
+					backorder.cancellation = ex;
+				}
+			}
+
+			cancelled.removeIf(backorder -> backorder.serving);
+		}
+
+		for (Backorder backorder : cancelled) {
+			backorder.result.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Fails all pending backorders.
+	 *
+	 * @param ex
+	 *            the exception the backorders fail with
+	 */
+	public void cancelAll(BookStoreException ex) {
+		List<Integer> isbns;
+
+		synchronized (this) {
+			isbns = new ArrayList<>(backordersByISBN.keySet());
+		}
+
+		cancel(isbns, ex);
+	}
+
+	/**
+	 * Removes a backorder from the pending backorders.
+	 *
+	 * @param backorder
+	 *            the backorder
+	 * @return true, if the backorder was pending
+	 */
+	private boolean remove(Backorder backorder) {
+		boolean pending = false;
+
+		for (BookCopy bookCopy : backorder.bookCopies) {
+			List<Backorder> backorders = backordersByISBN.get(bookCopy.getISBN());
+
+			if (backorders != null && backorders.remove(backorder)) {
+				pending = true;
+
+				if (backorders.isEmpty()) {
+					backordersByISBN.remove(bookCopy.getISBN());
+				}
+			}
+		}
+
+		if (pending) {
+			numPending--;
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Starts the thread advancing the timer wheel, if not yet started.
+	 */
+	private void startTicker() {
+		if (ticker != null) {
+			return;
+		}
+
+		ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "backorder-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleAtFixedRate(this::expire, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Completes the backorders which timed out with false.
+	 */
+	private void expire() {
+		List<Backorder> expired = new ArrayList<>();
+
+		synchronized (this) {
+			for (Backorder backorder : timeouts.expire()) {
+				if (!remove(backorder)) {
+					continue;
+				}
+
+				if (backorder.serving) {
+					// The thread filling it completes it.
+					backorder.timedOut = true;
+				} else {
+					expired.add(backorder);
+				}
+			}
+		}
+
+		for (Backorder backorder : expired) {
+			backorder.result.complete(false);
+		}
+	}
+
+	/**
+	 * A customer waiting for copies of books.
+	 */
+	public static final class Backorder {
+
+		/** The order in which the backorder was placed. */
+		private final long sequence;
+
+		/** The copies waited for. */
+		private final Set<BookCopy> bookCopies;
+
+		/** Whether the copies are bought when they are in stock. */
+		private final boolean buy;
+
+		/** The result, true if filled and false if timed out. */
+		private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+		/**
+		 * Whether a thread claimed the backorder to fill it. This and the
+		 * fields below are guarded by the monitor of the {@link Backorders}.
+		 */
+		private boolean serving = false;
+
+		/** Whether its books were restocked while it was claimed. */
+		private boolean restocked = false;
+
+		/** Whether it timed out while it was claimed. */
+		private boolean timedOut = false;
+
+		/** The exception it was cancelled with while it was claimed, or null. */
+		private BookStoreException cancellation = null;
+
+		/**
+		 * Instantiates a new backorder.
+		 *
+		 * @param sequence
+		 *            the order in which the backorder was placed
+		 * @param bookCopies
+		 *            the copies waited for
+		 * @param buy
+		 *            whether the copies are bought when they are in stock
+		 */
+		private Backorder(long sequence, Set<BookCopy> bookCopies, boolean buy) {
+			this.sequence = sequence;
+			this.bookCopies = new LinkedHashSet<>(bookCopies);
+			this.buy = buy;
+		}
+
+		/**
+		 * Gets the copies waited for.
+		 *
+		 * @return the copies
+		 */
+		public Set<BookCopy> getBookCopies() {
+			return bookCopies;
+		}
+
+		/**
+		 * Checks whether the copies are bought when they are in stock.
+		 *
+		 * @return true, if the copies are bought
+		 */
+		public boolean isBuy() {
+			return buy;
+		}
+
+		/**
+		 * Gets the result of the backorder.
+		 *
+		 * @return the result, true if filled and false if timed out
+		 */
+		public CompletableFuture<Boolean> getResult() {
+			return result;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookCatalogue} holds the immutable part of every book in the store,
+ * i.e. the ISBN, title, author and price, separately from the mutable
+ * inventory counters kept in {@link BookStoreBook}.
+ *
+ * Since catalogue entries never change while a book is in the store, customers
+ * can read them without any locking: the catalogue is only changed by the
+ * stores while they hold their exclusive locks for adding and removing books,
+ * and reads only check the membership of every ISBN against a concurrent map.
+ * A read that runs concurrently with the removal of several books may observe
+ * some of them removed and others not yet.
+ */
+public class BookCatalogue {
+
+	/** The catalogue entry of every book in the store. */
+	private final ConcurrentHashMap<Integer, ImmutableBook> books = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds the books to the catalogue.
+	 *
+	 * @param bookStoreBooks
+	 *            the books
+	 */
+	public void addBooks(Collection<BookStoreBook> bookStoreBooks) {
+		for (BookStoreBook book : bookStoreBooks) {
+			books.put(book.getISBN(), book.immutableBook());
+		}
+	}
+
+	/**
+	 * Removes the books from the catalogue.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs of the books
+	 */
+	public void removeBooks(Collection<Integer> isbnSet) {
+		for (Integer isbn : isbnSet) {
+			books.remove(isbn);
+		}
+	}
+
+	/**
+	 * Removes all books from the catalogue.
+	 */
+	public void removeAllBooks() {
+		books.clear();
+	}
+
+	/**
+	 * Gets the catalogue entries of the books.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs of the books
+	 * @return the books
+	 * @throws BookStoreException
+	 *             if an ISBN is invalid or not in the catalogue
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Book> result = new ArrayList<>(isbnSet.size());
+
+		for (Integer ISBN : isbnSet) {
+			if (BookStoreUtility.isInvalidISBN(ISBN)) {
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+			}
+
+			ImmutableBook book = books.get(ISBN);
+
+			if (book == null) {
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			result.add(book);
+		}
+
+		return result;
+	}
+}
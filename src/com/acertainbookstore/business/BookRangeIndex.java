@@ -0,0 +1,199 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * {@link BookRangeIndex} keeps a view of the books ordered by a value, e.g. the
+ * price or the number of copies, and then by ISBN, so that the books with a
+ * value in a range are found in time proportional to the number of books
+ * returned instead of the size of the store.
+ *
+ * Like {@link DemandIndex}, the stores must pass every book they change to
+ * {@link #update(Collection)} while they hold the locks of the books. Books
+ * which do not satisfy the filter of the index, e.g. books out of stock, are
+ * left out of it.
+ *
+ * @param <K>
+ *            the type of the value
+ * @param <T>
+ *            the type of the views of the books
+ */
+public class BookRangeIndex<K extends Comparable<K>, T extends Book> {
+
+	/** The value of a book. */
+	private final Function<BookStoreBook, K> value;
+
+	/** The filter of the indexed books. */
+	private final Predicate<BookStoreBook> filter;
+
+	/** The view of a book returned by the index. */
+	private final Function<BookStoreBook, T> view;
+
+	/** The views of the indexed books, ordered by value and then by ISBN. */
+	private final NavigableMap<Key<K>, T> booksByValue = new TreeMap<>();
+
+	/** The keys of the indexed books by ISBN. */
+	private final Map<Integer, Key<K>> keysByISBN = new HashMap<>();
+
+	/**
+	 * Instantiates a new index.
+	 *
+	 * @param value
+	 *            the value of a book
+	 * @param filter
+	 *            the filter of the indexed books
+	 * @param view
+	 *            the view of a book returned by the index
+	 */
+	public BookRangeIndex(Function<BookStoreBook, K> value, Predicate<BookStoreBook> filter,
+			Function<BookStoreBook, T> view) {
+		this.value = value;
+		this.filter = filter;
+		this.view = view;
+	}
+
+	/**
+	 * Updates the index with the current state of the books as one atomic
+	 * change.
+	 *
+	 * @param books
+	 *            the books
+	 */
+	public synchronized void update(Collection<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			Key<K> previous = keysByISBN.get(book.getISBN());
+
+			if (!filter.test(book)) {
+				if (previous != null) {
+					keysByISBN.remove(book.getISBN());
+					booksByValue.remove(previous);
+				}
+
+				continue;
+			}
+
+			K currentValue = value.apply(book);
+
+			// The position of a book only changes if its value changes.
+			if (previous != null && previous.value.compareTo(currentValue) == 0) {
+				booksByValue.put(previous, view.apply(book));
+				continue;
+			}
+
+			if (previous != null) {
+				booksByValue.remove(previous);
+			}
+
+			Key<K> current = new Key<>(currentValue, book.getISBN());
+			keysByISBN.put(current.isbn, current);
+			booksByValue.put(current, view.apply(book));
+		}
+	}
+
+	/**
+	 * Removes the books from the index.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 */
+	public synchronized void remove(Collection<Integer> isbns) {
+		for (Integer isbn : isbns) {
+			Key<K> previous = keysByISBN.remove(isbn);
+
+			if (previous != null) {
+				booksByValue.remove(previous);
+			}
+		}
+	}
+
+	/**
+	 * Removes all books from the index.
+	 */
+	public synchronized void clear() {
+		keysByISBN.clear();
+		booksByValue.clear();
+	}
+
+	/**
+	 * Gets at most <code>numBooks</code> books with a value between
+	 * <code>min</code> and <code>max</code>, both inclusive, ordered by value
+	 * and then by ISBN. The books with the value <code>min</code> and an ISBN
+	 * not greater than <code>afterISBN</code> are skipped, so the value and
+	 * ISBN of the last book of a page give the start of the next page.
+	 *
+	 * @param min
+	 *            the minimum value
+	 * @param max
+	 *            the maximum value
+	 * @param afterISBN
+	 *            the ISBN after which the books with the minimum value start
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the books
+	 */
+	public synchronized List<T> getBooks(K min, K max, int afterISBN, int numBooks) {
+		List<T> books = new ArrayList<>();
+
+		if (min.compareTo(max) > 0) {
+			return books;
+		}
+
+		Key<K> from = new Key<>(min, afterISBN);
+		Key<K> to = new Key<>(max, Integer.MAX_VALUE);
+		Iterator<T> iterator = booksByValue.subMap(from, false, to, true).values().iterator();
+
+		while (books.size() < numBooks && iterator.hasNext()) {
+			books.add(iterator.next());
+		}
+
+		return books;
+	}
+
+	/**
+	 * The position of a book in the index.
+	 *
+	 * @param <K>
+	 *            the type of the value
+	 */
+	private static class Key<K extends Comparable<K>> implements Comparable<Key<K>> {
+
+		/** The value. */
+		private final K value;
+
+		/** The ISBN. */
+		private final int isbn;
+
+		/**
+		 * Instantiates a new key.
+		 *
+		 * @param value
+		 *            the value
+		 * @param isbn
+		 *            the ISBN
+		 */
+		private Key(K value, int isbn) {
+			this.value = value;
+			this.isbn = isbn;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Key<K> other) {
+			int result = value.compareTo(other.value);
+			return result != 0 ? result : Integer.compare(isbn, other.isbn);
+		}
+	}
+}
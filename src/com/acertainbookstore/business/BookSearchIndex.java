@@ -0,0 +1,661 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * {@link BookSearchIndex} is an inverted index from the terms of the titles and
+ * authors of the books to the ISBNs of the books containing them. A query
+ * matches the books containing all of its terms, in order of ISBN.
+ *
+ * Terms are the maximal runs of letters and digits, in lower case. Every term
+ * maps to a posting list of ISBNs kept as a sorted array, so that books added
+ * or removed together are merged into a posting list in a single pass.
+ *
+ * The terms are kept sorted, so the books containing a word starting with a
+ * prefix are found in the range of terms starting with the prefix. Completions
+ * of a prefix are ranked by a score supplied by the store, e.g. the average
+ * rating, and the best completions of short prefixes, which match the most
+ * books, are cached and kept up to date as books are rated.
+ *
+ * The posting lists are not synchronized: the stores change them while
+ * holding their exclusive locks for adding and removing books, and search
+ * them while holding the corresponding shared locks. Completions are
+ * synchronized on the index, since books are rated concurrently.
+ */
+public class BookSearchIndex {
+
+	/** The maximum length of the prefixes whose completions are cached. */
+	private static final int CACHED_PREFIX_LENGTH = 3;
+
+	/** The number of completions cached per prefix. */
+	private static final int CACHED_COMPLETIONS = 64;
+
+	/** The posting lists by term, in order of term. */
+	private final TreeMap<String, PostingList> postings = new TreeMap<>();
+
+	/** The cached best completions by prefix. */
+	private final Map<String, Completions> completionsByPrefix = new HashMap<>();
+
+	/**
+	 * Splits the text into its distinct terms.
+	 *
+	 * @param text
+	 *            the text
+	 * @return the terms, in order of first occurrence
+	 */
+	public static Set<String> tokenize(String text) {
+		Set<String> terms = new LinkedHashSet<>();
+
+		for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+			if (!term.isEmpty()) {
+				terms.add(term);
+			}
+		}
+
+		return terms;
+	}
+
+	/**
+	 * Adds the books to the index.
+	 *
+	 * @param books
+	 *            the books
+	 */
+	public void addBooks(Collection<? extends Book> books) {
+		Map<String, IntList> isbnsByTerm = groupByTerm(books);
+
+		for (Map.Entry<String, IntList> entry : isbnsByTerm.entrySet()) {
+			postings.computeIfAbsent(entry.getKey(), term -> new PostingList()).addAll(entry.getValue().sorted());
+		}
+
+		// The new books are ranked when the completions are computed again.
+		synchronized (this) {
+			for (String term : isbnsByTerm.keySet()) {
+				for (String prefix : cachedPrefixes(term)) {
+					completionsByPrefix.remove(prefix);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the books from the index.
+	 *
+	 * @param books
+	 *            the books
+	 */
+	public void removeBooks(Collection<? extends Book> books) {
+		Map<String, IntList> isbnsByTerm = groupByTerm(books);
+
+		for (Map.Entry<String, IntList> entry : isbnsByTerm.entrySet()) {
+			PostingList postingList = postings.get(entry.getKey());
+
+			if (postingList != null) {
+				postingList.removeAll(entry.getValue().sorted());
+
+				if (postingList.size == 0) {
+					postings.remove(entry.getKey());
+				}
+			}
+		}
+
+		synchronized (this) {
+			for (Map.Entry<String, IntList> entry : isbnsByTerm.entrySet()) {
+				for (String prefix : cachedPrefixes(entry.getKey())) {
+					Completions completions = completionsByPrefix.get(prefix);
+
+					if (completions != null) {
+						for (int i = 0; i < entry.getValue().size; i++) {
+							completions.remove(entry.getValue().isbns[i]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all books from the index.
+	 */
+	public synchronized void clear() {
+		postings.clear();
+		completionsByPrefix.clear();
+	}
+
+	/**
+	 * Updates the cached completions with the new scores of the books, e.g.
+	 * after they were rated. The stores must call it while holding the locks
+	 * of the books.
+	 *
+	 * @param books
+	 *            the books
+	 * @param score
+	 *            the score of a book by ISBN
+	 */
+	public synchronized void updateScores(Collection<? extends Book> books, IntToDoubleFunction score) {
+		if (completionsByPrefix.isEmpty()) {
+			return;
+		}
+
+		for (Book book : books) {
+			Set<String> prefixes = new HashSet<>();
+
+			for (String term : terms(book)) {
+				prefixes.addAll(cachedPrefixes(term));
+			}
+
+			double bookScore = score.applyAsDouble(book.getISBN());
+
+			for (String prefix : prefixes) {
+				Completions completions = completionsByPrefix.get(prefix);
+
+				if (completions != null) {
+					completions.update(book.getISBN(), bookScore);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Completes the query to the books with the highest scores. All words of
+	 * the query but the last must be words of the title or author of a book,
+	 * and the last word must be the prefix of one.
+	 *
+	 * @param query
+	 *            the query
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @param score
+	 *            the score of a book by ISBN
+	 * @return the ISBNs of the books, highest score first and then in order of
+	 *         ISBN
+	 */
+	public synchronized List<Integer> complete(String query, int numBooks, IntToDoubleFunction score) {
+		List<String> words = new ArrayList<>(tokenize(query));
+
+		if (words.isEmpty() || numBooks == 0) {
+			return new ArrayList<>();
+		}
+
+		String prefix = words.remove(words.size() - 1);
+		List<PostingList> required = new ArrayList<>();
+
+		for (String word : words) {
+			PostingList postingList = postings.get(word);
+
+			if (postingList == null) {
+				return new ArrayList<>();
+			}
+
+			required.add(postingList);
+		}
+
+		if (!required.isEmpty() || prefix.length() > CACHED_PREFIX_LENGTH || numBooks > CACHED_COMPLETIONS) {
+			return rank(prefix, required, numBooks, score).isbns(numBooks);
+		}
+
+		Completions completions = completionsByPrefix.get(prefix);
+
+		// Completions which lost books to removals or lower scores are only
+		// reused if they still hold enough books.
+		if (completions == null || !completions.covers(numBooks)) {
+			completions = rank(prefix, required, CACHED_COMPLETIONS, score);
+			completionsByPrefix.put(prefix, completions);
+		}
+
+		return completions.isbns(numBooks);
+	}
+
+	/**
+	 * Ranks the books containing the required terms and a term starting with
+	 * the prefix.
+	 *
+	 * @param prefix
+	 *            the prefix
+	 * @param required
+	 *            the posting lists of the required terms
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @param score
+	 *            the score of a book by ISBN
+	 * @return the best completions
+	 */
+	private Completions rank(String prefix, List<PostingList> required, int numBooks, IntToDoubleFunction score) {
+		Completions completions = new Completions(numBooks);
+		Set<Integer> seen = new HashSet<>();
+		boolean complete = true;
+
+		// The worst of the best books found so far is at the head.
+		PriorityQueue<Completion> best = new PriorityQueue<>(Comparator.reverseOrder());
+
+		for (PostingList postingList : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+			for (int i = 0; i < postingList.size; i++) {
+				int isbn = postingList.isbns[i];
+
+				if (!containsAll(required, isbn) || !seen.add(isbn)) {
+					continue;
+				}
+
+				best.add(new Completion(isbn, score.applyAsDouble(isbn)));
+
+				if (best.size() > numBooks) {
+					best.poll();
+					complete = false;
+				}
+			}
+		}
+
+		List<Completion> ranked = new ArrayList<>(best);
+		ranked.sort(null);
+
+		for (Completion completion : ranked) {
+			completions.add(completion);
+		}
+
+		completions.complete = complete;
+		return completions;
+	}
+
+	/**
+	 * Checks whether all posting lists contain the ISBN.
+	 *
+	 * @param postingLists
+	 *            the posting lists
+	 * @param isbn
+	 *            the ISBN
+	 * @return true, if all posting lists contain the ISBN
+	 */
+	private static boolean containsAll(List<PostingList> postingLists, int isbn) {
+		for (PostingList postingList : postingLists) {
+			if (!postingList.contains(isbn)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the prefixes of the term whose completions may be cached.
+	 *
+	 * @param term
+	 *            the term
+	 * @return the prefixes
+	 */
+	private static List<String> cachedPrefixes(String term) {
+		List<String> prefixes = new ArrayList<>();
+
+		for (int length = 1; length <= Math.min(term.length(), CACHED_PREFIX_LENGTH); length++) {
+			prefixes.add(term.substring(0, length));
+		}
+
+		return prefixes;
+	}
+
+	/**
+	 * Gets the terms of the title and author of the book.
+	 *
+	 * @param book
+	 *            the book
+	 * @return the terms
+	 */
+	private static Set<String> terms(Book book) {
+		Set<String> terms = tokenize(book.getTitle());
+		terms.addAll(tokenize(book.getAuthor()));
+		return terms;
+	}
+
+	/**
+	 * Searches the books containing all terms of the query.
+	 *
+	 * @param query
+	 *            the query
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the ISBNs of the matching books, in ascending order
+	 */
+	public List<Integer> search(String query, int numBooks) {
+		List<Integer> isbns = new ArrayList<>();
+		List<PostingList> postingLists = new ArrayList<>();
+
+		for (String term : tokenize(query)) {
+			PostingList postingList = postings.get(term);
+
+			if (postingList == null) {
+				return isbns;
+			}
+
+			postingLists.add(postingList);
+		}
+
+		if (postingLists.isEmpty()) {
+			return isbns;
+		}
+
+		// Walk the shortest posting list and probe the others.
+		postingLists.sort(Comparator.comparingInt(postingList -> postingList.size));
+		PostingList shortest = postingLists.get(0);
+
+		for (int i = 0; i < shortest.size && isbns.size() < numBooks; i++) {
+			int isbn = shortest.isbns[i];
+			boolean matches = true;
+
+			for (int j = 1; j < postingLists.size() && matches; j++) {
+				matches = postingLists.get(j).contains(isbn);
+			}
+
+			if (matches) {
+				isbns.add(isbn);
+			}
+		}
+
+		return isbns;
+	}
+
+	/**
+	 * Groups the ISBNs of the books by the terms of their titles and authors.
+	 *
+	 * @param books
+	 *            the books
+	 * @return the ISBNs by term
+	 */
+	private static Map<String, IntList> groupByTerm(Collection<? extends Book> books) {
+		Map<String, IntList> isbnsByTerm = new HashMap<>();
+
+		for (Book book : books) {
+			for (String term : terms(book)) {
+				isbnsByTerm.computeIfAbsent(term, t -> new IntList()).add(book.getISBN());
+			}
+		}
+
+		return isbnsByTerm;
+	}
+
+	/**
+	 * {@link Completion} is a book and its score, ordered by descending score
+	 * and then by ISBN.
+	 */
+	private static final class Completion implements Comparable<Completion> {
+
+		/** The ISBN. */
+		private final int isbn;
+
+		/** The score. */
+		private final double score;
+
+		/**
+		 * Instantiates a new {@link Completion}.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @param score
+		 *            the score
+		 */
+		private Completion(int isbn, double score) {
+			this.isbn = isbn;
+			this.score = score;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Completion completion) {
+			int scoreCompare = Double.compare(completion.score, score);
+			return scoreCompare != 0 ? scoreCompare : Integer.compare(isbn, completion.isbn);
+		}
+	}
+
+	/**
+	 * {@link Completions} are the best completions of a prefix, best first.
+	 * Completions are <code>complete</code> if they hold all books matching
+	 * the prefix; otherwise every book not held scores at most as well as the
+	 * worst book held.
+	 */
+	private static final class Completions {
+
+		/** The maximum number of completions. */
+		private final int capacity;
+
+		/** The completions, best first. */
+		private final List<Completion> ranked;
+
+		/** Whether all books matching the prefix are held. */
+		private boolean complete;
+
+		/**
+		 * Instantiates new {@link Completions}.
+		 *
+		 * @param capacity
+		 *            the maximum number of completions
+		 */
+		private Completions(int capacity) {
+			this.capacity = capacity;
+			this.ranked = new ArrayList<>(Math.min(capacity, 16));
+		}
+
+		/**
+		 * Appends a completion which is not better than any held.
+		 *
+		 * @param completion
+		 *            the completion
+		 */
+		private void add(Completion completion) {
+			ranked.add(completion);
+		}
+
+		/**
+		 * Checks whether the completions hold the best numBooks books.
+		 *
+		 * @param numBooks
+		 *            the number of books
+		 * @return true, if the best numBooks books are held
+		 */
+		private boolean covers(int numBooks) {
+			return complete || ranked.size() >= numBooks;
+		}
+
+		/**
+		 * Gets the ISBNs of the best books.
+		 *
+		 * @param numBooks
+		 *            the maximum number of books
+		 * @return the ISBNs
+		 */
+		private List<Integer> isbns(int numBooks) {
+			List<Integer> isbns = new ArrayList<>(Math.min(numBooks, ranked.size()));
+
+			for (int i = 0; i < ranked.size() && i < numBooks; i++) {
+				isbns.add(ranked.get(i).isbn);
+			}
+
+			return isbns;
+		}
+
+		/**
+		 * Removes the book.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 */
+		private void remove(int isbn) {
+			Iterator<Completion> iterator = ranked.iterator();
+
+			while (iterator.hasNext()) {
+				if (iterator.next().isbn == isbn) {
+					iterator.remove();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Updates the score of a book matching the prefix. A book which
+		 * scores worse than all books held is dropped unless the completions
+		 * are complete, since a book which is not held may score better.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @param score
+		 *            the new score
+		 */
+		private void update(int isbn, double score) {
+			Completion worst = ranked.isEmpty() ? null : ranked.get(ranked.size() - 1);
+			remove(isbn);
+
+			Completion completion = new Completion(isbn, score);
+
+			if (!complete && (worst == null || completion.compareTo(worst) > 0)) {
+				return;
+			}
+
+			int index = 0;
+
+			while (index < ranked.size() && ranked.get(index).compareTo(completion) < 0) {
+				index++;
+			}
+
+			ranked.add(index, completion);
+
+			if (ranked.size() > capacity) {
+				ranked.remove(ranked.size() - 1);
+				complete = false;
+			}
+		}
+	}
+
+	/**
+	 * {@link IntList} is a growable array of ISBNs.
+	 */
+	private static class IntList {
+
+		/** The ISBNs. */
+		protected int[] isbns = new int[4];
+
+		/** The number of ISBNs. */
+		protected int size;
+
+		/**
+		 * Appends the ISBN.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 */
+		void add(int isbn) {
+			if (size == isbns.length) {
+				isbns = Arrays.copyOf(isbns, size * 2);
+			}
+
+			isbns[size++] = isbn;
+		}
+
+		/**
+		 * Sorts the ISBNs in place.
+		 *
+		 * @return this list
+		 */
+		IntList sorted() {
+			Arrays.sort(isbns, 0, size);
+			return this;
+		}
+	}
+
+	/**
+	 * {@link PostingList} is the sorted list of the ISBNs of the books
+	 * containing a term.
+	 */
+	private static final class PostingList extends IntList {
+
+		/**
+		 * Checks whether the ISBN is in the list.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @return true, if the ISBN is in the list
+		 */
+		boolean contains(int isbn) {
+			return Arrays.binarySearch(isbns, 0, size, isbn) >= 0;
+		}
+
+		/**
+		 * Merges the sorted ISBNs into the list.
+		 *
+		 * @param added
+		 *            the sorted ISBNs, none of which is in the list
+		 */
+		void addAll(IntList added) {
+			// Books are mostly added in order of ISBN, so appending is the
+			// common case.
+			if (size == 0 || isbns[size - 1] < added.isbns[0]) {
+				ensureCapacity(size + added.size);
+				System.arraycopy(added.isbns, 0, isbns, size, added.size);
+				size += added.size;
+				return;
+			}
+
+			int[] merged = new int[Math.max(4, (size + added.size) * 3 / 2)];
+			int i = 0, j = 0, k = 0;
+
+			while (i < size || j < added.size) {
+				if (j == added.size || (i < size && isbns[i] < added.isbns[j])) {
+					merged[k++] = isbns[i++];
+				} else {
+					merged[k++] = added.isbns[j++];
+				}
+			}
+
+			isbns = merged;
+			size = k;
+		}
+
+		/**
+		 * Removes the sorted ISBNs from the list.
+		 *
+		 * @param removed
+		 *            the sorted ISBNs
+		 */
+		void removeAll(IntList removed) {
+			int j = 0, k = 0;
+
+			for (int i = 0; i < size; i++) {
+				while (j < removed.size && removed.isbns[j] < isbns[i]) {
+					j++;
+				}
+
+				if (j == removed.size || removed.isbns[j] != isbns[i]) {
+					isbns[k++] = isbns[i];
+				}
+			}
+
+			size = k;
+		}
+
+		/**
+		 * Grows the array to hold at least the number of ISBNs.
+		 *
+		 * @param capacity
+		 *            the capacity
+		 */
+		private void ensureCapacity(int capacity) {
+			if (capacity > isbns.length) {
+				isbns = Arrays.copyOf(isbns, Math.max(capacity, isbns.length * 3 / 2));
+			}
+		}
+	}
+}
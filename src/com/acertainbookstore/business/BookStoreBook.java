@@ -1,5 +1,7 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.locks.StampedLock;
+
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -13,9 +15,18 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 public class BookStoreBook extends ImmutableBook {
 
-	/** The number of copies. */
+	/**
+	 * The {@link ImmutableBook} view of the book, which is shared by all
+	 * readers since the title, author and price never change.
+	 */
+	private final ImmutableBook immutableBook;
+
+	/** The number of copies, unless they are split into shares. */
 	private int numCopies;
 
+	/** The copies split into shares, or null if they are not split. */
+	private EscrowCounter escrow = null;
+
 	/** The total rating. */
 	private long totalRating;
 
@@ -28,6 +39,13 @@ public class BookStoreBook extends ImmutableBook {
 	/** Whether the book is editor picked. */
 	private boolean editorPick;
 
+	/**
+	 * The version of the counters, which readers validate after copying them
+	 * without locks. Only its write lock and optimistic reads are used, like a
+	 * sequence lock.
+	 */
+	private final StampedLock version = new StampedLock();
+
 	/**
 	 * Instantiates a new {@link BookStoreBook}.
 	 *
@@ -45,6 +63,7 @@ public class BookStoreBook extends ImmutableBook {
 	public BookStoreBook(int isbn, String title, String author, float price, int numCopies) {
 		super(isbn, title, author, price);
 
+		this.immutableBook = new ImmutableBook(isbn, title, author, price);
 		this.setNumSaleMisses(0);
 		this.setNumTimesRated(0);
 		this.setNumCopies(numCopies);
@@ -62,6 +81,8 @@ public class BookStoreBook extends ImmutableBook {
 	public BookStoreBook(StockBook bookToCopy) {
 		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy.getAuthor(), bookToCopy.getPrice());
 
+		this.immutableBook = new ImmutableBook(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy.getAuthor(),
+				bookToCopy.getPrice());
 		this.setNumSaleMisses(bookToCopy.getNumSaleMisses());
 		this.setNumTimesRated(bookToCopy.getNumTimesRated());
 		this.setNumCopies(bookToCopy.getNumCopies());
@@ -93,7 +114,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the number of copies
 	 */
 	public int getNumCopies() {
-		return numCopies;
+		return escrow == null ? numCopies : escrow.get();
 	}
 
 	/**
@@ -183,7 +204,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean areCopiesInStore(int numCopies) {
-		return this.numCopies >= numCopies;
+		return getNumCopies() >= numCopies;
 	}
 
 	/**
@@ -194,7 +215,15 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return true, if successful
 	 */
 	public boolean buyCopies(int numCopies) {
-		if (!BookStoreUtility.isInvalidNoCopies(numCopies) && areCopiesInStore(numCopies)) {
+		if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			return false;
+		}
+
+		if (escrow != null) {
+			return escrow.take(numCopies) == 0;
+		}
+
+		if (areCopiesInStore(numCopies)) {
 			this.numCopies -= numCopies;
 			return true;
 		}
@@ -202,6 +231,54 @@ public class BookStoreBook extends ImmutableBook {
 		return false;
 	}
 
+	/**
+	 * Buys <code>numCopies</code> copies of the book if they are in stock, and
+	 * otherwise records the missing copies as sale misses. Once the copies are
+	 * split into shares, any number of threads can buy copies at once.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return true, if the copies were bought
+	 */
+	public boolean buyCopiesOrMiss(int numCopies) {
+		if (escrow == null) {
+			if (buyCopies(numCopies)) {
+				return true;
+			}
+
+			addSaleMiss(numCopies - this.numCopies);
+			return false;
+		}
+
+		int numMissing = escrow.take(numCopies);
+
+		if (numMissing == 0) {
+			return true;
+		}
+
+		synchronized (this) {
+			addSaleMiss(numMissing);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Splits the copies of the book into shares, which threads buying copies
+	 * take from independently.
+	 *
+	 * @param numShares
+	 *            the number of shares
+	 * @see EscrowCounter
+	 */
+	public void splitCopies(int numShares) {
+		if (escrow == null) {
+			escrow = new EscrowCounter(numShares);
+			escrow.add(numCopies);
+			numCopies = 0;
+		}
+	}
+
 	/**
 	 * Adds <code>newCopies</code> to the total number of copies of the book.
 	 *
@@ -210,11 +287,34 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addCopies(int numNewCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(numNewCopies)) {
-			this.numCopies += numNewCopies;
+			if (escrow == null) {
+				this.numCopies += numNewCopies;
+			} else {
+				escrow.add(numNewCopies);
+			}
+
 			this.numSaleMisses = 0;
 		}
 	}
 
+	/**
+	 * Gives back <code>numCopies</code> copies taken out of the stock by a
+	 * reservation which was released. Unlike {@link #addCopies(int)}, the sale
+	 * misses are kept, since the book was not restocked.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	public void releaseCopies(int numCopies) {
+		if (!BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			if (escrow == null) {
+				this.numCopies += numCopies;
+			} else {
+				escrow.add(numCopies);
+			}
+		}
+	}
+
 	/**
 	 * Increments the amount of missed sales of the book.
 	 * 
@@ -238,6 +338,19 @@ public class BookStoreBook extends ImmutableBook {
 		}
 	}
 
+	/**
+	 * Adds a batch of ratings to the total rating of the book.
+	 *
+	 * @param totalRating
+	 *            the sum of the ratings
+	 * @param numTimesRated
+	 *            the number of ratings
+	 */
+	public void addRatings(long totalRating, long numTimesRated) {
+		this.totalRating += totalRating;
+		this.numTimesRated += numTimesRated;
+	}
+
 	/**
 	 * Checks if someone tried to buy the book, while the book was not in stock,
 	 * also known as having sale misses.
@@ -260,24 +373,68 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a {@link ImmutableBook} copy of the book.
+	 * Returns the {@link ImmutableBook} view of the book. The view is created
+	 * once and shared, so no copy is made on reads.
 	 *
 	 * @return the immutable book
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice());
+		return immutableBook;
 	}
 
 	/**
-	 * Returns a {@link StockBook} copy of the book.
+	 * Returns a {@link StockBook} copy of the book. Only the counters are
+	 * copied; the immutable title and author are shared.
 	 *
 	 * @return the stock book
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
-				this.editorPick);
+		return new ImmutableStockBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(),
+				getNumCopies(), this.numSaleMisses, this.numTimesRated, this.totalRating, this.editorPick);
+	}
+
+	/**
+	 * Marks the counters as being changed, until {@link #endWrite(long)} is
+	 * called. Readers copying the counters meanwhile retry. Only one thread
+	 * changes the counters at a time, holding the exclusive lock of the book,
+	 * so the call never waits.
+	 *
+	 * @return the stamp to pass to {@link #endWrite(long)}
+	 */
+	public long beginWrite() {
+		return version.writeLock();
+	}
+
+	/**
+	 * Marks the counters as changed, giving them a new version.
+	 *
+	 * @param stamp
+	 *            the stamp returned by {@link #beginWrite()}
+	 */
+	public void endWrite(long stamp) {
+		version.unlockWrite(stamp);
+	}
+
+	/**
+	 * Gets the version of the counters, to copy them without locking the
+	 * book. The copy is consistent if {@link #hasVersion(long)} is still true
+	 * afterwards.
+	 *
+	 * @return the version, or 0 if the counters are being changed
+	 */
+	public long getVersion() {
+		return version.tryOptimisticRead();
+	}
+
+	/**
+	 * Checks if the counters were not changed since the version was read.
+	 *
+	 * @param version
+	 *            the version returned by {@link #getVersion()}
+	 * @return true, if the counters still have the version
+	 */
+	public boolean hasVersion(long version) {
+		return version != 0 && this.version.validate(version);
 	}
 
 	/**
@@ -286,7 +443,6 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the book store book
 	 */
 	public BookStoreBook copy() {
-		return new BookStoreBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies);
+		return new BookStoreBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(), getNumCopies());
 	}
 }
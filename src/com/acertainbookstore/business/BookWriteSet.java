@@ -0,0 +1,47 @@
+package com.acertainbookstore.business;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * {@link BookWriteSet} marks the books a request changes as being changed,
+ * see {@link BookStoreBook#beginWrite()}. A book is marked before it is first
+ * changed, and all books are unmarked together once the request made all its
+ * changes, so that readers copying several books without locks see either
+ * none or all of the changes of the request.
+ *
+ * The caller holds the exclusive locks of the books until it called
+ * {@link #end()}.
+ */
+final class BookWriteSet {
+
+	/** The stamps of the marked books. */
+	private final Map<BookStoreBook, Long> stamps = new IdentityHashMap<>();
+
+	/**
+	 * Marks a book as being changed, unless it is already marked.
+	 *
+	 * @param book
+	 *            the book
+	 * @return the book
+	 */
+	BookStoreBook add(BookStoreBook book) {
+		if (!stamps.containsKey(book)) {
+			stamps.put(book, book.beginWrite());
+		}
+
+		return book;
+	}
+
+	/**
+	 * Marks all books as changed. Calling it again does nothing, so that it
+	 * can be called both once the changes are made and in a finally block.
+	 */
+	void end() {
+		for (Map.Entry<BookStoreBook, Long> entry : stamps.entrySet()) {
+			entry.getKey().endWrite(entry.getValue());
+		}
+
+		stamps.clear();
+	}
+}
@@ -0,0 +1,110 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * {@link DemandIndex} keeps the books which had sale misses, ordered by the
+ * number of sale misses in descending order and then by ISBN, so that the most
+ * demanded books are found in time proportional to the number of books
+ * returned instead of the size of the store.
+ *
+ * The index holds the latest {@link StockBook} view of every indexed book, so
+ * the stores must pass every book they change to {@link #update(Collection)}
+ * while they hold the locks of the books. Books without sale misses are
+ * skipped without creating a view.
+ */
+public class DemandIndex {
+
+	/** The order of the most demanded books first. */
+	private static final Comparator<StockBook> BY_DEMAND = Comparator
+			.comparingLong(StockBook::getNumSaleMisses).reversed()
+			.thenComparingInt(StockBook::getISBN);
+
+	/** The books with sale misses, most demanded first. */
+	private final TreeSet<StockBook> booksByDemand = new TreeSet<>(BY_DEMAND);
+
+	/** The books with sale misses by ISBN. */
+	private final Map<Integer, StockBook> booksByISBN = new HashMap<>();
+
+	/**
+	 * Updates the index with the current state of the books as one atomic
+	 * change. Books whose sale misses were reset, e.g. by adding copies, leave
+	 * the index.
+	 *
+	 * @param books
+	 *            the books
+	 */
+	public synchronized void update(Collection<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			StockBook previous = booksByISBN.remove(book.getISBN());
+
+			if (previous != null) {
+				booksByDemand.remove(previous);
+			}
+
+			if (book.hadSaleMiss()) {
+				StockBook current = book.immutableStockBook();
+				booksByISBN.put(current.getISBN(), current);
+				booksByDemand.add(current);
+			}
+		}
+	}
+
+	/**
+	 * Removes the books from the index.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 */
+	public synchronized void remove(Collection<Integer> isbns) {
+		for (Integer isbn : isbns) {
+			StockBook previous = booksByISBN.remove(isbn);
+
+			if (previous != null) {
+				booksByDemand.remove(previous);
+			}
+		}
+	}
+
+	/**
+	 * Removes all books from the index.
+	 */
+	public synchronized void clear() {
+		booksByISBN.clear();
+		booksByDemand.clear();
+	}
+
+	/**
+	 * Gets all books with sale misses, most demanded first.
+	 *
+	 * @return the books
+	 */
+	public synchronized List<StockBook> getBooksInDemand() {
+		return new ArrayList<>(booksByDemand);
+	}
+
+	/**
+	 * Gets the <code>numBooks</code> most demanded books.
+	 *
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the books, most demanded first
+	 */
+	public synchronized List<StockBook> getBooksInDemand(int numBooks) {
+		List<StockBook> books = new ArrayList<>(Math.min(numBooks, booksByDemand.size()));
+		Iterator<StockBook> iterator = booksByDemand.iterator();
+
+		while (books.size() < numBooks && iterator.hasNext()) {
+			books.add(iterator.next());
+		}
+
+		return books;
+	}
+}
@@ -0,0 +1,299 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/** {@link DeterministicCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities.
+ *
+ * Operations are not run by their callers but scheduled as transactions by a
+ * single sequencer thread, so the books are never locked. The sequencer
+ * collects the transactions which arrived while the previous epoch ran into
+ * the next epoch, in the order they arrived, and splits the epoch into waves:
+ * every transaction goes to the wave after the last wave with a transaction it
+ * conflicts with, i.e. which names a partition of its books and where either
+ * of them changes the books. The transactions of a wave therefore never
+ * conflict and run in parallel on a fork-join pool, and the waves run one
+ * after the other, so the epoch has the same outcome as running its
+ * transactions one by one in their order.
+ *
+ * The partitions are only the granularity of the conflicts, so the store uses
+ * many of them.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class DeterministicCertainBookStore extends AbstractPartitionedCertainBookStore {
+
+	/** The default number of partitions. */
+	public static final int DEFAULT_NUM_PARTITIONS = 1024;
+
+	/** The transactions which arrived since the current epoch was collected. */
+	private final ConcurrentLinkedQueue<Transaction<?>> incoming = new ConcurrentLinkedQueue<>();
+
+	/** The thread scheduling the epochs. */
+	private final Thread sequencer;
+
+	/** Whether the sequencer is about to park, waiting for transactions. */
+	private volatile boolean sequencerIdle = false;
+
+	/** Whether the sequencer stops after the current epoch. */
+	private volatile boolean sequencerStopped = false;
+
+	/** The pool running the transactions of a wave in parallel. */
+	private final ForkJoinPool pool;
+
+	/** The last wave of the epoch changing each partition. Only used by the sequencer. */
+	private final int[] lastWriteWave;
+
+	/** The last wave of the epoch reading each partition. Only used by the sequencer. */
+	private final int[] lastReadWave;
+
+	/**
+	 * Instantiates a new {@link DeterministicCertainBookStore} with the
+	 * default number of partitions and a thread per processor.
+	 */
+	public DeterministicCertainBookStore() {
+		this(DEFAULT_NUM_PARTITIONS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a new {@link DeterministicCertainBookStore}.
+	 *
+	 * @param numPartitions
+	 *            the number of partitions
+	 * @param parallelism
+	 *            the number of threads running the transactions of a wave
+	 */
+	public DeterministicCertainBookStore(int numPartitions, int parallelism) {
+		super(numPartitions);
+		lastWriteWave = new int[numPartitions];
+		lastReadWave = new int[numPartitions];
+		pool = new ForkJoinPool(parallelism);
+		sequencer = new Thread(this::runSequencer, "transaction-sequencer");
+		sequencer.setDaemon(true);
+		sequencer.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#close()
+	 */
+	@Override
+	public void close() {
+		try {
+			// The transactions before it in its epoch still run.
+			execute(new int[0], false, () -> {
+				sequencerStopped = true;
+				return null;
+			});
+		} catch (BookStoreException ex) {
+			// Stopping the sequencer does not fail.
+			throw new IllegalStateException(ex);
+		}
+
+		// The rest of the epoch may still hand waves to the pool.
+		boolean interrupted = false;
+
+		while (sequencer.isAlive()) {
+			try {
+				sequencer.join();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+
+		pool.shutdown();
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#execute(
+	 * int[], boolean,
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore.
+	 * Operation)
+	 */
+	@Override
+	protected <R> R execute(int[] partitionIndices, boolean write, Operation<R> operation)
+			throws BookStoreException {
+		Transaction<R> transaction = new Transaction<>(partitionIndices, write, operation);
+		incoming.offer(transaction);
+
+		// The sequencer checks the queue again after becoming idle, so either
+		// it sees the transaction or it is unparked.
+		if (sequencerIdle) {
+			LockSupport.unpark(sequencer);
+		}
+
+		try {
+			return transaction.result.join();
+		} catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof BookStoreException) {
+				throw (BookStoreException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw ex;
+		}
+	}
+
+	/**
+	 * Collects and runs the epochs.
+	 */
+	private void runSequencer() {
+		List<Transaction<?>> epoch = new ArrayList<>();
+
+		while (!sequencerStopped) {
+			for (Transaction<?> transaction = incoming.poll(); transaction != null; transaction = incoming.poll()) {
+				epoch.add(transaction);
+			}
+
+			if (epoch.isEmpty()) {
+				sequencerIdle = true;
+
+				if (incoming.isEmpty()) {
+					LockSupport.park(this);
+				}
+
+				sequencerIdle = false;
+				continue;
+			}
+
+			for (List<Transaction<?>> wave : schedule(epoch)) {
+				// Handing a wave to a single worker would only add a context
+				// switch, so the sequencer runs it itself.
+				if (wave.size() == 1 || pool.getParallelism() == 1) {
+					for (Transaction<?> transaction : wave) {
+						transaction.call();
+					}
+				} else {
+					pool.invokeAll(wave);
+				}
+			}
+
+			epoch.clear();
+		}
+	}
+
+	/**
+	 * Splits an epoch into waves of transactions which do not conflict.
+	 *
+	 * @param epoch
+	 *            the transactions of the epoch, in their order
+	 * @return the waves, in the order they must run
+	 */
+	private List<List<Transaction<?>>> schedule(List<Transaction<?>> epoch) {
+		List<List<Transaction<?>>> waves = new ArrayList<>();
+		Arrays.fill(lastWriteWave, 0);
+		Arrays.fill(lastReadWave, 0);
+
+		for (Transaction<?> transaction : epoch) {
+			int wave = 0;
+
+			// Reads only conflict with writes, and writes with both.
+			for (int index : transaction.partitionIndices) {
+				wave = Math.max(wave, lastWriteWave[index]);
+
+				if (transaction.write) {
+					wave = Math.max(wave, lastReadWave[index]);
+				}
+			}
+
+			wave++;
+
+			for (int index : transaction.partitionIndices) {
+				if (transaction.write) {
+					lastWriteWave[index] = wave;
+				} else {
+					lastReadWave[index] = Math.max(lastReadWave[index], wave);
+				}
+			}
+
+			while (waves.size() < wave) {
+				waves.add(new ArrayList<>());
+			}
+
+			waves.get(wave - 1).add(transaction);
+		}
+
+		return waves;
+	}
+
+	/**
+	 * An operation scheduled by the sequencer.
+	 *
+	 * @param <R>
+	 *            the type of the result
+	 */
+	private static final class Transaction<R> implements Callable<Void> {
+
+		/** The indices of the partitions of the books of the operation. */
+		private final int[] partitionIndices;
+
+		/** Whether the operation changes the books. */
+		private final boolean write;
+
+		/** The operation. */
+		private final Operation<R> operation;
+
+		/** The result the caller waits for. */
+		private final CompletableFuture<R> result = new CompletableFuture<>();
+
+		/**
+		 * Instantiates a new transaction.
+		 *
+		 * @param partitionIndices
+		 *            the indices of the partitions of the books of the
+		 *            operation
+		 * @param write
+		 *            whether the operation changes the books
+		 * @param operation
+		 *            the operation
+		 */
+		private Transaction(int[] partitionIndices, boolean write, Operation<R> operation) {
+			this.partitionIndices = partitionIndices;
+			this.write = write;
+			this.operation = operation;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Void call() {
+			try {
+				result.complete(operation.run());
+			} catch (Throwable ex) {
+				result.completeExceptionally(ex);
+			}
+
+			return null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * {@link EscrowCounter} keeps the number of copies of a book split into
+ * shares, so that concurrent purchases of the same book take their copies
+ * from different shares instead of all updating one counter.
+ *
+ * Every thread takes its copies from its own share with a compare-and-set.
+ * When its share runs dry, it rebalances the counter under its monitor: it
+ * gathers all shares, takes its copies from the total if there are enough,
+ * and spreads the rest evenly over the shares again. Near zero stock the
+ * shares are too small for most purchases, so purchases fall back to this
+ * global check, which decides exactly when there are not enough copies left.
+ */
+public class EscrowCounter {
+
+	/**
+	 * The distance between two shares in the array, so that every share is
+	 * on its own cache line.
+	 */
+	private static final int PADDING = 16;
+
+	/** The shares. */
+	private final AtomicIntegerArray shares;
+
+	/** The number of shares. */
+	private final int numShares;
+
+	/**
+	 * Instantiates a new {@link EscrowCounter} without copies.
+	 *
+	 * @param numShares
+	 *            the number of shares
+	 */
+	public EscrowCounter(int numShares) {
+		if (numShares <= 0) {
+			throw new IllegalArgumentException("numShares = " + numShares + ", but it must be positive");
+		}
+
+		this.numShares = numShares;
+		this.shares = new AtomicIntegerArray(numShares * PADDING);
+	}
+
+	/**
+	 * Takes copies if there are enough of them.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return zero if the copies were taken, and otherwise the number of
+	 *         copies missing
+	 */
+	public int take(int numCopies) {
+		int index = homeShare() * PADDING;
+
+		while (true) {
+			int available = shares.get(index);
+
+			if (available < numCopies) {
+				return takeGlobal(numCopies);
+			}
+
+			if (shares.compareAndSet(index, available, available - numCopies)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Takes copies from all shares and rebalances them.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 * @return zero if the copies were taken, and otherwise the number of
+	 *         copies missing
+	 */
+	private synchronized int takeGlobal(int numCopies) {
+		// Other threads can only take from the shares meanwhile, never add to
+		// them, so their purchases simply come before this one.
+		int total = 0;
+
+		for (int share = 0; share < numShares; share++) {
+			total += shares.getAndSet(share * PADDING, 0);
+		}
+
+		if (total < numCopies) {
+			spread(total);
+			return numCopies - total;
+		}
+
+		spread(total - numCopies);
+		return 0;
+	}
+
+	/**
+	 * Adds copies, spreading all copies evenly over the shares again.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	public synchronized void add(int numCopies) {
+		int total = numCopies;
+
+		for (int share = 0; share < numShares; share++) {
+			total += shares.getAndSet(share * PADDING, 0);
+		}
+
+		spread(total);
+	}
+
+	/**
+	 * Gets the number of copies.
+	 *
+	 * @return the number of copies
+	 */
+	public synchronized int get() {
+		int total = 0;
+
+		for (int share = 0; share < numShares; share++) {
+			total += shares.get(share * PADDING);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Spreads copies evenly over the shares, which the caller emptied.
+	 *
+	 * @param numCopies
+	 *            the number of copies
+	 */
+	private void spread(int numCopies) {
+		for (int share = 0; share < numShares; share++) {
+			shares.addAndGet(share * PADDING, numCopies / numShares + (share < numCopies % numShares ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Gets the share of the current thread.
+	 *
+	 * @return the index of the share
+	 */
+	private int homeShare() {
+		return (int) (Thread.currentThread().getId() % numShares);
+	}
+}
@@ -0,0 +1,1035 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * {@link LockManager} implements multi-granularity locking of a store and its
+ * books. The store is locked in one of four modes: intention shared (IS) and
+ * intention exclusive (IX) announce that books will be read or changed and are
+ * compatible with each other, shared (S) reads the whole store, and exclusive
+ * (X) changes it. Books are locked shared (S) or exclusive (X).
+ *
+ * <pre>
+ *        IS   IX   S    X
+ *   IS   yes  yes  yes  no
+ *   IX   yes  yes  no   no
+ *   S    yes  no   yes  no
+ *   X    no   no   no   no
+ * </pre>
+ *
+ * All locks are reentrant, and a thread may request a mode its holds already
+ * cover without waiting. Exclusive requests take precedence over new requests
+ * of threads not holding the lock, so that exclusive requests are not
+ * starved. Several books are locked in ascending order of their ISBNs, so
+ * that requests never wait for each other in a cycle.
+ *
+ * The books can also be locked coarsely, by the store lock alone: requests
+ * then lock the store shared instead of IS and exclusively instead of IX, do
+ * not lock their books, and operations on a single book lock the store
+ * instead of the book. {@link #setCoarse(boolean)} switches between the two
+ * granularities once no request holds a lock, and a request which locked
+ * with the old granularity meanwhile notices it and locks again. A request
+ * locking more books than the escalation threshold switches to the coarse
+ * granularity before locking.
+ *
+ * The manager counts the acquisitions of every lock, how many of them had to
+ * wait and for how long, and the book locks taken per request, so that
+ * locking protocols can be compared.
+ */
+public class LockManager {
+
+	/**
+	 * The modes of the locks.
+	 */
+	public enum Mode {
+
+		/** Intention shared. */
+		IS,
+
+		/** Intention exclusive. */
+		IX,
+
+		/** Shared. */
+		S,
+
+		/** Exclusive. */
+		X;
+
+		/**
+		 * Checks whether the mode is compatible with the modes held by the
+		 * threads other than the requesting one.
+		 *
+		 * @param held
+		 *            the number of holds of every mode by all threads
+		 * @param own
+		 *            the number of holds of every mode by the requesting
+		 *            thread, or null if it holds none
+		 * @return true, if the mode can be granted
+		 */
+		private boolean isCompatibleWith(int[] held, int[] own) {
+			switch (this) {
+			case IS:
+				return heldByOthers(held, own, X) == 0;
+			case IX:
+				return heldByOthers(held, own, S) == 0 && heldByOthers(held, own, X) == 0;
+			case S:
+				return heldByOthers(held, own, IX) == 0 && heldByOthers(held, own, X) == 0;
+			default:
+				return heldByOthers(held, own, IS) == 0 && heldByOthers(held, own, IX) == 0
+						&& heldByOthers(held, own, S) == 0 && heldByOthers(held, own, X) == 0;
+			}
+		}
+
+		/**
+		 * Gets the number of holds of a mode by the threads other than the
+		 * requesting one.
+		 *
+		 * @param held
+		 *            the number of holds of every mode by all threads
+		 * @param own
+		 *            the number of holds of every mode by the requesting
+		 *            thread, or null if it holds none
+		 * @param mode
+		 *            the mode
+		 * @return the number of holds by other threads
+		 */
+		private static int heldByOthers(int[] held, int[] own, Mode mode) {
+			return held[mode.ordinal()] - (own == null ? 0 : own[mode.ordinal()]);
+		}
+
+		/**
+		 * Checks whether holding the mode covers a request of another mode.
+		 *
+		 * @param requested
+		 *            the requested mode
+		 * @return true, if the request needs no new permission
+		 */
+		private boolean covers(Mode requested) {
+			return this == requested || this == X || (requested == IS && (this == IX || this == S));
+		}
+
+		/**
+		 * Gets the mode locking the store for a request of this mode when the
+		 * store lock alone locks the books.
+		 *
+		 * @return the mode without intention
+		 */
+		private Mode coarsen() {
+			return this == IS ? S : this == IX ? X : this;
+		}
+	}
+
+	/** The lock of the store. */
+	private final ModeLock storeLock = new ModeLock("store");
+
+	/** The locks of the books, by ISBN. */
+	private final ConcurrentMap<Integer, ModeLock> bookLocks = new ConcurrentHashMap<>();
+
+	/**
+	 * The ISBNs of removed books whose locks were still used when the books
+	 * were removed. Only used while the store is locked exclusively.
+	 */
+	private final Set<Integer> removedISBNs = new HashSet<>();
+
+	/**
+	 * Whether the store lock alone locks the books. Only changes while the
+	 * store is locked exclusively and, when switching to the coarse
+	 * granularity, all books are locked exclusively, so it does not change
+	 * while a request holds a lock.
+	 */
+	private volatile boolean coarse = false;
+
+	/** The number of books above which a request escalates, or 0. */
+	private final int escalationThreshold;
+
+	/** The number of requests locking more books than the threshold. */
+	private final AtomicLong numLargeRequests = new AtomicLong();
+
+	/** The number of switches between the granularities. */
+	private final AtomicLong numSwitches = new AtomicLong();
+
+	/** The number of requests locking the store or a single book. */
+	private final AtomicLong numRequests = new AtomicLong();
+
+	/** The number of book locks taken with the fine granularity. */
+	private final AtomicLong numBookLocks = new AtomicLong();
+
+	/**
+	 * Instantiates a new {@link LockManager} which always locks the books with
+	 * their own locks, unless switched with {@link #setCoarse(boolean)}.
+	 */
+	public LockManager() {
+		this(0);
+	}
+
+	/**
+	 * Instantiates a new {@link LockManager} which escalates requests locking
+	 * many books.
+	 *
+	 * @param escalationThreshold
+	 *            the number of books above which a request switches to the
+	 *            coarse granularity, or 0 never to switch
+	 */
+	public LockManager(int escalationThreshold) {
+		if (escalationThreshold < 0) {
+			throw new IllegalArgumentException(
+					"escalationThreshold = " + escalationThreshold + ", but it must be non-negative");
+		}
+
+		this.escalationThreshold = escalationThreshold;
+	}
+
+	/**
+	 * Locks the store.
+	 *
+	 * @param mode
+	 *            the mode
+	 * @return the mode the store was locked in, which is passed to
+	 *         {@link #unlockStore(Mode)}
+	 */
+	public Mode lockStore(Mode mode) {
+		return lockStore(mode, 0);
+	}
+
+	/**
+	 * Locks the store for a request locking books, escalating the request if
+	 * it locks more books than the escalation threshold. With the coarse
+	 * granularity, intention modes are replaced by the modes they announce.
+	 *
+	 * @param mode
+	 *            the mode
+	 * @param numBooks
+	 *            the number of books the request locks, as far as known
+	 * @return the mode the store was locked in, which is passed to
+	 *         {@link #unlockStore(Mode)}
+	 */
+	public Mode lockStore(Mode mode, int numBooks) {
+		numRequests.incrementAndGet();
+
+		if (escalationThreshold > 0 && numBooks > escalationThreshold) {
+			numLargeRequests.incrementAndGet();
+
+			// A request already holding the store cannot wait for itself.
+			if (!coarse && !storeLock.isHeldByCurrentThread()) {
+				setCoarse(true);
+			}
+		}
+
+		while (true) {
+			boolean wasCoarse = coarse;
+			Mode granted = wasCoarse ? mode.coarsen() : mode;
+			storeLock.lock(granted);
+
+			// The granularity may have been switched before the store was
+			// locked.
+			if (coarse == wasCoarse) {
+				return granted;
+			}
+
+			storeLock.unlock(granted);
+		}
+	}
+
+	/**
+	 * Unlocks the store.
+	 *
+	 * @param mode
+	 *            the mode returned by {@link #lockStore(Mode, int)}
+	 */
+	public void unlockStore(Mode mode) {
+		storeLock.unlock(mode);
+	}
+
+	/**
+	 * Switches between locking the books with their own locks and locking
+	 * them with the store lock alone. The switch locks the store exclusively
+	 * and, since operations on a single book only lock their book, all books
+	 * too, so it waits until no request holds a lock.
+	 *
+	 * @param coarse
+	 *            whether the store lock alone locks the books
+	 */
+	public void setCoarse(boolean coarse) {
+		storeLock.lock(Mode.X);
+
+		try {
+			if (this.coarse == coarse) {
+				return;
+			}
+
+			List<ModeLock> lockedBooks = new ArrayList<>();
+
+			try {
+				if (coarse) {
+					for (int isbn : getBookISBNs()) {
+						ModeLock bookLock = bookLocks.get(isbn);
+						bookLock.lock(Mode.X);
+						lockedBooks.add(bookLock);
+					}
+				}
+
+				this.coarse = coarse;
+				numSwitches.incrementAndGet();
+			} finally {
+				for (ModeLock bookLock : lockedBooks) {
+					bookLock.unlock(Mode.X);
+				}
+			}
+		} finally {
+			storeLock.unlock(Mode.X);
+		}
+	}
+
+	/**
+	 * Checks whether the store lock alone locks the books.
+	 *
+	 * @return true, if the granularity is coarse
+	 */
+	public boolean isCoarse() {
+		return coarse;
+	}
+
+	/**
+	 * Adds the lock of a new book. The caller holds the store lock
+	 * exclusively. A removed book with the same ISBN may have left its lock,
+	 * which the new book reuses.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	public void addBook(int isbn) {
+		removedISBNs.remove(isbn);
+		bookLocks.computeIfAbsent(isbn, ModeLock::new);
+	}
+
+	/**
+	 * Removes the locks of removed books. The caller holds the store lock
+	 * exclusively and unlocked the books. A lock which an operation on a
+	 * single book still holds or waits for is kept until a later removal
+	 * finds it unused.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the removed books
+	 */
+	public void removeBooks(Collection<Integer> isbns) {
+		removedISBNs.addAll(isbns);
+		removedISBNs.removeIf(this::removeUnusedBookLock);
+	}
+
+	/**
+	 * Removes the lock of a removed book unless a thread holds or waits for
+	 * it.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @return true, if the book has no lock anymore
+	 */
+	private boolean removeUnusedBookLock(int isbn) {
+		ModeLock bookLock = bookLocks.get(isbn);
+
+		if (bookLock == null) {
+			return true;
+		}
+
+		// Locking the lock takes its monitor, so no thread locks it between
+		// the check and the removal, and a thread locking it afterwards finds
+		// out that it was removed.
+		synchronized (bookLock) {
+			if (!bookLock.isUnused()) {
+				return false;
+			}
+
+			bookLocks.remove(isbn);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes the locks of all books.
+	 */
+	public void removeAllBooks() {
+		bookLocks.clear();
+		removedISBNs.clear();
+	}
+
+	/**
+	 * Gets the ISBNs of the books which have a lock.
+	 *
+	 * @return the ISBNs
+	 */
+	public Set<Integer> getBookISBNs() {
+		return new TreeSet<>(bookLocks.keySet());
+	}
+
+	/**
+	 * Locks books one after the other in ascending order of their ISBNs. The
+	 * caller holds the store lock, so the locks of the books are not removed
+	 * meanwhile. With the coarse granularity, the store lock already locks the
+	 * books.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @param exclusive
+	 *            whether to lock the books exclusively rather than shared
+	 */
+	public void lockBooks(Collection<Integer> isbns, boolean exclusive) {
+		if (coarse) {
+			return;
+		}
+
+		Mode mode = exclusive ? Mode.X : Mode.S;
+		int[] sortedISBNs = sort(isbns);
+		int numLocked = 0;
+
+		for (int i = 0; i < sortedISBNs.length; i++) {
+			if (i == 0 || sortedISBNs[i] != sortedISBNs[i - 1]) {
+				bookLocks.computeIfAbsent(sortedISBNs[i], ModeLock::new).lock(mode);
+				numLocked++;
+			}
+		}
+
+		numBookLocks.addAndGet(numLocked);
+	}
+
+	/**
+	 * Unlocks books locked by {@link #lockBooks(Collection, boolean)}.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @param exclusive
+	 *            whether the books are locked exclusively rather than shared
+	 */
+	public void unlockBooks(Collection<Integer> isbns, boolean exclusive) {
+		if (coarse) {
+			return;
+		}
+
+		Mode mode = exclusive ? Mode.X : Mode.S;
+		int[] sortedISBNs = sort(isbns);
+
+		for (int i = sortedISBNs.length - 1; i >= 0; i--) {
+			if (i == 0 || sortedISBNs[i] != sortedISBNs[i - 1]) {
+				bookLocks.get(sortedISBNs[i]).unlock(mode);
+			}
+		}
+	}
+
+	/**
+	 * Sorts ISBNs in ascending order.
+	 *
+	 * @param isbns
+	 *            the ISBNs, possibly with duplicates
+	 * @return the sorted ISBNs, duplicates included
+	 */
+	private static int[] sort(Collection<Integer> isbns) {
+		int[] sortedISBNs = new int[isbns.size()];
+		int i = 0;
+
+		for (int isbn : isbns) {
+			sortedISBNs[i++] = isbn;
+		}
+
+		Arrays.sort(sortedISBNs);
+		return sortedISBNs;
+	}
+
+	/**
+	 * Locks a book without locking the store, or with the coarse granularity
+	 * the store instead of the book. The locks of the books may be removed or
+	 * the granularity switched while waiting, in which case the book is
+	 * locked again.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param exclusive
+	 *            whether to lock the book exclusively rather than shared
+	 * @return true, if the book was locked, and false if it has no lock
+	 */
+	public boolean lockExistingBook(int isbn, boolean exclusive) {
+		Mode mode = exclusive ? Mode.X : Mode.S;
+		numRequests.incrementAndGet();
+
+		while (true) {
+			if (coarse) {
+				storeLock.lock(mode);
+
+				if (coarse) {
+					if (bookLocks.containsKey(isbn)) {
+						return true;
+					}
+
+					storeLock.unlock(mode);
+					return false;
+				}
+
+				storeLock.unlock(mode);
+			} else {
+				ModeLock bookLock = bookLocks.get(isbn);
+
+				if (bookLock == null) {
+					return false;
+				}
+
+				bookLock.lock(mode);
+
+				if (!coarse && bookLocks.get(isbn) == bookLock) {
+					numBookLocks.incrementAndGet();
+					return true;
+				}
+
+				bookLock.unlock(mode);
+			}
+		}
+	}
+
+	/**
+	 * Unlocks a book locked by {@link #lockExistingBook(int, boolean)}.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param exclusive
+	 *            whether the book is locked exclusively rather than shared
+	 */
+	public void unlockBook(int isbn, boolean exclusive) {
+		(coarse ? storeLock : bookLocks.get(isbn)).unlock(exclusive ? Mode.X : Mode.S);
+	}
+
+	/**
+	 * Upgrades the shared lock of a book held by the current thread to an
+	 * exclusive lock, waiting until the other threads release the book. Only
+	 * one thread can wait to upgrade a book at a time, since two of them
+	 * would wait for each other forever.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @return true, if the lock was upgraded, and false if another thread is
+	 *         upgrading it, in which case the caller keeps its shared lock and
+	 *         should release it before locking the book exclusively
+	 */
+	public boolean upgradeBook(int isbn) {
+		return (coarse ? storeLock : bookLocks.get(isbn)).upgrade();
+	}
+
+	/**
+	 * Gets the statistics of the store lock.
+	 *
+	 * @return the statistics
+	 */
+	public LockStatistics getStoreStatistics() {
+		return storeLock.getStatistics();
+	}
+
+	/**
+	 * Gets the statistics of the book locks which were waited for the
+	 * longest.
+	 *
+	 * @param numLocks
+	 *            the maximum number of locks
+	 * @return the statistics, hottest lock first
+	 */
+	public List<LockStatistics> getHottestBookStatistics(int numLocks) {
+		return bookLocks.values().stream()
+				.map(ModeLock::getStatistics)
+				.sorted(Comparator.comparingLong(LockStatistics::getWaitNanos).reversed())
+				.limit(numLocks)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Gets the statistics of all book locks together.
+	 *
+	 * @return the statistics
+	 */
+	public LockStatistics getBookStatistics() {
+		long acquisitions = 0;
+		long waits = 0;
+		long waitNanos = 0;
+
+		for (ModeLock bookLock : bookLocks.values()) {
+			LockStatistics statistics = bookLock.getStatistics();
+			acquisitions += statistics.getAcquisitions();
+			waits += statistics.getWaits();
+			waitNanos += statistics.getWaitNanos();
+		}
+
+		return new LockStatistics("books", acquisitions, waits, waitNanos, 0);
+	}
+
+	/**
+	 * Gets the number of requests which locked more books than the
+	 * escalation threshold, with either granularity.
+	 *
+	 * @return the number of large requests
+	 */
+	public long getNumLargeRequests() {
+		return numLargeRequests.get();
+	}
+
+	/**
+	 * Gets the number of requests which locked the store, or a single book
+	 * without locking the store.
+	 *
+	 * @return the number of requests
+	 */
+	public long getNumRequests() {
+		return numRequests.get();
+	}
+
+	/**
+	 * Gets the number of book locks taken with the fine granularity, which
+	 * the coarse granularity would have saved.
+	 *
+	 * @return the number of book locks
+	 */
+	public long getNumBookLocks() {
+		return numBookLocks.get();
+	}
+
+	/**
+	 * Gets the number of switches between the granularities.
+	 *
+	 * @return the number of switches
+	 */
+	public long getNumSwitches() {
+		return numSwitches.get();
+	}
+
+	/**
+	 * Gets the number of locks held by any thread, which is 0 whenever no
+	 * operation is running.
+	 *
+	 * @return the number of held locks, the store lock included
+	 */
+	public int getNumHeldLocks() {
+		int numHeldLocks = storeLock.getStatistics().getHolds() > 0 ? 1 : 0;
+
+		for (ModeLock bookLock : bookLocks.values()) {
+			if (bookLock.getStatistics().getHolds() > 0) {
+				numHeldLocks++;
+			}
+		}
+
+		return numHeldLocks;
+	}
+
+	/**
+	 * {@link LockStatistics} is a snapshot of the counters of a lock.
+	 */
+	public static final class LockStatistics {
+
+		/** The name of the lock. */
+		private final String name;
+
+		/** The number of acquisitions. */
+		private final long acquisitions;
+
+		/** The number of acquisitions which waited. */
+		private final long waits;
+
+		/** The total time waited, in nanoseconds. */
+		private final long waitNanos;
+
+		/** The number of holds at the time of the snapshot. */
+		private final int holds;
+
+		/**
+		 * Instantiates a new {@link LockStatistics}.
+		 *
+		 * @param name
+		 *            the name of the lock
+		 * @param acquisitions
+		 *            the number of acquisitions
+		 * @param waits
+		 *            the number of acquisitions which waited
+		 * @param waitNanos
+		 *            the total time waited, in nanoseconds
+		 * @param holds
+		 *            the number of holds
+		 */
+		private LockStatistics(String name, long acquisitions, long waits, long waitNanos, int holds) {
+			this.name = name;
+			this.acquisitions = acquisitions;
+			this.waits = waits;
+			this.waitNanos = waitNanos;
+			this.holds = holds;
+		}
+
+		/**
+		 * Gets the name of the lock.
+		 *
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the number of acquisitions.
+		 *
+		 * @return the number of acquisitions
+		 */
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * Gets the number of acquisitions which waited.
+		 *
+		 * @return the number of waits
+		 */
+		public long getWaits() {
+			return waits;
+		}
+
+		/**
+		 * Gets the total time waited.
+		 *
+		 * @return the time in nanoseconds
+		 */
+		public long getWaitNanos() {
+			return waitNanos;
+		}
+
+		/**
+		 * Gets the number of holds at the time of the snapshot.
+		 *
+		 * @return the number of holds
+		 */
+		public int getHolds() {
+			return holds;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Lock = " + name + ", Acquisitions = " + acquisitions + ", Waits = " + waits + ", Wait time = "
+					+ waitNanos / 1000 + "us";
+		}
+	}
+
+	/**
+	 * A reentrant lock with the modes of {@link Mode}, guarded by its monitor.
+	 */
+	private static final class ModeLock {
+
+		/** The modes, since {@link Mode#values()} copies them on every call. */
+		private static final Mode[] MODES = Mode.values();
+
+		/** The name of the lock, or null for the lock of a book. */
+		private final String name;
+
+		/** The ISBN of the book, for the lock of a book. */
+		private final int isbn;
+
+		/** The number of holds of every mode, by all threads. */
+		private final int[] held = new int[MODES.length];
+
+		/** The number of holds of every mode, by thread. */
+		private final Map<Thread, int[]> holders = new HashMap<>();
+
+		/** The number of threads waiting to lock exclusively. */
+		private int waitingExclusive = 0;
+
+		/** The number of threads waiting for the lock. */
+		private int waiting = 0;
+
+		/** The thread waiting to upgrade its shared lock, or null. */
+		private Thread upgrader = null;
+
+		/** The number of acquisitions. */
+		private long acquisitions = 0;
+
+		/** The number of acquisitions which waited. */
+		private long waits = 0;
+
+		/** The total time waited, in nanoseconds. */
+		private long waitNanos = 0;
+
+		/**
+		 * Instantiates a new lock.
+		 *
+		 * @param name
+		 *            the name of the lock
+		 */
+		private ModeLock(String name) {
+			this.name = name;
+			this.isbn = 0;
+		}
+
+		/**
+		 * Instantiates a new lock of a book.
+		 *
+		 * @param isbn
+		 *            the ISBN of the book
+		 */
+		private ModeLock(Integer isbn) {
+			this.name = null;
+			this.isbn = isbn;
+		}
+
+		/**
+		 * Gets the name of the lock.
+		 *
+		 * @return the name
+		 */
+		private String getName() {
+			return name != null ? name : "book " + isbn;
+		}
+
+		/**
+		 * Locks the lock, waiting until the mode is compatible with the modes
+		 * held by other threads.
+		 *
+		 * @param mode
+		 *            the mode
+		 */
+		private synchronized void lock(Mode mode) {
+			Thread current = Thread.currentThread();
+			int[] own = holders.get(current);
+			acquisitions++;
+
+			if (own != null && isCovered(own, mode)) {
+				grant(own, mode);
+				return;
+			}
+
+			if (!canGrant(own, mode)) {
+				long start = System.nanoTime();
+				waits++;
+
+				if (mode == Mode.X) {
+					waitingExclusive++;
+				}
+
+				boolean interrupted = false;
+				waiting++;
+
+				while (!canGrant(own, mode)) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					}
+				}
+
+				waiting--;
+
+				if (mode == Mode.X) {
+					waitingExclusive--;
+				}
+
+				waitNanos += System.nanoTime() - start;
+
+				if (interrupted) {
+					current.interrupt();
+				}
+			}
+
+			if (own == null) {
+				own = new int[MODES.length];
+				holders.put(current, own);
+			}
+
+			grant(own, mode);
+		}
+
+		/**
+		 * Unlocks the lock once.
+		 *
+		 * @param mode
+		 *            the mode it was locked in
+		 */
+		private synchronized void unlock(Mode mode) {
+			Thread current = Thread.currentThread();
+			int[] own = holders.get(current);
+
+			if (own == null || own[mode.ordinal()] == 0) {
+				throw new IllegalMonitorStateException(getName() + " is not locked in mode " + mode);
+			}
+
+			own[mode.ordinal()]--;
+			held[mode.ordinal()]--;
+
+			if (isEmpty(own)) {
+				holders.remove(current);
+			}
+
+			if (waiting > 0) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Upgrades the shared lock held by the current thread to an exclusive
+		 * lock.
+		 *
+		 * @return true, if the lock was upgraded, and false if another thread
+		 *         is upgrading it
+		 */
+		private synchronized boolean upgrade() {
+			Thread current = Thread.currentThread();
+			int[] own = holders.get(current);
+
+			if (own == null || own[Mode.S.ordinal()] == 0) {
+				throw new IllegalMonitorStateException(getName() + " is not locked in mode " + Mode.S);
+			}
+
+			if (upgrader != null) {
+				return false;
+			}
+
+			acquisitions++;
+
+			if (!canGrant(own, Mode.X)) {
+				long start = System.nanoTime();
+				boolean interrupted = false;
+				upgrader = current;
+				waitingExclusive++;
+				waiting++;
+				waits++;
+
+				while (!canGrant(own, Mode.X)) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					}
+				}
+
+				waiting--;
+				waitingExclusive--;
+				upgrader = null;
+				waitNanos += System.nanoTime() - start;
+
+				if (interrupted) {
+					current.interrupt();
+				}
+			}
+
+			own[Mode.S.ordinal()]--;
+			held[Mode.S.ordinal()]--;
+			grant(own, Mode.X);
+			return true;
+		}
+
+		/**
+		 * Checks whether no thread holds or waits for the lock.
+		 *
+		 * @return true, if the lock is unused
+		 */
+		private synchronized boolean isUnused() {
+			return holders.isEmpty() && waiting == 0;
+		}
+
+		/**
+		 * Checks whether the current thread holds the lock in any mode.
+		 *
+		 * @return true, if the current thread holds the lock
+		 */
+		private synchronized boolean isHeldByCurrentThread() {
+			return holders.containsKey(Thread.currentThread());
+		}
+
+		/**
+		 * Checks whether a mode can be granted to the current thread.
+		 *
+		 * @param own
+		 *            the holds of the current thread, or null
+		 * @param mode
+		 *            the mode
+		 * @return true, if the mode is compatible with the holds of the other
+		 *         threads
+		 */
+		private boolean canGrant(int[] own, Mode mode) {
+			// Threads which do not hold the lock yet let exclusive requests go
+			// first; threads holding it must not, or they would wait for
+			// themselves.
+			if (own == null && mode != Mode.X && waitingExclusive > 0) {
+				return false;
+			}
+
+			return mode.isCompatibleWith(held, own);
+		}
+
+		/**
+		 * Records a hold.
+		 *
+		 * @param own
+		 *            the holds of the current thread
+		 * @param mode
+		 *            the mode
+		 */
+		private void grant(int[] own, Mode mode) {
+			own[mode.ordinal()]++;
+			held[mode.ordinal()]++;
+		}
+
+		/**
+		 * Checks whether the holds of a thread cover a request.
+		 *
+		 * @param own
+		 *            the holds of the thread
+		 * @param mode
+		 *            the requested mode
+		 * @return true, if a held mode covers the requested mode
+		 */
+		private static boolean isCovered(int[] own, Mode mode) {
+			for (Mode heldMode : MODES) {
+				if (own[heldMode.ordinal()] > 0 && heldMode.covers(mode)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Checks whether a thread holds no mode.
+		 *
+		 * @param own
+		 *            the holds of the thread
+		 * @return true, if the thread holds nothing
+		 */
+		private static boolean isEmpty(int[] own) {
+			for (int holds : own) {
+				if (holds > 0) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Gets a snapshot of the counters of the lock.
+		 *
+		 * @return the statistics
+		 */
+		private synchronized LockStatistics getStatistics() {
+			int holds = 0;
+
+			for (int modeHolds : held) {
+				holds += modeHolds;
+			}
+
+			return new LockStatistics(getName(), acquisitions, waits, waitNanos, holds);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/** {@link PartitionedConcurrentCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities.
+ *
+ * The books are hash partitioned by ISBN into a fixed number of partitions,
+ * each with its own read-write lock, so operations on books of different
+ * partitions do not contend. An operation locks only the partitions of the
+ * books it names. Partitions are always locked in ascending order, so
+ * operations spanning several partitions cannot deadlock.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class PartitionedConcurrentCertainBookStore extends AbstractPartitionedCertainBookStore {
+
+	/** The default number of partitions. */
+	public static final int DEFAULT_NUM_PARTITIONS = 16;
+
+	/** The locks of the partitions. */
+	private final ReentrantReadWriteLock[] locks;
+
+	/**
+	 * Instantiates a new {@link PartitionedConcurrentCertainBookStore} with the
+	 * default number of partitions.
+	 */
+	public PartitionedConcurrentCertainBookStore() {
+		this(DEFAULT_NUM_PARTITIONS);
+	}
+
+	/**
+	 * Instantiates a new {@link PartitionedConcurrentCertainBookStore}.
+	 *
+	 * @param numPartitions
+	 *            the number of partitions
+	 */
+	public PartitionedConcurrentCertainBookStore(int numPartitions) {
+		super(numPartitions);
+		locks = new ReentrantReadWriteLock[numPartitions];
+
+		for (int i = 0; i < numPartitions; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#execute(
+	 * int[], boolean,
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore.
+	 * Operation)
+	 */
+	@Override
+	protected <R> R execute(int[] partitionIndices, boolean write, Operation<R> operation)
+			throws BookStoreException {
+		Lock[] heldLocks = new Lock[partitionIndices.length];
+		int numHeld = 0;
+
+		try {
+			for (int index : partitionIndices) {
+				Lock lock = write ? locks[index].writeLock() : locks[index].readLock();
+				lock.lock();
+				heldLocks[numHeld++] = lock;
+			}
+
+			return operation.run();
+		} finally {
+			// Release the locks in the reverse order they were acquired.
+			while (numHeld > 0) {
+				heldLocks[--numHeld].unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.Combiner;
+
+/**
+ * {@link PurchaseCombiner} combines the concurrent purchases of copies of the
+ * same book, so that a store applies a whole batch of them in one critical
+ * section instead of locking the book once per purchase. Every book being
+ * bought has its own {@link Combiner}, which has the store apply the batches
+ * with {@link Buyer#buy(int, List)}.
+ *
+ * The combiner of a book is dropped once no purchase of the book is pending
+ * and no customer applies a batch, so only books being bought are kept.
+ */
+public class PurchaseCombiner {
+
+	/** The combiners of the books being bought, by ISBN. */
+	private final ConcurrentMap<Integer, Combiner<Purchase>> books = new ConcurrentHashMap<>();
+
+	/** The store applying the batches. */
+	private final Buyer buyer;
+
+	/**
+	 * {@link Buyer} applies a batch of purchases of copies of a book in a
+	 * store.
+	 */
+	@FunctionalInterface
+	public interface Buyer {
+
+		/**
+		 * Applies the purchases in their order, setting the outcome of each,
+		 * and makes their effects visible before returning.
+		 *
+		 * @param isbn
+		 *            the ISBN of the book
+		 * @param purchases
+		 *            the purchases, in the order they were made
+		 */
+		void buy(int isbn, List<Purchase> purchases);
+	}
+
+	/**
+	 * Instantiates a new {@link PurchaseCombiner}.
+	 *
+	 * @param buyer
+	 *            the store applying the batches
+	 */
+	public PurchaseCombiner(Buyer buyer) {
+		this.buyer = buyer;
+	}
+
+	/**
+	 * Buys copies of a book, together with the purchases of the same book made
+	 * at the same time.
+	 *
+	 * @param bookCopy
+	 *            the copies to buy
+	 * @return true, if the copies were bought, and false if they were not in
+	 *         stock
+	 * @throws BookStoreException
+	 *             if the purchase is invalid
+	 */
+	public boolean buy(BookCopy bookCopy) throws BookStoreException {
+		int isbn = bookCopy.getISBN();
+
+		if (BookStoreUtility.isInvalidISBN(isbn)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		Combiner<Purchase> combiner = books.computeIfAbsent(isbn,
+				key -> new Combiner<>(purchases -> buyer.buy(key, purchases)));
+		Purchase purchase = new Purchase(bookCopy);
+
+		try {
+			combiner.apply(purchase);
+		} finally {
+			// A customer which still adds its purchase to a dropped combiner
+			// applies it itself, so the purchase is applied anyway.
+			if (combiner.isIdle()) {
+				books.computeIfPresent(isbn,
+						(key, current) -> current == combiner && current.isIdle() ? null : current);
+			}
+		}
+
+		return purchase.bought;
+	}
+
+	/**
+	 * Gets the number of books with pending purchases or a customer applying
+	 * a batch.
+	 *
+	 * @return the number of books
+	 */
+	public int size() {
+		return books.size();
+	}
+
+	/**
+	 * {@link Purchase} is a pending purchase of copies of a book.
+	 */
+	public static final class Purchase extends Combiner.Request {
+
+		/** The copies to buy. */
+		private final BookCopy bookCopy;
+
+		/** Whether the copies were bought. */
+		private boolean bought = false;
+
+		/**
+		 * Instantiates a new {@link Purchase}.
+		 *
+		 * @param bookCopy
+		 *            the copies to buy
+		 */
+		private Purchase(BookCopy bookCopy) {
+			this.bookCopy = bookCopy;
+		}
+
+		/**
+		 * Gets the copies to buy.
+		 *
+		 * @return the copies
+		 */
+		public BookCopy getBookCopy() {
+			return bookCopy;
+		}
+
+		/**
+		 * Sets whether the copies were bought.
+		 *
+		 * @param bought
+		 *            true, if the copies were bought
+		 */
+		public void setBought(boolean bought) {
+			this.bought = bought;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.acertainbookstore.business;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RatingIngestor} takes the ratings of the books off the request path.
+ * Ratings only add to the counters of the books and customers do not read
+ * their own ratings back, so a rating does not need to be applied before the
+ * customer is answered.
+ *
+ * Every thread adds its ratings to its own buffer, summed up by book. A
+ * background thread folds the buffers of all threads into the books in one
+ * batch every <code>maxStalenessMillis</code>, so a rating is applied at the
+ * latest about that long after it was added. {@link #flush()} folds the
+ * buffers right away.
+ *
+ * The buffers are keyed by the {@link BookStoreBook} objects rather than by
+ * ISBN, so that the store can drop the ratings of books which were removed,
+ * even if a book with the same ISBN was added since.
+ */
+public class RatingIngestor {
+
+	/** The store folding the batches into the books. */
+	private final Folder folder;
+
+	/** The buffers of all threads which rated books. */
+	private final List<Buffer> buffers = new CopyOnWriteArrayList<>();
+
+	/** The buffer of the current thread. */
+	private final ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(this::newBuffer);
+
+	/** The thread folding the buffers periodically. */
+	private final ScheduledExecutorService ticker;
+
+	/**
+	 * {@link Folder} folds a batch of ratings into the books of a store.
+	 */
+	@FunctionalInterface
+	public interface Folder {
+
+		/**
+		 * Adds the ratings to the books which are still in the store.
+		 *
+		 * @param ratings
+		 *            the total rating and the number of ratings of every book
+		 */
+		void fold(Map<BookStoreBook, long[]> ratings);
+	}
+
+	/**
+	 * Instantiates a new {@link RatingIngestor}.
+	 *
+	 * @param folder
+	 *            the store folding the batches into the books
+	 * @param maxStalenessMillis
+	 *            the time between two batches in milliseconds
+	 */
+	public RatingIngestor(Folder folder, long maxStalenessMillis) {
+		if (maxStalenessMillis <= 0) {
+			throw new IllegalArgumentException(
+					"maxStalenessMillis = " + maxStalenessMillis + ", but it must be positive");
+		}
+
+		this.folder = folder;
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rating-ingestor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.ticker.scheduleWithFixedDelay(this::flush, maxStalenessMillis, maxStalenessMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a rating of a book to the buffer of the current thread.
+	 *
+	 * @param book
+	 *            the book
+	 * @param rating
+	 *            the rating, which must be valid
+	 */
+	public void add(BookStoreBook book, int rating) {
+		buffer.get().add(book, rating);
+	}
+
+	/**
+	 * Folds the ratings added so far into the books, and waits until they
+	 * are.
+	 */
+	public synchronized void flush() {
+		Map<BookStoreBook, long[]> ratings = new IdentityHashMap<>();
+		Iterator<Buffer> iterator = buffers.iterator();
+
+		while (iterator.hasNext()) {
+			Buffer threadBuffer = iterator.next();
+
+			if (!threadBuffer.drainTo(ratings) && !threadBuffer.owner.isAlive()) {
+				// Nothing can be added to the buffer of a thread which ended.
+				buffers.remove(threadBuffer);
+			}
+		}
+
+		if (!ratings.isEmpty()) {
+			folder.fold(ratings);
+		}
+	}
+
+	/**
+	 * Registers the buffer of the current thread.
+	 *
+	 * @return the buffer
+	 */
+	private Buffer newBuffer() {
+		Buffer threadBuffer = new Buffer();
+		buffers.add(threadBuffer);
+		return threadBuffer;
+	}
+
+	/**
+	 * The ratings added by a thread since its buffer was last drained.
+	 */
+	private static final class Buffer {
+
+		/** The thread adding to the buffer. */
+		private final Thread owner = Thread.currentThread();
+
+		/** The total rating and the number of ratings of every book. */
+		private Map<BookStoreBook, long[]> ratings = new IdentityHashMap<>();
+
+		/**
+		 * Adds a rating of a book.
+		 *
+		 * @param book
+		 *            the book
+		 * @param rating
+		 *            the rating
+		 */
+		private synchronized void add(BookStoreBook book, int rating) {
+			long[] sum = ratings.computeIfAbsent(book, key -> new long[2]);
+			sum[0] += rating;
+			sum[1]++;
+		}
+
+		/**
+		 * Moves the ratings of the buffer to a batch.
+		 *
+		 * @param batch
+		 *            the batch
+		 * @return true, if the buffer had ratings
+		 */
+		private boolean drainTo(Map<BookStoreBook, long[]> batch) {
+			Map<BookStoreBook, long[]> drained;
+
+			synchronized (this) {
+				if (ratings.isEmpty()) {
+					return false;
+				}
+
+				drained = ratings;
+				ratings = new IdentityHashMap<>();
+			}
+
+			for (Map.Entry<BookStoreBook, long[]> entry : drained.entrySet()) {
+				long[] sum = batch.computeIfAbsent(entry.getKey(), key -> new long[2]);
+				sum[0] += entry.getValue()[0];
+				sum[1] += entry.getValue()[1];
+			}
+
+			return true;
+		}
+	}
+}
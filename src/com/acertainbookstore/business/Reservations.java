@@ -0,0 +1,176 @@
+package com.acertainbookstore.business;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.acertainbookstore.utils.TimerWheel;
+
+/**
+ * {@link Reservations} keeps the copies of books reserved for customers while
+ * they check out. The stores take the reserved copies out of the stock when a
+ * reservation is made; a reservation is then either committed, which keeps the
+ * copies sold, or released, which gives them back to the stock.
+ *
+ * Reservations which are neither committed nor released within their time to
+ * live expire and are given back through the expiry handler of the store. The
+ * expiries are kept on a {@link TimerWheel} advanced by a single daemon
+ * thread, which is started with the first reservation.
+ *
+ * Whoever removes a reservation first, i.e. a commit, a release or its
+ * expiry, decides what happens to its copies, so a reservation is never both
+ * sold and given back.
+ *
+ * A reservation keeps the books its copies were taken from, and the stores
+ * only give the copies back to these books, so that copies reserved from a
+ * book which was removed are never credited to a book added later with the
+ * same ISBN.
+ */
+public class Reservations {
+
+	/** The duration of a tick of the timer wheel in milliseconds. */
+	private static final long TICK_MILLIS = 10;
+
+	/** The number of buckets of the timer wheel, about five seconds per turn. */
+	private static final int NUM_BUCKETS = 512;
+
+	/** The identifier of the next reservation. */
+	private final AtomicLong nextReservationId = new AtomicLong(1);
+
+	/** The reservations held, by identifier. */
+	private final ConcurrentHashMap<Long, Reservation> reservations = new ConcurrentHashMap<>();
+
+	/** The expiries of the reservations. */
+	private final TimerWheel<Long> expiries = new TimerWheel<>(TICK_MILLIS, NUM_BUCKETS);
+
+	/** The handler giving back the copies of expired reservations. */
+	private final Consumer<Map<BookCopy, BookStoreBook>> expiryHandler;
+
+	/** The thread advancing the timer wheel, started with the first reservation. */
+	private ScheduledExecutorService ticker = null;
+
+	/**
+	 * Instantiates a new table of reservations.
+	 *
+	 * @param expiryHandler
+	 *            the handler giving back the copies of expired reservations
+	 */
+	public Reservations(Consumer<Map<BookCopy, BookStoreBook>> expiryHandler) {
+		this.expiryHandler = expiryHandler;
+	}
+
+	/**
+	 * Holds a reservation of copies already taken out of the stock.
+	 *
+	 * @param bookCopies
+	 *            the reserved copies, and the books they were taken from
+	 * @param ttlMillis
+	 *            the time to live of the reservation in milliseconds
+	 * @return the identifier of the reservation
+	 */
+	public long add(Map<BookCopy, BookStoreBook> bookCopies, long ttlMillis) {
+		startTicker();
+
+		long reservationId = nextReservationId.getAndIncrement();
+		Reservation reservation = new Reservation(new HashMap<>(bookCopies));
+		reservations.put(reservationId, reservation);
+		reservation.timeout = expiries.schedule(reservationId, ttlMillis);
+		return reservationId;
+	}
+
+	/**
+	 * Removes a reservation before it expires.
+	 *
+	 * @param reservationId
+	 *            the identifier of the reservation
+	 * @return the reserved copies and the books they were taken from, or null
+	 *         if the reservation is not held
+	 */
+	public Map<BookCopy, BookStoreBook> remove(long reservationId) {
+		Reservation reservation = reservations.remove(reservationId);
+
+		if (reservation == null) {
+			return null;
+		}
+
+		// The timeout is only missing while the reservation is being added.
+		if (reservation.timeout != null) {
+			reservation.timeout.cancel();
+		}
+
+		return reservation.bookCopies;
+	}
+
+	/**
+	 * Drops all reservations without giving back their copies, e.g. when all
+	 * books are removed from the store.
+	 */
+	public void clear() {
+		for (Long reservationId : reservations.keySet()) {
+			remove(reservationId);
+		}
+	}
+
+	/**
+	 * Starts the thread advancing the timer wheel, if not yet started.
+	 */
+	private synchronized void startTicker() {
+		if (ticker != null) {
+			return;
+		}
+
+		ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "reservation-expiry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleAtFixedRate(this::expire, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gives back the copies of the reservations which expired.
+	 */
+	private void expire() {
+		for (Long reservationId : expiries.expire()) {
+			Map<BookCopy, BookStoreBook> bookCopies = remove(reservationId);
+
+			if (bookCopies == null) {
+				continue;
+			}
+
+			try {
+				expiryHandler.accept(bookCopies);
+			} catch (RuntimeException ex) {
+				// Keep the ticker running for the other reservations.
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A reservation held.
+	 */
+	private static class Reservation {
+
+		/** The reserved copies, and the books they were taken from. */
+		private final Map<BookCopy, BookStoreBook> bookCopies;
+
+		/** The expiry of the reservation. */
+		private volatile TimerWheel.Timeout<Long> timeout;
+
+		/**
+		 * Instantiates a new reservation.
+		 *
+		 * @param bookCopies
+		 *            the reserved copies, and the books they were taken from
+		 */
+		private Reservation(Map<BookCopy, BookStoreBook> bookCopies) {
+			this.bookCopies = bookCopies;
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/** {@link RingBufferCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities.
+ *
+ * Every operation on the books is sequenced through a pre-allocated ring
+ * buffer and run by a single writer thread, so the books are never locked and
+ * the operations are applied in the order of their sequence numbers. The
+ * writer takes all consecutive operations published to the ring at once, runs
+ * them as a batch, and then publishes the books they changed as one commit of
+ * a {@link VersionedBookMap} before completing their callers.
+ *
+ * Listing the books and reading them by ISBN do not go through the ring:
+ * they read the immutable versions of the books of the latest commit.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class RingBufferCertainBookStore extends AbstractPartitionedCertainBookStore {
+
+	/** The default number of slots of the ring buffer. */
+	public static final int DEFAULT_RING_SIZE = 1024;
+
+	/** The slots of the ring buffer. */
+	private final Slot[] ring;
+
+	/** The mask of a sequence number giving its slot. */
+	private final int mask;
+
+	/** The sequence number of the next operation. */
+	private final AtomicLong nextSequence = new AtomicLong();
+
+	/** The sequence number of the last operation run by the writer. */
+	private volatile long consumedSequence = -1;
+
+	/** The thread running the operations. */
+	private final Thread writer;
+
+	/** Whether the writer is about to park, waiting for operations. */
+	private volatile boolean writerIdle = false;
+
+	/** Whether the writer stops after the current batch. Only used by the writer. */
+	private boolean writerStopped = false;
+
+	/** The committed versions of the books, read without going through the ring. */
+	private final VersionedBookMap versionedBookMap = new VersionedBookMap();
+
+	/** The books changed by the batch being run, by ISBN. Only used by the writer. */
+	private final Map<Integer, BookStoreBook> changedBooks = new LinkedHashMap<>();
+
+	/**
+	 * Instantiates a new {@link RingBufferCertainBookStore} with the default
+	 * size of the ring buffer.
+	 */
+	public RingBufferCertainBookStore() {
+		this(DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Instantiates a new {@link RingBufferCertainBookStore}.
+	 *
+	 * @param ringSize
+	 *            the number of slots of the ring buffer, a power of two
+	 */
+	public RingBufferCertainBookStore(int ringSize) {
+		super(1);
+
+		if (ringSize <= 0 || Integer.bitCount(ringSize) != 1) {
+			throw new IllegalArgumentException("ringSize = " + ringSize + ", but it must be a power of two");
+		}
+
+		ring = new Slot[ringSize];
+		mask = ringSize - 1;
+
+		for (int i = 0; i < ringSize; i++) {
+			ring[i] = new Slot();
+		}
+
+		writer = new Thread(this::runWriter, "ring-buffer-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#close()
+	 */
+	@Override
+	public void close() {
+		try {
+			// The operations before it in the ring still run in its batch.
+			execute(new int[0], true, () -> {
+				writerStopped = true;
+				return null;
+			});
+		} catch (BookStoreException ex) {
+			// Stopping the writer does not fail.
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#execute(
+	 * int[], boolean,
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore.
+	 * Operation)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected <R> R execute(int[] partitionIndices, boolean write, Operation<R> operation)
+			throws BookStoreException {
+		long sequence = nextSequence.getAndIncrement();
+
+		// Wait until the writer is done with the slot one turn of the ring ago.
+		while (sequence - ring.length > consumedSequence) {
+			Thread.yield();
+		}
+
+		Slot slot = ring[(int) (sequence & mask)];
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		slot.operation = operation;
+		slot.result = result;
+		slot.sequence = sequence;
+
+		// The writer checks the ring again after becoming idle, so either it
+		// sees the operation or it is unparked.
+		if (writerIdle) {
+			LockSupport.unpark(writer);
+		}
+
+		try {
+			return (R) result.join();
+		} catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof BookStoreException) {
+				throw (BookStoreException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw ex;
+		}
+	}
+
+	/**
+	 * Runs the operations published to the ring, in batches of consecutive
+	 * operations.
+	 */
+	private void runWriter() {
+		long next = 0;
+
+		while (!writerStopped) {
+			if (ring[(int) (next & mask)].sequence != next) {
+				writerIdle = true;
+
+				if (ring[(int) (next & mask)].sequence != next) {
+					LockSupport.park(this);
+				}
+
+				writerIdle = false;
+				continue;
+			}
+
+			long last = next;
+
+			while (last + 1 - next < ring.length && ring[(int) ((last + 1) & mask)].sequence == last + 1) {
+				last++;
+			}
+
+			for (long sequence = next; sequence <= last; sequence++) {
+				Slot slot = ring[(int) (sequence & mask)];
+
+				try {
+					slot.value = slot.operation.run();
+				} catch (Throwable ex) {
+					slot.failure = ex;
+				}
+			}
+
+			// The callers see their changes as soon as they return.
+			publishChangedBooks();
+
+			for (long sequence = next; sequence <= last; sequence++) {
+				ring[(int) (sequence & mask)].complete();
+			}
+
+			consumedSequence = last;
+			next = last + 1;
+		}
+	}
+
+	/**
+	 * Publishes the books changed by the batch as one commit.
+	 */
+	private void publishChangedBooks() {
+		if (!changedBooks.isEmpty()) {
+			versionedBookMap.publish(changedBooks.values());
+			changedBooks.clear();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#
+	 * booksChanged(java.util.Collection)
+	 */
+	@Override
+	protected void booksChanged(Collection<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			changedBooks.put(book.getISBN(), book);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#
+	 * booksRemoved(java.util.Collection)
+	 */
+	@Override
+	protected void booksRemoved(Collection<Integer> isbns) {
+		// Removals are published in order with the changes before them.
+		publishChangedBooks();
+		versionedBookMap.publishRemoval(isbns);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#
+	 * allBooksRemoved()
+	 */
+	@Override
+	protected void allBooksRemoved() {
+		changedBooks.clear();
+		versionedBookMap.publishRemoveAll();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
+	 */
+	@Override
+	public List<StockBook> getBooks() throws BookStoreException {
+		return versionedBookMap.snapshot();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int)
+	 */
+	@Override
+	public List<StockBook> getBooks(int afterISBN, int numBooks) throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+		return versionedBookMap.snapshot(afterISBN, numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	@Override
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Integer> isbns = new ArrayList<>(isbnSet);
+
+		for (Integer ISBN : isbns) {
+			if (BookStoreUtility.isInvalidISBN(ISBN)) {
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.INVALID);
+			}
+		}
+
+		List<StockBook> books = versionedBookMap.snapshot(isbns);
+
+		for (int i = 0; i < books.size(); i++) {
+			if (books.get(i) == null) {
+				throw new BookStoreException(BookStoreConstants.ISBN + isbns.get(i) + BookStoreConstants.NOT_AVAILABLE);
+			}
+		}
+
+		return books;
+	}
+
+	/**
+	 * A slot of the ring buffer, reused for every turn of the ring.
+	 */
+	private static final class Slot {
+
+		/** The sequence number of the operation published to the slot. */
+		private volatile long sequence = -1;
+
+		/** The operation. */
+		private Operation<?> operation;
+
+		/** The result the caller waits for. */
+		private CompletableFuture<Object> result;
+
+		/** The value of the operation, set by the writer. */
+		private Object value;
+
+		/** The failure of the operation, set by the writer. */
+		private Throwable failure;
+
+		/**
+		 * Completes the caller with the outcome of the operation and clears
+		 * the slot for its next turn.
+		 */
+		private void complete() {
+			CompletableFuture<Object> completed = result;
+
+			if (failure != null) {
+				completed.completeExceptionally(failure);
+			} else {
+				completed.complete(value);
+			}
+
+			operation = null;
+			result = null;
+			value = null;
+			failure = null;
+		}
+	}
+}
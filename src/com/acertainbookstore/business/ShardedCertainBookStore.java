@@ -0,0 +1,259 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/** {@link ShardedCertainBookStore} implements the {@link BookStore} and
+ * {@link StockManager} functionalities.
+ *
+ * The books are hash partitioned by ISBN into shards, each owned by a single
+ * thread which is the only one running the operations on its books, so the
+ * books are never locked. The callers pass their operations to the owners
+ * through a queue per shard, which any number of threads add to and only the
+ * owner takes from, and wait for the results.
+ *
+ * An operation spanning several shards is coordinated by messages: the caller
+ * sends a hold message to every shard in ascending order and waits until its
+ * owner stops at it, runs the operation on its own thread while all owners
+ * are stopped, and then releases them. Shards are always held in ascending
+ * order, so operations spanning several shards cannot deadlock.
+ *
+ * @see BookStore
+ * @see StockManager
+ */
+public class ShardedCertainBookStore extends AbstractPartitionedCertainBookStore {
+
+	/** The shards. */
+	private final Shard[] shards;
+
+	/**
+	 * Instantiates a new {@link ShardedCertainBookStore} with a shard per
+	 * processor.
+	 */
+	public ShardedCertainBookStore() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates a new {@link ShardedCertainBookStore}.
+	 *
+	 * @param numShards
+	 *            the number of shards
+	 */
+	public ShardedCertainBookStore(int numShards) {
+		super(numShards);
+		shards = new Shard[numShards];
+
+		for (int i = 0; i < numShards; i++) {
+			shards[i] = new Shard("shard-" + i);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#close()
+	 */
+	@Override
+	public void close() {
+		for (Shard shard : shards) {
+			shard.stop();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore#execute(
+	 * int[], boolean,
+	 * com.acertainbookstore.business.AbstractPartitionedCertainBookStore.
+	 * Operation)
+	 */
+	@Override
+	protected <R> R execute(int[] partitionIndices, boolean write, Operation<R> operation)
+			throws BookStoreException {
+		if (partitionIndices.length == 0) {
+			return operation.run();
+		}
+
+		if (partitionIndices.length == 1) {
+			return shards[partitionIndices[0]].call(operation);
+		}
+
+		CompletableFuture<Void> released = new CompletableFuture<>();
+
+		try {
+			for (int index : partitionIndices) {
+				shards[index].hold(released);
+			}
+
+			return operation.run();
+		} finally {
+			released.complete(null);
+		}
+	}
+
+	/**
+	 * Rethrows the failure of an operation run by the owner of a shard.
+	 *
+	 * @param ex
+	 *            the failure
+	 * @return never returns
+	 * @throws BookStoreException
+	 *             if the operation failed with one
+	 */
+	private static RuntimeException rethrow(CompletionException ex) throws BookStoreException {
+		Throwable cause = ex.getCause();
+
+		if (cause instanceof BookStoreException) {
+			throw (BookStoreException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+
+		throw ex;
+	}
+
+	/**
+	 * A shard of the books and the thread owning it.
+	 */
+	private static final class Shard implements Runnable {
+
+		/** The messages sent to the owner, in the order they were sent. */
+		private final ConcurrentLinkedQueue<Runnable> messages = new ConcurrentLinkedQueue<>();
+
+		/** The owner of the shard. */
+		private final Thread owner;
+
+		/** Whether the owner is about to park, waiting for messages. */
+		private volatile boolean idle = false;
+
+		/** Whether the owner stops. Only used by the owner. */
+		private boolean stopped = false;
+
+		/**
+		 * Instantiates a new shard and starts its owner.
+		 *
+		 * @param name
+		 *            the name of the owner
+		 */
+		private Shard(String name) {
+			owner = new Thread(this, name);
+			owner.setDaemon(true);
+			owner.start();
+		}
+
+		/**
+		 * Sends a message to the owner.
+		 *
+		 * @param message
+		 *            the message
+		 */
+		private void send(Runnable message) {
+			messages.offer(message);
+
+			// The owner checks the queue again after becoming idle, so either
+			// it sees the message or it is unparked.
+			if (idle) {
+				LockSupport.unpark(owner);
+			}
+		}
+
+		/**
+		 * Runs an operation on the owner and waits for its result.
+		 *
+		 * @param <R>
+		 *            the type of the result
+		 * @param operation
+		 *            the operation
+		 * @return the result of the operation
+		 * @throws BookStoreException
+		 *             if the operation fails
+		 */
+		private <R> R call(Operation<R> operation) throws BookStoreException {
+			CompletableFuture<R> result = new CompletableFuture<>();
+
+			send(() -> {
+				try {
+					result.complete(operation.run());
+				} catch (Throwable ex) {
+					result.completeExceptionally(ex);
+				}
+			});
+
+			try {
+				return result.join();
+			} catch (CompletionException ex) {
+				throw rethrow(ex);
+			}
+		}
+
+		/**
+		 * Stops the owner until the operation holding the shard releases it,
+		 * and waits until the owner stopped.
+		 *
+		 * @param released
+		 *            completed when the operation releases the shard
+		 */
+		private void hold(CompletableFuture<Void> released) {
+			CompletableFuture<Void> held = new CompletableFuture<>();
+
+			send(() -> {
+				held.complete(null);
+				released.join();
+			});
+
+			held.join();
+		}
+
+		/**
+		 * Stops the owner once it ran the messages sent before, and waits
+		 * until it did.
+		 */
+		private void stop() {
+			CompletableFuture<Void> done = new CompletableFuture<>();
+
+			send(() -> {
+				stopped = true;
+				done.complete(null);
+			});
+
+			done.join();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while (!stopped) {
+				Runnable message = messages.poll();
+
+				if (message != null) {
+					message.run();
+					continue;
+				}
+
+				idle = true;
+
+				if (messages.isEmpty()) {
+					LockSupport.park(this);
+				}
+
+				idle = false;
+			}
+		}
+	}
+}
@@ -9,8 +9,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.interfaces.BookStore;
@@ -27,19 +30,42 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager {
 
-	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, BookStoreBook> bookMap = null;
+	/** The mapping of books from ISBN to {@link BookStoreBook}, ordered by ISBN. */
+	private NavigableMap<Integer, BookStoreBook> bookMap = null;
 
 	/** Initializing lock */
 	private ReentrantReadWriteLock lock = null;
 
+	/** The immutable catalogue entries of the books, read without locking. */
+	private final BookCatalogue catalogue = new BookCatalogue();
+
+	/** The books with sale misses, most demanded first. */
+	private final DemandIndex demandIndex = new DemandIndex();
+
+	/** The inverted index of the titles and authors of the books. */
+	private final BookSearchIndex searchIndex = new BookSearchIndex();
+
+	/** The books in stock, ordered by price. */
+	private final BookRangeIndex<Float, Book> priceIndex = new BookRangeIndex<>(BookStoreBook::getPrice,
+			book -> book.getNumCopies() > 0, BookStoreBook::immutableBook);
+
+	/** The books, ordered by the number of copies. */
+	private final BookRangeIndex<Integer, StockBook> stockIndex = new BookRangeIndex<>(BookStoreBook::getNumCopies,
+			book -> true, BookStoreBook::immutableStockBook);
+
+	/** The copies reserved for checkouts, given back when they expire. */
+	private final Reservations reservations = new Reservations(this::releaseCopies);
+
+	/** The customers waiting for copies to be restocked. */
+	private final Backorders backorders = new Backorders();
+
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
 	public SingleLockConcurrentCertainBookStore() {
 		// Constructors are not synchronized
 		lock = new ReentrantReadWriteLock();
-		bookMap = new HashMap<>();
+		bookMap = new TreeMap<>();
 	}
 
 	private void validate(StockBook book) throws BookStoreException {
@@ -118,10 +144,20 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				validate(book);
 			}
 
+			List<BookStoreBook> addedBooks = new ArrayList<>();
+
 			for (StockBook book : bookSet) {
 				int isbn = book.getISBN();
-				bookMap.put(isbn, new BookStoreBook(book));
+				BookStoreBook addedBook = new BookStoreBook(book);
+				bookMap.put(isbn, addedBook);
+				addedBooks.add(addedBook);
 			}
+
+			catalogue.addBooks(addedBooks);
+			searchIndex.addBooks(addedBooks);
+			demandIndex.update(addedBooks);
+			stockIndex.update(addedBooks);
+			priceIndex.update(addedBooks);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -148,6 +184,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			}
 
 			BookStoreBook book;
+			List<BookStoreBook> updatedBooks = new ArrayList<>();
 
 			// Update the number of copies
 			for (BookCopy bookCopy : bookCopiesSet) {
@@ -155,10 +192,18 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				numCopies = bookCopy.getNumCopies();
 				book = bookMap.get(isbn);
 				book.addCopies(numCopies);
+				updatedBooks.add(book);
 			}
+
+			// Adding copies resets the sale misses.
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
+			priceIndex.update(updatedBooks);
 		} finally {
 			lock.writeLock().unlock();
 		}
+
+		serveBackorders(bookCopiesSet);
 	}
 
 	/*
@@ -179,6 +224,25 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int)
+	 */
+	public List<StockBook> getBooks(int afterISBN, int numBooks) throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		lock.readLock().lock();
+		try {
+			return bookMap.tailMap(afterISBN, false).values().stream()
+					.limit(numBooks)
+					.map(book -> book.immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -198,9 +262,16 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				validate(editorPickArg);
 			}
 
+			List<BookStoreBook> updatedBooks = new ArrayList<>();
+
 			for (BookEditorPick editorPickArg : editorPicks) {
-				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+				BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				updatedBooks.add(book);
 			}
+
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -217,6 +288,54 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		if (!buyCopies(bookCopiesToBuy, true)) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/**
+	 * Buys the copies of several orders one after the other, each atomically,
+	 * under a single acquisition of the lock.
+	 *
+	 * @param orders
+	 *            the copies to buy of every order
+	 * @return the exception every order failed with, or null for the orders
+	 *         which were bought
+	 */
+	public List<BookStoreException> buyOrders(List<Set<BookCopy>> orders) {
+		List<BookStoreException> failures = new ArrayList<>(orders.size());
+
+		// The lock is reentrant, so every order only counts it up and down.
+		lock.writeLock().lock();
+		try {
+			for (Set<BookCopy> order : orders) {
+				try {
+					buyBooks(order);
+					failures.add(null);
+				} catch (BookStoreException ex) {
+					failures.add(ex);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return failures;
+	}
+
+	/**
+	 * Buys the copies of the books if all of them are in stock.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the book copies to buy
+	 * @param recordSaleMisses
+	 *            whether the missing copies are recorded as sale misses
+	 * @return true, if the copies were bought
+	 * @throws BookStoreException
+	 *             if a book is invalid or not in the store
+	 */
+	private boolean buyCopies(Set<BookCopy> bookCopiesToBuy, boolean recordSaleMisses) throws BookStoreException {
+
 		// Check that all ISBNs that we buy are there first.
 		int isbn;
 		BookStoreBook book;
@@ -243,18 +362,35 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			// We throw exception now since we want to see how many books in the
 			// order incurred misses which is used by books in demand
 			if (saleMiss) {
-				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
-					book = bookMap.get(saleMissEntry.getKey());
-					book.addSaleMiss(saleMissEntry.getValue());
+				if (recordSaleMisses) {
+					List<BookStoreBook> missedBooks = new ArrayList<>();
+
+					for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+						book = bookMap.get(saleMissEntry.getKey());
+						book.addSaleMiss(saleMissEntry.getValue());
+						missedBooks.add(book);
+					}
+
+					demandIndex.update(missedBooks);
+					stockIndex.update(missedBooks);
 				}
-				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+
+				return false;
 			}
 
 			// Then make the purchase.
+			List<BookStoreBook> boughtBooks = new ArrayList<>();
+
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 				book = bookMap.get(bookCopyToBuy.getISBN());
 				book.buyCopies(bookCopyToBuy.getNumCopies());
+				boughtBooks.add(book);
 			}
+
+			demandIndex.update(boughtBooks);
+			stockIndex.update(boughtBooks);
+			priceIndex.update(boughtBooks);
+			return true;
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -264,37 +400,204 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * (non-Javadoc)
 	 * 
 	 * @see
-	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
-	 * Set)
+	 * com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
 	 */
-	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
-		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		if (ttlMillis <= 0) {
+			throw new BookStoreException("ttlMillis = " + ttlMillis + ", but it must be positive");
 		}
 
+		// The books are looked up before their copies are taken, so that the
+		// copies are never given back to a book added after a removal.
+		Map<BookCopy, BookStoreBook> reservedCopies = new HashMap<>();
 		lock.readLock().lock();
 
 		try {
-			for (Integer ISBN : isbnSet) {
-				validateISBNInStock(ISBN);
+			if (bookCopiesToReserve != null) {
+				for (BookCopy bookCopy : bookCopiesToReserve) {
+					if (bookCopy != null) {
+						reservedCopies.put(bookCopy, bookMap.get(bookCopy.getISBN()));
+					}
+				}
 			}
+		} finally {
+			lock.readLock().unlock();
+		}
 
-			return isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).immutableStockBook())
-					.collect(Collectors.toList());
+		// Reserved copies are taken out of the stock like bought ones, so a
+		// failed reservation counts as sale misses too.
+		buyBooks(bookCopiesToReserve);
+		return reservations.add(reservedCopies, ttlMillis);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#commitReservation(long)
+	 */
+	@Override
+	public void commitReservation(long reservationId) throws BookStoreException {
+		if (reservations.remove(reservationId) == null) {
+			throw new BookStoreException(BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		Map<BookCopy, BookStoreBook> bookCopies = reservations.remove(reservationId);
+
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		releaseCopies(bookCopies);
+	}
+
+	/**
+	 * Gives the copies of a released or expired reservation back to the books
+	 * they were taken from, unless these books were removed.
+	 *
+	 * @param bookCopies
+	 *            the reserved copies, and the books they were taken from
+	 */
+	private void releaseCopies(Map<BookCopy, BookStoreBook> bookCopies) {
+		lock.writeLock().lock();
+
+		try {
+			List<BookStoreBook> releasedBooks = new ArrayList<>();
+
+			for (Map.Entry<BookCopy, BookStoreBook> entry : bookCopies.entrySet()) {
+				BookStoreBook book = bookMap.get(entry.getKey().getISBN());
+
+				// The book may have been removed while the copies were reserved.
+				if (book != null && book == entry.getValue()) {
+					book.releaseCopies(entry.getKey().getNumCopies());
+					releasedBooks.add(book);
+				}
+			}
+
+			demandIndex.update(releasedBooks);
+			stockIndex.update(releasedBooks);
+			priceIndex.update(releasedBooks);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		serveBackorders(bookCopies.keySet());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBooks(java.util.Set,
+	 * boolean, long)
+	 */
+	@Override
+	public CompletableFuture<Boolean> awaitBooks(Set<BookCopy> bookCopies, boolean buy, long timeoutMillis)
+			throws BookStoreException {
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (timeoutMillis <= 0) {
+			throw new BookStoreException("timeoutMillis = " + timeoutMillis + ", but it must be positive");
+		}
+
+		lock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopy : bookCopies) {
+				validate(bookCopy);
+			}
 		} finally {
 			lock.readLock().unlock();
 		}
 
+		Backorders.Backorder backorder = backorders.add(bookCopies, buy, timeoutMillis);
+
+		// The copies may have been restocked before the backorder was placed.
+		serveBackorders(bookCopies);
+		return backorder.getResult();
+	}
+
+	/**
+	 * Fills the backorders waiting for the restocked books which can be
+	 * filled. Must be called without holding the locks of the store.
+	 *
+	 * @param bookCopies
+	 *            the restocked copies
+	 */
+	private void serveBackorders(Set<BookCopy> bookCopies) {
+		// Restocks are frequent and backorders rare, so skip the monitor.
+		if (backorders.isEmpty()) {
+			return;
+		}
+
+		List<Integer> isbns = bookCopies.stream().map(BookCopy::getISBN).collect(Collectors.toList());
+		backorders.serve(isbns, this::fillBackorder);
+	}
 
+	/**
+	 * Fills a backorder if its copies are in stock, buying them if asked to.
+	 * Copies bought for a backorder are not sale misses when they are not in
+	 * stock, since the miss was recorded when the customer started waiting.
+	 *
+	 * @param backorder
+	 *            the backorder
+	 * @return true, if the backorder was filled
+	 * @throws BookStoreException
+	 *             if a book was removed
+	 */
+	private boolean fillBackorder(Backorders.Backorder backorder) throws BookStoreException {
+		if (backorder.isBuy()) {
+			return buyCopies(backorder.getBookCopies(), false);
+		}
+
+		return areCopiesInStore(backorder.getBookCopies());
+	}
+
+	/**
+	 * Checks whether all the copies of the books are in stock.
+	 *
+	 * @param bookCopies
+	 *            the book copies
+	 * @return true, if all copies are in stock
+	 * @throws BookStoreException
+	 *             if a book is invalid or not in the store
+	 */
+	private boolean areCopiesInStore(Set<BookCopy> bookCopies) throws BookStoreException {
+		lock.readLock().lock();
+
+		try {
+			for (BookCopy bookCopy : bookCopies) {
+				validate(bookCopy);
+
+				if (!bookMap.get(bookCopy.getISBN()).areCopiesInStore(bookCopy.getNumCopies())) {
+					return false;
+				}
+			}
+
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
 	 */
-	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
@@ -302,18 +605,28 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		lock.readLock().lock();
 
 		try {
-			// Check that all ISBNs that we rate are there to start with.
 			for (Integer ISBN : isbnSet) {
 				validateISBNInStock(ISBN);
 			}
 
 			return isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).immutableBook())
+					.map(isbn -> bookMap.get(isbn).immutableStockBook())
 					.collect(Collectors.toList());
 		} finally {
 			lock.readLock().unlock();
 		}
 
+
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		// Catalogue entries are immutable, so no locks are needed.
+		return catalogue.getBooks(isbnSet);
 	}
 
 	/*
@@ -365,6 +678,73 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#searchBooks(java.lang.String,
+	 * int)
+	 */
+	@Override
+	public List<Book> searchBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// The index only changes when books are added or removed.
+		lock.readLock().lock();
+
+		try {
+			return searchIndex.search(query, numBooks).stream()
+					.map(isbn -> bookMap.get(isbn).immutableBook())
+					.collect(Collectors.toList());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#autocompleteBooks(java.lang.
+	 * String, int)
+	 */
+	@Override
+	public List<Book> autocompleteBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		lock.readLock().lock();
+
+		try {
+			return searchIndex.complete(query, numBooks, this::getAverageRating).stream()
+					.map(isbn -> bookMap.get(isbn).immutableBook())
+					.collect(Collectors.toList());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the average rating of the book, by which completions are ranked.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the average rating, or -1 if the book was not rated
+	 */
+	private double getAverageRating(int isbn) {
+		return bookMap.get(isbn).getAverageRating();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -382,7 +762,94 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 */
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException();
+		lock.readLock().lock();
+
+		try {
+			return demandIndex.getBooksInDemand();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(int)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		lock.readLock().lock();
+
+		try {
+			return demandIndex.getBooksInDemand(numBooks);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooksByPrice(float,
+	 * float, int, int)
+	 */
+	@Override
+	public List<Book> getBooksByPrice(float minPrice, float maxPrice, int afterISBN, int numBooks)
+			throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		lock.readLock().lock();
+
+		try {
+			return priceIndex.getBooks(minPrice, maxPrice, afterISBN, numBooks);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByNumCopies(int,
+	 * int, int, int)
+	 */
+	@Override
+	public List<StockBook> getBooksByNumCopies(int minCopies, int maxCopies, int afterISBN, int numBooks)
+			throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		lock.readLock().lock();
+
+		try {
+			return stockIndex.getBooks(minCopies, maxCopies, afterISBN, numBooks);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks the start and size of a page of books.
+	 *
+	 * @param afterISBN
+	 *            the ISBN after which the page starts
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @throws BookStoreException
+	 *             if the ISBN or the number of books is negative
+	 */
+	private void validatePage(int afterISBN, int numBooks) throws BookStoreException {
+		if (afterISBN < 0) {
+			throw new BookStoreException(BookStoreConstants.ISBN + afterISBN + BookStoreConstants.INVALID);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
 	}
 
 	/*
@@ -405,10 +872,17 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 
 		try {
 			bookMap.clear();
+			catalogue.removeAllBooks();
+			demandIndex.clear();
+			priceIndex.clear();
+			stockIndex.clear();
+			reservations.clear();
+			searchIndex.clear();
 		} finally {
 			lock.writeLock().unlock();
 		}
 
+		backorders.cancelAll(new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
 	}
 
 	/*
@@ -435,11 +909,21 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 				}
 			}
 
+			List<BookStoreBook> removedBooks = new ArrayList<>();
+
 			for (int isbn : isbnSet) {
-				bookMap.remove(isbn);
+				removedBooks.add(bookMap.remove(isbn));
 			}
+
+			catalogue.removeBooks(isbnSet);
+			demandIndex.remove(isbnSet);
+			priceIndex.remove(isbnSet);
+			stockIndex.remove(isbnSet);
+			searchIndex.removeBooks(removedBooks);
 		} finally {
 			lock.writeLock().unlock();
 		}
+
+		backorders.cancel(isbnSet, new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
 	}
 }
@@ -2,19 +2,21 @@ package com.acertainbookstore.business;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.interfaces.BookStore;
@@ -27,26 +29,151 @@ import com.acertainbookstore.utils.BookStoreUtility;
 /** {@link TwoLevelLockingConcurrentCertainBookStore} implements the {@link BookStore} and
  * {@link StockManager} functionalities.
  *
+ * Its locks are taken through a {@link LockManager}: operations on several
+ * books lock the store in the intention modes IS and IX and then their books
+ * shared or exclusively, in ascending order of their ISBNs, operations
+ * changing the set of books lock the store exclusively, and operations on a
+ * single book only lock the book. The manager counts the acquisitions, waits
+ * and wait time of every lock and reports the hottest books.
+ *
+ * Reads of books by ISBN and by page copy the books without locks and
+ * validate a version of every book afterwards, like a sequence lock. Requests
+ * changing several books mark all of them before unmarking any, so the copies
+ * are consistent with each other, and a read falls back to the locks if
+ * writers keep changing the books.
+ *
+ * With copy shares (<code>-Descrow=N</code>), the copies of every book are
+ * split into shares, so that purchases of the same book take their copies
+ * from different shares at the same time, see {@link EscrowCounter}. With a
+ * rating staleness (<code>-Dratingstaleness=MS</code>), ratings are
+ * validated and answered right away, and applied to the books in batches at
+ * most that many milliseconds later, see {@link RatingIngestor}.
+ *
  * @see BookStore
  * @see StockManager
  */
 public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager {
 
-	private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-	private Lock globalExclusiveLock = readWriteLock.writeLock();
-	private Lock globalSharedLock = readWriteLock.readLock();
+	/**
+	 * The locks of the store and its books. Operations on several books lock
+	 * the store in an intention mode and then their books, operations
+	 * changing the set of books lock the store exclusively, and operations on
+	 * a single book only lock the book.
+	 */
+	private final LockManager lockManager;
+
+	/** The mapping of books from ISBN to {@link BookStoreBook}, ordered by ISBN. */
+	private NavigableMap<Integer, BookStoreBook> bookMap = null;
+
+	/**
+	 * The version of the set of books in {@link #bookMap}, which readers
+	 * copying books without locks validate like the versions of the books.
+	 */
+	private final StampedLock bookSetVersion = new StampedLock();
+
+	/**
+	 * The number of times books are copied without locks before they are read
+	 * under locks, when writers keep changing them.
+	 */
+	private static final int MAX_OPTIMISTIC_READS = 4;
+
+	/**
+	 * The committed versions of the books, which full-catalogue reads take
+	 * consistent snapshots of without locking.
+	 */
+	private final VersionedBookMap versionedBookMap = new VersionedBookMap();
+
+	/** The immutable catalogue entries of the books, read without locking. */
+	private final BookCatalogue catalogue = new BookCatalogue();
+
+	/** The books with sale misses, most demanded first. */
+	private final DemandIndex demandIndex = new DemandIndex();
+
+	/** The inverted index of the titles and authors of the books. */
+	private final BookSearchIndex searchIndex = new BookSearchIndex();
+
+	/** The books in stock, ordered by price. */
+	private final BookRangeIndex<Float, Book> priceIndex = new BookRangeIndex<>(BookStoreBook::getPrice,
+			book -> book.getNumCopies() > 0, BookStoreBook::immutableBook);
+
+	/** The books, ordered by the number of copies. */
+	private final BookRangeIndex<Integer, StockBook> stockIndex = new BookRangeIndex<>(BookStoreBook::getNumCopies,
+			book -> true, BookStoreBook::immutableStockBook);
+
+	/** The copies reserved for checkouts, given back when they expire. */
+	private final Reservations reservations = new Reservations(this::releaseCopies);
+
+	/** The customers waiting for copies to be restocked. */
+	private final Backorders backorders = new Backorders();
+
+	/** The concurrent purchases of the same book, applied in batches. */
+	private final PurchaseCombiner purchaseCombiner = new PurchaseCombiner(this::buyCombined);
+
+	/** The number of shares the copies of every book are split into, or 0. */
+	private final int numCopyShares;
+
+	/** The ratings not applied to the books yet, or null if ratings are applied right away. */
+	private final RatingIngestor ratingIngestor;
+
+	/** Called after every batch of ratings is applied, or null. */
+	private volatile Runnable ratingsListener = null;
 
-	/** The mapping of books from ISBN to {@link BookStoreBook}. */
-	private Map<Integer, BookStoreBook> bookMap = null;
-	//private ReentrantReadWriteLock databaseLock = null;
-	private ConcurrentHashMap<Integer, ReentrantReadWriteLock> lockMap = null;
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
 	public TwoLevelLockingConcurrentCertainBookStore() {
+		this(0);
+	}
+
+	/**
+	 * Instantiates a new {@link CertainBookStore} which splits the copies of
+	 * every book into shares, so that purchases of the same book can run at
+	 * the same time.
+	 *
+	 * @param numCopyShares
+	 *            the number of shares, or 0 not to split the copies
+	 * @see EscrowCounter
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(int numCopyShares) {
+		this(numCopyShares, 0);
+	}
+
+	/**
+	 * Instantiates a new {@link CertainBookStore} which can apply the ratings
+	 * of the books in batches, after the customers rating them are answered.
+	 *
+	 * @param numCopyShares
+	 *            the number of shares, or 0 not to split the copies
+	 * @param ratingStalenessMillis
+	 *            the time in milliseconds after which ratings are applied at
+	 *            the latest, or 0 to apply them right away
+	 * @see RatingIngestor
+	 */
+	public TwoLevelLockingConcurrentCertainBookStore(int numCopyShares, long ratingStalenessMillis) {
+		this(numCopyShares, ratingStalenessMillis, new LockManager());
+	}
+
+	/**
+	 * Instantiates a new {@link CertainBookStore} which takes its locks
+	 * through the given lock manager.
+	 *
+	 * @param numCopyShares
+	 *            the number of shares, or 0 not to split the copies
+	 * @param ratingStalenessMillis
+	 *            the time in milliseconds after which ratings are applied at
+	 *            the latest, or 0 to apply them right away
+	 * @param lockManager
+	 *            the locks of the store and its books
+	 */
+	protected TwoLevelLockingConcurrentCertainBookStore(int numCopyShares, long ratingStalenessMillis,
+			LockManager lockManager) {
 		// Constructors are not synchronized
-		bookMap = new HashMap<>();
-		lockMap = new ConcurrentHashMap<>();
+		this.lockManager = lockManager;
+		this.numCopyShares = numCopyShares;
+		this.ratingIngestor = ratingStalenessMillis > 0
+				? new RatingIngestor(this::foldRatings, ratingStalenessMillis) : null;
+		// Operations on a single book look books up without locking the store.
+		bookMap = new ConcurrentSkipListMap<>();
 	}
 
 	private void validateISBN(int ISBN) throws BookStoreException {
@@ -61,32 +188,159 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
 
 
-	private void lockLocal(int isbn, boolean isWriteLock) throws BookStoreException {
-		ReentrantReadWriteLock bookLock = lockMap.computeIfAbsent(isbn, k -> new ReentrantReadWriteLock());
-		if (isWriteLock) {
-			bookLock.writeLock().lock();
-		} else {
-			bookLock.readLock().lock();
+	/**
+	 * Locks a book for an operation on this book only, without locking the
+	 * store. The book's exclusive lock alone excludes every other operation
+	 * on it, since the operations on several books lock their books too, and
+	 * removing books locks them.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param isWriteLock
+	 *            whether to lock the book exclusively rather than shared
+	 * @return the book, locked
+	 * @throws BookStoreException
+	 *             if the ISBN is invalid or the book is not in the store
+	 */
+	private BookStoreBook lockBook(int isbn, boolean isWriteLock) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(isbn)) {
+			throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.INVALID);
+		}
+
+		if (lockManager.lockExistingBook(isbn, isWriteLock)) {
+			// The book may have been removed while waiting for the lock.
+			BookStoreBook book = bookMap.get(isbn);
+
+			if (book != null) {
+				return book;
+			}
+
+			lockManager.unlockBook(isbn, isWriteLock);
 		}
+
+		throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.NOT_AVAILABLE);
 	}
 
+	/**
+	 * Upgrades the shared lock of a book locked by
+	 * {@link #lockBook(int, boolean)} to an exclusive lock. If another thread
+	 * is upgrading the book, the shared lock is released and the book locked
+	 * exclusively, so it may have been replaced meanwhile.
+	 *
+	 * @param book
+	 *            the book, locked shared
+	 * @return the book, locked exclusively
+	 * @throws BookStoreException
+	 *             if the book was removed meanwhile, in which case it is
+	 *             unlocked
+	 */
+	private BookStoreBook upgradeBook(BookStoreBook book) throws BookStoreException {
+		if (lockManager.upgradeBook(book.getISBN())) {
+			return book;
+		}
 
-	private void releaseLocal(int isbn, boolean isWriteLock) {
-		ReentrantReadWriteLock bookLock = lockMap.get(isbn);
+		unlockBook(book, false);
+		return lockBook(book.getISBN(), true);
+	}
 
-		if (lockMap == null || (!bookMap.containsKey(isbn))) return;
+	/**
+	 * Unlocks a book locked by {@link #lockBook(int, boolean)}.
+	 *
+	 * @param book
+	 *            the book
+	 * @param isWriteLock
+	 *            whether the book is locked exclusively rather than shared
+	 */
+	private void unlockBook(BookStoreBook book, boolean isWriteLock) {
+		lockManager.unlockBook(book.getISBN(), isWriteLock);
+	}
 
-		try {
-			if (isWriteLock) {
-				bookLock.writeLock().unlock();
-			} else {
-				bookLock.readLock().unlock();
+	/**
+	 * Copies books without locking them, retrying if they are changed
+	 * meanwhile. The versions of all books are validated after all of them
+	 * are copied, so the copies are consistent with each other, as requests
+	 * changing several books mark all of them as being changed before
+	 * unmarking any, see {@link BookWriteSet}. Purchases of books whose copies
+	 * are split into shares do not mark the books, so their number of copies
+	 * may be fuzzy, as when reading them under shared locks.
+	 *
+	 * @param lookup
+	 *            finds the books to copy, or returns null to read them under
+	 *            locks instead
+	 * @return the copies, or null if the books are to be read under locks
+	 */
+	private List<StockBook> copyOptimistically(Supplier<List<BookStoreBook>> lookup) {
+		for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+			long setVersion = bookSetVersion.tryOptimisticRead();
+
+			if (setVersion == 0) {
+				continue;
+			}
+
+			List<BookStoreBook> books = lookup.get();
+
+			if (books == null) {
+				return null;
+			}
+
+			long[] versions = new long[books.size()];
+			List<StockBook> copies = new ArrayList<>(versions.length);
+
+			for (int i = 0; i < versions.length; i++) {
+				versions[i] = books.get(i).getVersion();
+			}
+
+			for (BookStoreBook book : books) {
+				copies.add(book.immutableStockBook());
+			}
+
+			if (hasVersions(books, versions) && bookSetVersion.validate(setVersion)) {
+				return copies;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Checks if books were not changed since their versions were read.
+	 *
+	 * @param books
+	 *            the books
+	 * @param versions
+	 *            the versions of the books
+	 * @return true, if all books still have their versions
+	 */
+	private static boolean hasVersions(List<BookStoreBook> books, long[] versions) {
+		for (int i = 0; i < versions.length; i++) {
+			if (!books.get(i).hasVersion(versions[i])) {
+				return false;
 			}
-		} catch (IllegalMonitorStateException e) {
-			// Handle case where lock wasn't held, but continue execution
 		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the locks of the store and its books, e.g. to read their
+	 * statistics.
+	 *
+	 * @return the lock manager
+	 */
+	public LockManager getLockManager() {
+		return lockManager;
 	}
 
+	/**
+	 * Gets the ISBNs of the books of which copies are given.
+	 *
+	 * @param bookCopies
+	 *            the book copies
+	 * @return the ISBNs
+	 */
+	private static List<Integer> isbnsOf(Collection<BookCopy> bookCopies) {
+		return bookCopies.stream().map(BookCopy::getISBN).collect(Collectors.toList());
+	}
 
 	private void validate(StockBook book) throws BookStoreException {
 		int isbn = book.getISBN();
@@ -155,7 +409,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		if (bookSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		globalExclusiveLock.lock();
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.X, bookSet.size());
 
 		try {
 			// Check if all are there
@@ -163,18 +417,38 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				validate(book);
 			}
 
+			List<BookStoreBook> addedBooks = new ArrayList<>();
+
 			for (StockBook book : bookSet) {
-				int isbn = book.getISBN();
-				lockMap.put(isbn, new ReentrantReadWriteLock());
-				bookMap.put(isbn, new BookStoreBook(book));
+				BookStoreBook addedBook = new BookStoreBook(book);
+
+				if (numCopyShares > 0) {
+					addedBook.splitCopies(numCopyShares);
+				}
+
+				addedBooks.add(addedBook);
 			}
 
+			long stamp = bookSetVersion.writeLock();
 
-		} finally {
-			for (StockBook book : bookSet) {
-				releaseLocal(book.getISBN(), true);
+			try {
+				for (BookStoreBook addedBook : addedBooks) {
+					lockManager.addBook(addedBook.getISBN());
+					bookMap.put(addedBook.getISBN(), addedBook);
+				}
+			} finally {
+				bookSetVersion.unlockWrite(stamp);
 			}
-			globalExclusiveLock.unlock();
+
+			versionedBookMap.publish(addedBooks);
+			demandIndex.update(addedBooks);
+			stockIndex.update(addedBooks);
+			priceIndex.update(addedBooks);
+			catalogue.addBooks(addedBooks);
+			searchIndex.addBooks(addedBooks);
+
+		} finally {
+			lockManager.unlockStore(storeMode);
 		}
 
 	}
@@ -193,32 +467,78 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		globalSharedLock.lock();
+		if (bookCopiesSet.size() == 1) {
+			addCopiesOfBook(bookCopiesSet.iterator().next());
+			serveBackorders(bookCopiesSet);
+			return;
+		}
+
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IX, bookCopiesSet.size());
+		List<Integer> lockedISBNs = Collections.emptyList();
+		BookWriteSet writeSet = new BookWriteSet();
 
 		try {
 			for (BookCopy bookCopy : bookCopiesSet) {
 				validate(bookCopy);
 			}
 
+			lockedISBNs = isbnsOf(bookCopiesSet);
+			lockManager.lockBooks(lockedISBNs, true);
 			BookStoreBook book;
-
+			List<BookStoreBook> updatedBooks = new ArrayList<>();
 
 			// Update the number of copies
 			for (BookCopy bookCopy : bookCopiesSet) {
 				isbn = bookCopy.getISBN();
-				lockLocal(isbn, true);
 				numCopies = bookCopy.getNumCopies();
-				book = bookMap.get(isbn);
+				book = writeSet.add(bookMap.get(isbn));
 				book.addCopies(numCopies);
-
+				updatedBooks.add(book);
 			}
+
+			writeSet.end();
+			versionedBookMap.publish(updatedBooks);
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
+			priceIndex.update(updatedBooks);
 		} finally {
-			for (BookCopy bookCopy : bookCopiesSet) {
-				releaseLocal(bookCopy.getISBN(), true);
-			}
-			globalSharedLock.unlock();
+			writeSet.end();
+			lockManager.unlockBooks(lockedISBNs, true);
+			lockManager.unlockStore(storeMode);
 		}
 
+		serveBackorders(bookCopiesSet);
+	}
+
+	/**
+	 * Adds copies of a single book, locking only the book.
+	 *
+	 * @param bookCopy
+	 *            the copies to add
+	 * @throws BookStoreException
+	 *             if the copies are invalid or the book is not in the store
+	 */
+	private void addCopiesOfBook(BookCopy bookCopy) throws BookStoreException {
+		BookStoreBook book = lockBook(bookCopy.getISBN(), true);
+
+		try {
+			int numCopies = bookCopy.getNumCopies();
+
+			if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+				throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+			}
+
+			long stamp = book.beginWrite();
+			book.addCopies(numCopies);
+			book.endWrite(stamp);
+			List<BookStoreBook> updatedBooks = Collections.singletonList(book);
+			versionedBookMap.publish(updatedBooks);
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
+			priceIndex.update(updatedBooks);
+		} finally {
+			unlockBook(book, true);
+		}
 	}
 
 	/*
@@ -227,25 +547,47 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
 	public List<StockBook> getBooks() throws BookStoreException {
-		globalSharedLock.lock();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		try {
-			for (BookStoreBook book : bookMapValues) {
-				lockLocal(book.getISBN(), false);
-			}
-			return bookMapValues.stream()
-					.map(book -> book.immutableStockBook())
-					.collect(Collectors.toList());
-		}
-		finally {
-			for (BookStoreBook book : bookMapValues) {
-				releaseLocal(book.getISBN(), false);
-			}
-			globalSharedLock.unlock();
+		// The snapshot is consistent without blocking writers.
+		return versionedBookMap.snapshot();
+	}
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int)
+	 */
+	public List<StockBook> getBooks(int afterISBN, int numBooks) throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		List<StockBook> copies = copyOptimistically(() -> bookMap.tailMap(afterISBN, false).values().stream()
+				.limit(numBooks)
+				.collect(Collectors.toList()));
+
+		if (copies != null) {
+			return copies;
 		}
 
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS, numBooks);
+		List<BookStoreBook> page = bookMap.tailMap(afterISBN, false).values().stream()
+				.limit(numBooks)
+				.collect(Collectors.toList());
+		List<Integer> lockedISBNs = page.stream().map(BookStoreBook::getISBN).collect(Collectors.toList());
 
+		try {
+			// Only the books of the page are locked.
+			lockManager.lockBooks(lockedISBNs, false);
+
+			try {
+				return page.stream()
+						.map(BookStoreBook::immutableStockBook)
+						.collect(Collectors.toList());
+			} finally {
+				lockManager.unlockBooks(lockedISBNs, false);
+			}
+		} finally {
+			lockManager.unlockStore(storeMode);
+		}
 	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -258,25 +600,35 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		if (editorPicks == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		int isbnValue;
-		globalExclusiveLock.lock();
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.X, editorPicks.size());
+		List<Integer> lockedISBNs = Collections.emptyList();
+		BookWriteSet writeSet = new BookWriteSet();
 
 		try {
 			for (BookEditorPick editorPickArg : editorPicks) {
 				validate(editorPickArg);
 			}
-			for (BookEditorPick editorPickArg : editorPicks) {
-				lockLocal(editorPickArg.getISBN(), true);
-			}
+
+			// Operations on a single book do not lock the store.
+			lockedISBNs = editorPicks.stream().map(BookEditorPick::getISBN).collect(Collectors.toList());
+			lockManager.lockBooks(lockedISBNs, true);
+
+			List<BookStoreBook> updatedBooks = new ArrayList<>();
 
 			for (BookEditorPick editorPickArg : editorPicks) {
-				bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+				BookStoreBook book = writeSet.add(bookMap.get(editorPickArg.getISBN()));
+				book.setEditorPick(editorPickArg.isEditorPick());
+				updatedBooks.add(book);
 			}
+
+			writeSet.end();
+			versionedBookMap.publish(updatedBooks);
+			demandIndex.update(updatedBooks);
+			stockIndex.update(updatedBooks);
 		} finally {
-			for (BookEditorPick editorPickArg : editorPicks) {
-				releaseLocal(editorPickArg.getISBN(), true);
-			}
-			globalExclusiveLock.unlock();
+			writeSet.end();
+			lockManager.unlockBooks(lockedISBNs, true);
+			lockManager.unlockStore(storeMode);
 		}
 
 	}
@@ -294,7 +646,215 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		globalSharedLock.lock();
+		boolean bought;
+
+		// Launches send many purchases of one book at once, which would
+		// otherwise queue on its write lock one by one.
+		if (bookCopiesToBuy.size() == 1 && numCopyShares > 0) {
+			bought = buyShared(bookCopiesToBuy.iterator().next());
+		} else if (bookCopiesToBuy.size() == 1) {
+			bought = purchaseCombiner.buy(bookCopiesToBuy.iterator().next());
+		} else {
+			bought = buyCopies(bookCopiesToBuy, true);
+		}
+
+		if (!bought) {
+			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+		}
+	}
+
+	/**
+	 * Buys the copies of several orders one after the other, each atomically,
+	 * under a single acquisition of the locks of all their books.
+	 *
+	 * @param orders
+	 *            the copies to buy of every order
+	 * @return the exception every order failed with, or null for the orders
+	 *         which were bought
+	 */
+	public List<BookStoreException> buyOrders(List<Set<BookCopy>> orders) {
+		List<BookStoreException> failures = new ArrayList<>(orders.size());
+		Set<Integer> lockedISBNs = new TreeSet<>();
+
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IX);
+		try {
+			// Books are only removed with the store locked exclusively, so the
+			// orders stay valid until the books are unlocked. Invalid orders
+			// are rejected up front, since buyCopies would otherwise release
+			// locks this batch holds.
+			for (Set<BookCopy> order : orders) {
+				BookStoreException failure = null;
+
+				try {
+					if (order == null) {
+						throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+					}
+
+					for (BookCopy bookCopy : order) {
+						validate(bookCopy);
+					}
+				} catch (BookStoreException ex) {
+					failure = ex;
+				}
+
+				failures.add(failure);
+
+				if (failure == null) {
+					for (BookCopy bookCopy : order) {
+						lockedISBNs.add(bookCopy.getISBN());
+					}
+				}
+			}
+
+			// The books are locked in ascending order of their ISBNs, so two
+			// batches never wait for each other.
+			lockManager.lockBooks(lockedISBNs, true);
+
+			for (int i = 0; i < orders.size(); i++) {
+				if (failures.get(i) == null) {
+					try {
+						// The locks are reentrant, so the order only counts
+						// them up and down.
+						if (!buyCopies(orders.get(i), true)) {
+							failures.set(i,
+									new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
+						}
+					} catch (BookStoreException ex) {
+						failures.set(i, ex);
+					}
+				}
+			}
+		} finally {
+			lockManager.unlockBooks(lockedISBNs, true);
+			lockManager.unlockStore(storeMode);
+		}
+
+		return failures;
+	}
+
+	/**
+	 * Buys copies of a single book whose copies are split into shares. The
+	 * book is only read-locked, so that purchases of the book run at the same
+	 * time, taking their copies from different shares.
+	 *
+	 * @param bookCopy
+	 *            the copies to buy
+	 * @return true, if the copies were bought
+	 * @throws BookStoreException
+	 *             if the copies are invalid or the book is not in the store
+	 */
+	private boolean buyShared(BookCopy bookCopy) throws BookStoreException {
+		BookStoreBook book = lockBook(bookCopy.getISBN(), false);
+
+		try {
+			int numCopies = bookCopy.getNumCopies();
+
+			if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+				throw new BookStoreException(BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID);
+			}
+
+			boolean bought = book.buyCopiesOrMiss(numCopies);
+
+			// The versions and indexes read the state of the book when they are
+			// updated, so the last purchase to update them leaves them current.
+			List<BookStoreBook> changedBooks = Collections.singletonList(book);
+			versionedBookMap.publish(changedBooks);
+			demandIndex.update(changedBooks);
+			stockIndex.update(changedBooks);
+
+			if (bought) {
+				priceIndex.update(changedBooks);
+			}
+
+			return bought;
+		} finally {
+			unlockBook(book, false);
+		}
+	}
+
+	/**
+	 * Applies a batch of purchases of a book in one critical section, each
+	 * purchase buying its copies if they are in stock and recording them as
+	 * sale misses otherwise, in the order of the purchases. Like the other
+	 * operations on a single book, it only locks the book.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param purchases
+	 *            the purchases
+	 */
+	private void buyCombined(int isbn, List<PurchaseCombiner.Purchase> purchases) {
+		BookStoreBook book;
+
+		try {
+			book = lockBook(isbn, true);
+		} catch (BookStoreException ex) {
+			for (PurchaseCombiner.Purchase purchase : purchases) {
+				purchase.setFailure(ex);
+			}
+
+			return;
+		}
+
+		boolean changed = false;
+		boolean bought = false;
+
+		try {
+			long stamp = book.beginWrite();
+
+			try {
+				for (PurchaseCombiner.Purchase purchase : purchases) {
+					int numCopies = purchase.getBookCopy().getNumCopies();
+
+					if (BookStoreUtility.isInvalidNoCopies(numCopies)) {
+						purchase.setFailure(new BookStoreException(
+								BookStoreConstants.NUM_COPIES + numCopies + BookStoreConstants.INVALID));
+						continue;
+					}
+
+					changed = true;
+
+					if (book.areCopiesInStore(numCopies)) {
+						book.buyCopies(numCopies);
+						purchase.setBought(true);
+						bought = true;
+					} else {
+						book.addSaleMiss(numCopies - book.getNumCopies());
+					}
+				}
+			} finally {
+				book.endWrite(stamp);
+			}
+
+			if (changed) {
+				List<BookStoreBook> changedBooks = Collections.singletonList(book);
+				versionedBookMap.publish(changedBooks);
+				demandIndex.update(changedBooks);
+				stockIndex.update(changedBooks);
+
+				if (bought) {
+					priceIndex.update(changedBooks);
+				}
+			}
+		} finally {
+			unlockBook(book, true);
+		}
+	}
+
+	/**
+	 * Buys the copies of the books if all of them are in stock.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the book copies to buy
+	 * @param recordSaleMisses
+	 *            whether the missing copies are recorded as sale misses
+	 * @return true, if the copies were bought
+	 * @throws BookStoreException
+	 *             if a book is invalid or not in the store
+	 */
+	private boolean buyCopies(Set<BookCopy> bookCopiesToBuy, boolean recordSaleMisses) throws BookStoreException {
+
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IX, bookCopiesToBuy.size());
 
 		// Check that all ISBNs that we buy are there first.
 		int isbn;
@@ -302,13 +862,19 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		Boolean saleMiss = false;
 
 		Map<Integer, Integer> salesMisses = new HashMap<>();
+		List<Integer> lockedISBNs = Collections.emptyList();
+		BookWriteSet writeSet = new BookWriteSet();
 
 		try {
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				isbn = bookCopyToBuy.getISBN();
-
 				validate(bookCopyToBuy);
-				lockLocal(isbn, true);
+			}
+
+			lockedISBNs = isbnsOf(bookCopiesToBuy);
+			lockManager.lockBooks(lockedISBNs, true);
+
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				isbn = bookCopyToBuy.getISBN();
 				book = bookMap.get(isbn);
 
 				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
@@ -321,24 +887,43 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			// We throw exception now since we want to see how many books in the
 			// order incurred misses which is used by books in demand
 			if (saleMiss) {
-				for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
-					book = bookMap.get(saleMissEntry.getKey());
-					book.addSaleMiss(saleMissEntry.getValue());
+				if (recordSaleMisses) {
+					List<BookStoreBook> missedBooks = new ArrayList<>();
+
+					for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
+						book = writeSet.add(bookMap.get(saleMissEntry.getKey()));
+						book.addSaleMiss(saleMissEntry.getValue());
+						missedBooks.add(book);
+					}
+
+					writeSet.end();
+					versionedBookMap.publish(missedBooks);
+					demandIndex.update(missedBooks);
+					stockIndex.update(missedBooks);
 				}
-				throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
+
+				return false;
 			}
 
 			// Then make the purchase.
+			List<BookStoreBook> boughtBooks = new ArrayList<>();
+
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				book = bookMap.get(bookCopyToBuy.getISBN());
+				book = writeSet.add(bookMap.get(bookCopyToBuy.getISBN()));
 				book.buyCopies(bookCopyToBuy.getNumCopies());
+				boughtBooks.add(book);
 			}
 
+			writeSet.end();
+			versionedBookMap.publish(boughtBooks);
+			demandIndex.update(boughtBooks);
+			stockIndex.update(boughtBooks);
+			priceIndex.update(boughtBooks);
+			return true;
 		} finally {
-			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				releaseLocal(bookCopyToBuy.getISBN(), true);
-			}
-			globalSharedLock.unlock();
+			writeSet.end();
+			lockManager.unlockBooks(lockedISBNs, true);
+			lockManager.unlockStore(storeMode);
 		}
 
 
@@ -350,61 +935,269 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * (non-Javadoc)
 	 *
 	 * @see
-	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
-	 * Set)
+	 * com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
 	 */
-	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
-		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
-		}
-		globalSharedLock.lock();
-		try {
-			for (Integer ISBN : isbnSet) {
-				validateISBNInStock(ISBN);
-				lockLocal(ISBN, false);
-			}
-			return isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).immutableStockBook())
-					.collect(Collectors.toList());
-		} finally {
-			for (Integer ISBN : isbnSet) {
-				releaseLocal(ISBN, false);
-			}
-			globalSharedLock.unlock();
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		if (ttlMillis <= 0) {
+			throw new BookStoreException("ttlMillis = " + ttlMillis + ", but it must be positive");
 		}
 
+		// The books are looked up before their copies are taken, so that the
+		// copies are never given back to a book added after a removal.
+		Map<BookCopy, BookStoreBook> reservedCopies = new HashMap<>();
 
+		if (bookCopiesToReserve != null) {
+			for (BookCopy bookCopy : bookCopiesToReserve) {
+				if (bookCopy != null) {
+					reservedCopies.put(bookCopy, bookMap.get(bookCopy.getISBN()));
+				}
+			}
+		}
 
-
+		// Reserved copies are taken out of the stock like bought ones, so a
+		// failed reservation counts as sale misses too.
+		buyBooks(bookCopiesToReserve);
+		return reservations.add(reservedCopies, ttlMillis);
 	}
 
 	/*
 	 * (non-Javadoc)
 	 *
-	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 * @see com.acertainbookstore.interfaces.BookStore#commitReservation(long)
 	 */
-	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		if (isbnSet == null) {
-			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+	@Override
+	public void commitReservation(long reservationId) throws BookStoreException {
+		if (reservations.remove(reservationId) == null) {
+			throw new BookStoreException(BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
 		}
-		globalSharedLock.lock();
-		try {
-			// Check that all ISBNs that we rate are there to start with.
-			for (Integer ISBN : isbnSet) {
-				validateISBNInStock(ISBN);
-				lockLocal(ISBN, false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		Map<BookCopy, BookStoreBook> bookCopies = reservations.remove(reservationId);
+
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.RESERVATION + reservationId + BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		releaseCopies(bookCopies);
+	}
+
+	/**
+	 * Gives the copies of a released or expired reservation back to the books
+	 * they were taken from, unless these books were removed.
+	 *
+	 * @param bookCopies
+	 *            the reserved copies, and the books they were taken from
+	 */
+	private void releaseCopies(Map<BookCopy, BookStoreBook> bookCopies) {
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IX, bookCopies.size());
+		List<BookCopy> releasedCopies = bookCopies.entrySet().stream()
+				.filter(entry -> bookMap.get(entry.getKey().getISBN()) == entry.getValue())
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+		List<BookStoreBook> releasedBooks = new ArrayList<>();
+		BookWriteSet writeSet = new BookWriteSet();
+
+		try {
+			// The books may have been removed while the copies were reserved.
+			lockManager.lockBooks(isbnsOf(releasedCopies), true);
+
+			for (BookCopy bookCopy : releasedCopies) {
+				BookStoreBook book = writeSet.add(bookMap.get(bookCopy.getISBN()));
+				book.releaseCopies(bookCopy.getNumCopies());
+				releasedBooks.add(book);
 			}
 
-			return isbnSet.stream()
-					.map(isbn -> bookMap.get(isbn).immutableBook())
-					.collect(Collectors.toList());
+			writeSet.end();
+			versionedBookMap.publish(releasedBooks);
+			demandIndex.update(releasedBooks);
+			stockIndex.update(releasedBooks);
+			priceIndex.update(releasedBooks);
+		} finally {
+			writeSet.end();
+			lockManager.unlockBooks(isbnsOf(releasedCopies), true);
+			lockManager.unlockStore(storeMode);
+		}
+
+		serveBackorders(bookCopies.keySet());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBooks(java.util.Set,
+	 * boolean, long)
+	 */
+	@Override
+	public CompletableFuture<Boolean> awaitBooks(Set<BookCopy> bookCopies, boolean buy, long timeoutMillis)
+			throws BookStoreException {
+		if (bookCopies == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (timeoutMillis <= 0) {
+			throw new BookStoreException("timeoutMillis = " + timeoutMillis + ", but it must be positive");
+		}
+
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS);
+
+		try {
+			for (BookCopy bookCopy : bookCopies) {
+				validate(bookCopy);
+			}
+		} finally {
+			lockManager.unlockStore(storeMode);
+		}
+
+		Backorders.Backorder backorder = backorders.add(bookCopies, buy, timeoutMillis);
+
+		// The copies may have been restocked before the backorder was placed.
+		serveBackorders(bookCopies);
+		return backorder.getResult();
+	}
+
+	/**
+	 * Fills the backorders waiting for the restocked books which can be
+	 * filled. Must be called without holding the locks of the store.
+	 *
+	 * @param bookCopies
+	 *            the restocked copies
+	 */
+	private void serveBackorders(Set<BookCopy> bookCopies) {
+		// Restocks are frequent and backorders rare, so skip the monitor.
+		if (backorders.isEmpty()) {
+			return;
+		}
+
+		List<Integer> isbns = bookCopies.stream().map(BookCopy::getISBN).collect(Collectors.toList());
+		backorders.serve(isbns, this::fillBackorder);
+	}
+
+	/**
+	 * Fills a backorder if its copies are in stock, buying them if asked to.
+	 * Copies bought for a backorder are not sale misses when they are not in
+	 * stock, since the miss was recorded when the customer started waiting.
+	 *
+	 * @param backorder
+	 *            the backorder
+	 * @return true, if the backorder was filled
+	 * @throws BookStoreException
+	 *             if a book was removed
+	 */
+	private boolean fillBackorder(Backorders.Backorder backorder) throws BookStoreException {
+		if (backorder.isBuy()) {
+			return buyCopies(backorder.getBookCopies(), false);
+		}
+
+		return areCopiesInStore(backorder.getBookCopies());
+	}
+
+	/**
+	 * Checks whether all the copies of the books are in stock.
+	 *
+	 * @param bookCopies
+	 *            the book copies
+	 * @return true, if all copies are in stock
+	 * @throws BookStoreException
+	 *             if a book is invalid or not in the store
+	 */
+	private boolean areCopiesInStore(Set<BookCopy> bookCopies) throws BookStoreException {
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS, bookCopies.size());
+		List<Integer> lockedISBNs = Collections.emptyList();
+
+		try {
+			for (BookCopy bookCopy : bookCopies) {
+				validate(bookCopy);
+			}
+
+			lockedISBNs = isbnsOf(bookCopies);
+			lockManager.lockBooks(lockedISBNs, false);
+
+			for (BookCopy bookCopy : bookCopies) {
+				if (!bookMap.get(bookCopy.getISBN()).areCopiesInStore(bookCopy.getNumCopies())) {
+					return false;
+				}
+			}
+
+			return true;
+		} finally {
+			lockManager.unlockBooks(lockedISBNs, false);
+			lockManager.unlockStore(storeMode);
 		}
-		finally {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByISBN(java.util.
+	 * Set)
+	 */
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<StockBook> copies = copyOptimistically(() -> {
+			List<BookStoreBook> books = new ArrayList<>(isbnSet.size());
+
+			for (Integer isbn : isbnSet) {
+				BookStoreBook book = isbn == null ? null : bookMap.get(isbn);
+
+				if (book == null) {
+					// The locked read reports the invalid or missing book.
+					return null;
+				}
+
+				books.add(book);
+			}
+
+			return books;
+		});
+
+		if (copies != null) {
+			return copies;
+		}
+
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS, isbnSet.size());
+		Set<Integer> lockedISBNs = Collections.emptySet();
+
+		try {
 			for (Integer ISBN : isbnSet) {
-				releaseLocal(ISBN, false);
+				validateISBNInStock(ISBN);
 			}
-			globalSharedLock.unlock();
+
+			lockedISBNs = isbnSet;
+			lockManager.lockBooks(lockedISBNs, false);
+			return isbnSet.stream()
+					.map(isbn -> bookMap.get(isbn).immutableStockBook())
+					.collect(Collectors.toList());
+		} finally {
+			lockManager.unlockBooks(lockedISBNs, false);
+			lockManager.unlockStore(storeMode);
 		}
+
+
+
+
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
+	 */
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		// Catalogue entries are immutable, so no locks are needed.
+		return catalogue.getBooks(isbnSet);
 	}
 
 	/*
@@ -416,15 +1209,16 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		if (numBooks < 0) {
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
-		globalSharedLock.lock();
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS);
+		List<Integer> lockedISBNs = Collections.emptyList();
+
 		try {
 			List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream()
 					.map(pair -> pair.getValue())
 					.filter(book -> book.isEditorPick())
 					.collect(Collectors.toList());
-			for (BookStoreBook book : listAllEditorPicks) {
-				lockLocal(book.getISBN(), false);
-			}
+			lockedISBNs = listAllEditorPicks.stream().map(BookStoreBook::getISBN).collect(Collectors.toList());
+			lockManager.lockBooks(lockedISBNs, false);
 
 
 			// Find numBooks random indices of books that will be picked.
@@ -454,15 +1248,80 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 					.map(index -> listAllEditorPicks.get(index).immutableBook())
 					.collect(Collectors.toList());
 		} finally {
-			for (BookStoreBook book : bookMap.values()) {
-				releaseLocal(book.getISBN(), false);
-			}
-			globalSharedLock.unlock();
+			lockManager.unlockBooks(lockedISBNs, false);
+			lockManager.unlockStore(storeMode);
+		}
+
+
+
+
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#searchBooks(java.lang.String,
+	 * int)
+	 */
+	@Override
+	public List<Book> searchBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		// The index only changes when books are added or removed.
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS);
+
+		try {
+			return searchIndex.search(query, numBooks).stream()
+					.map(isbn -> bookMap.get(isbn).immutableBook())
+					.collect(Collectors.toList());
+		} finally {
+			lockManager.unlockStore(storeMode);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#autocompleteBooks(java.lang.
+	 * String, int)
+	 */
+	@Override
+	public List<Book> autocompleteBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
 
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS);
 
+		try {
+			return searchIndex.complete(query, numBooks, this::getAverageRating).stream()
+					.map(isbn -> bookMap.get(isbn).immutableBook())
+					.collect(Collectors.toList());
+		} finally {
+			lockManager.unlockStore(storeMode);
+		}
+	}
 
+	/**
+	 * Gets the average rating of the book, by which completions are ranked.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the average rating, or -1 if the book was not rated
+	 */
+	private double getAverageRating(int isbn) {
+		return bookMap.get(isbn).getAverageRating();
 	}
 
 	/*
@@ -476,7 +1335,9 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be non-negative.");
 		}
 
-		globalSharedLock.lock();
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IS);
+		List<Integer> lockedISBNs = Collections.emptyList();
+
 		try {
 			// Stream of books and filter those that have at least one rating
 			List<BookStoreBook> ratedBooks = bookMap.values().stream()
@@ -493,19 +1354,16 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 					.limit(numBooks)
 					.collect(Collectors.toList());
 
-			for (BookStoreBook book : ratedBooks) {
-				lockLocal(book.getISBN(), false);
-			}
+			lockedISBNs = ratedBooks.stream().map(BookStoreBook::getISBN).collect(Collectors.toList());
+			lockManager.lockBooks(lockedISBNs, false);
 
 			// Convert to immutable books and return
 			return ratedBooks.stream()
 					.map(BookStoreBook::immutableBook)
 					.collect(Collectors.toList());
 		} finally {
-			for (BookStoreBook book : bookMap.values()) {
-				releaseLocal(book.getISBN(), false);
-			}
-			globalSharedLock.unlock();
+			lockManager.unlockBooks(lockedISBNs, false);
+			lockManager.unlockStore(storeMode);
 		}
 	}
 
@@ -516,22 +1374,69 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 */
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		globalSharedLock.lock();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		try {
-			for (BookStoreBook book : bookMapValues) {
-				lockLocal(book.getISBN(), false);
-			}
+		return demandIndex.getBooksInDemand();
+	}
 
-			return bookMapValues.stream()
-					.map(BookStoreBook::immutableStockBook)
-					.filter(stockBook -> stockBook.getNumSaleMisses() > 0)
-					.collect(Collectors.toList());
-		} finally {
-			for (BookStoreBook book : bookMapValues) {
-				releaseLocal(book.getISBN(), false);
-			}
-			globalSharedLock.unlock();
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(int)
+	 */
+	@Override
+	public List<StockBook> getBooksInDemand(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
+		}
+
+		return demandIndex.getBooksInDemand(numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooksByPrice(float,
+	 * float, int, int)
+	 */
+	@Override
+	public List<Book> getBooksByPrice(float minPrice, float maxPrice, int afterISBN, int numBooks)
+			throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		return priceIndex.getBooks(minPrice, maxPrice, afterISBN, numBooks);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByNumCopies(int,
+	 * int, int, int)
+	 */
+	@Override
+	public List<StockBook> getBooksByNumCopies(int minCopies, int maxCopies, int afterISBN, int numBooks)
+			throws BookStoreException {
+		validatePage(afterISBN, numBooks);
+
+		return stockIndex.getBooks(minCopies, maxCopies, afterISBN, numBooks);
+	}
+
+	/**
+	 * Checks the start and size of a page of books.
+	 *
+	 * @param afterISBN
+	 *            the ISBN after which the page starts
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @throws BookStoreException
+	 *             if the ISBN or the number of books is negative
+	 */
+	private void validatePage(int afterISBN, int numBooks) throws BookStoreException {
+		if (afterISBN < 0) {
+			throw new BookStoreException(BookStoreConstants.ISBN + afterISBN + BookStoreConstants.INVALID);
+		}
+
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
 	}
 
@@ -546,7 +1451,20 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		globalSharedLock.lock();
+		if (ratingIngestor != null) {
+			bufferRatings(bookRating);
+			return;
+		}
+
+		if (bookRating.size() == 1) {
+			rateBook(bookRating.iterator().next());
+			return;
+		}
+
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.IX, bookRating.size());
+		List<Integer> lockedISBNs = Collections.emptyList();
+		BookWriteSet writeSet = new BookWriteSet();
+
 		try {
 			// Step 1: Validate all ratings
 			for (BookRating bookToRate : bookRating) {
@@ -554,23 +1472,177 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 				int rating = bookToRate.getRating();
 
 				validateISBNInStock(isbn);
-				lockLocal(isbn, true);
 
 				if (BookStoreUtility.isInvalidRating(rating)) {
 					throw new BookStoreException(BookStoreConstants.RATING + rating + BookStoreConstants.INVALID);
 				}
 			}
 
+			lockedISBNs = bookRating.stream().map(BookRating::getISBN).collect(Collectors.toList());
+			lockManager.lockBooks(lockedISBNs, true);
+
 			// Step 2: Apply ratings only if all validations pass
+			List<BookStoreBook> ratedBooks = new ArrayList<>();
+
 			for (BookRating bookToRate : bookRating) {
-				BookStoreBook book = bookMap.get(bookToRate.getISBN());
+				BookStoreBook book = writeSet.add(bookMap.get(bookToRate.getISBN()));
 				book.addRating(bookToRate.getRating());
+				ratedBooks.add(book);
 			}
+
+			writeSet.end();
+			versionedBookMap.publish(ratedBooks);
+			demandIndex.update(ratedBooks);
+			stockIndex.update(ratedBooks);
+			searchIndex.updateScores(ratedBooks, this::getAverageRating);
 		} finally {
-			for (BookRating bookToRate : bookRating) {
-				releaseLocal(bookToRate.getISBN(), true);
+			writeSet.end();
+			lockManager.unlockBooks(lockedISBNs, true);
+			lockManager.unlockStore(storeMode);
+		}
+	}
+
+	/**
+	 * Rates a single book, locking only the book.
+	 *
+	 * @param bookToRate
+	 *            the rating
+	 * @throws BookStoreException
+	 *             if the rating is invalid or the book is not in the store
+	 */
+	private void rateBook(BookRating bookToRate) throws BookStoreException {
+		BookStoreBook book = lockBook(bookToRate.getISBN(), true);
+
+		try {
+			int rating = bookToRate.getRating();
+
+			if (BookStoreUtility.isInvalidRating(rating)) {
+				throw new BookStoreException(BookStoreConstants.RATING + rating + BookStoreConstants.INVALID);
+			}
+
+			long stamp = book.beginWrite();
+			book.addRating(rating);
+			book.endWrite(stamp);
+			List<BookStoreBook> ratedBooks = Collections.singletonList(book);
+			versionedBookMap.publish(ratedBooks);
+			demandIndex.update(ratedBooks);
+			stockIndex.update(ratedBooks);
+			searchIndex.updateScores(ratedBooks, this::getAverageRating);
+		} finally {
+			unlockBook(book, true);
+		}
+	}
+
+	/**
+	 * Validates ratings and adds them to the ratings not applied yet, without
+	 * locking.
+	 *
+	 * @param bookRating
+	 *            the ratings
+	 * @throws BookStoreException
+	 *             if a rating is invalid or a book is not in the store
+	 */
+	private void bufferRatings(Set<BookRating> bookRating) throws BookStoreException {
+		List<BookStoreBook> booksToRate = new ArrayList<>();
+
+		for (BookRating bookToRate : bookRating) {
+			int isbn = bookToRate.getISBN();
+			int rating = bookToRate.getRating();
+
+			validateISBNInStock(isbn);
+
+			if (BookStoreUtility.isInvalidRating(rating)) {
+				throw new BookStoreException(BookStoreConstants.RATING + rating + BookStoreConstants.INVALID);
+			}
+
+			BookStoreBook book = bookMap.get(isbn);
+
+			// The book may have been removed since it was validated.
+			if (book == null) {
+				throw new BookStoreException(BookStoreConstants.ISBN + isbn + BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			booksToRate.add(book);
+		}
+
+		Iterator<BookRating> ratings = bookRating.iterator();
+
+		for (BookStoreBook book : booksToRate) {
+			ratingIngestor.add(book, ratings.next().getRating());
+		}
+	}
+
+	/**
+	 * Applies a batch of ratings, locking one book at a time. The ratings of
+	 * books removed since they were rated are dropped, as if they had been
+	 * removed right after being rated. A book is read-locked to check that it
+	 * is still the rated one and only then upgraded, so that readers of
+	 * replaced books do not wait.
+	 *
+	 * @param ratings
+	 *            the total rating and the number of ratings of every book
+	 */
+	private void foldRatings(Map<BookStoreBook, long[]> ratings) {
+		boolean applied = false;
+
+		for (Entry<BookStoreBook, long[]> entry : ratings.entrySet()) {
+			BookStoreBook ratedBook = entry.getKey();
+			BookStoreBook book;
+
+			try {
+				book = lockBook(ratedBook.getISBN(), false);
+
+				if (book != ratedBook) {
+					unlockBook(book, false);
+					continue;
+				}
+
+				book = upgradeBook(book);
+			} catch (BookStoreException ex) {
+				continue;
 			}
-			globalSharedLock.unlock();
+
+			try {
+				if (book == ratedBook) {
+					long stamp = book.beginWrite();
+					book.addRatings(entry.getValue()[0], entry.getValue()[1]);
+					book.endWrite(stamp);
+					List<BookStoreBook> ratedBooks = Collections.singletonList(book);
+					versionedBookMap.publish(ratedBooks);
+					demandIndex.update(ratedBooks);
+					stockIndex.update(ratedBooks);
+					searchIndex.updateScores(ratedBooks, this::getAverageRating);
+					applied = true;
+				}
+			} finally {
+				unlockBook(book, true);
+			}
+		}
+
+		Runnable listener = ratingsListener;
+
+		if (applied && listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Sets the listener called after every batch of ratings is applied, e.g.
+	 * to invalidate responses cached since the ratings were made.
+	 *
+	 * @param listener
+	 *            the listener, or null
+	 */
+	public void setRatingsListener(Runnable listener) {
+		this.ratingsListener = listener;
+	}
+
+	/**
+	 * Applies the ratings not applied yet, and waits until they are.
+	 */
+	public void flushRatings() {
+		if (ratingIngestor != null) {
+			ratingIngestor.flush();
 		}
 	}
 
@@ -580,13 +1652,31 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
-		globalExclusiveLock.lock();
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.X, bookMap.size());
+
+		// Operations on a single book only hold its lock, so wait for them.
+		Set<Integer> lockedISBNs = Collections.emptySet();
+
 		try {
+			lockedISBNs = lockManager.getBookISBNs();
+			lockManager.lockBooks(lockedISBNs, true);
+			long stamp = bookSetVersion.writeLock();
 			bookMap.clear();
-			lockMap.clear();
+			bookSetVersion.unlockWrite(stamp);
+			versionedBookMap.publishRemoveAll();
+			catalogue.removeAllBooks();
+			demandIndex.clear();
+			priceIndex.clear();
+			stockIndex.clear();
+			reservations.clear();
+			searchIndex.clear();
 		} finally {
-			globalExclusiveLock.unlock();
+			lockManager.unlockBooks(lockedISBNs, true);
+			lockManager.removeAllBooks();
+			lockManager.unlockStore(storeMode);
 		}
+
+		backorders.cancelAll(new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
 	}
 
 	/*
@@ -600,7 +1690,10 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		globalExclusiveLock.lock();
+		LockManager.Mode storeMode = lockManager.lockStore(LockManager.Mode.X, isbnSet.size());
+		Set<Integer> lockedISBNs = Collections.emptySet();
+		Set<Integer> removedISBNs = Collections.emptySet();
+
 		try {
 			for (Integer ISBN : isbnSet) {
 				if (BookStoreUtility.isInvalidISBN(ISBN)) {
@@ -611,18 +1704,40 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 					throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.NOT_AVAILABLE);
 				}
 			}
-			for (Integer ISBN : isbnSet) {
-				lockLocal(ISBN, true);
-			}
-			for (int isbn : isbnSet) {
-				bookMap.remove(isbn);
+
+			// Operations on a single book only hold its lock, so wait for them.
+			lockedISBNs = isbnSet;
+			lockManager.lockBooks(lockedISBNs, true);
+			List<BookStoreBook> removedBooks = new ArrayList<>();
+
+			long stamp = bookSetVersion.writeLock();
+
+			try {
+				for (int isbn : isbnSet) {
+					removedBooks.add(bookMap.remove(isbn));
+				}
+
+				removedISBNs = isbnSet;
+			} finally {
+				bookSetVersion.unlockWrite(stamp);
 			}
+
+			versionedBookMap.publishRemoval(isbnSet);
+			catalogue.removeBooks(isbnSet);
+			demandIndex.remove(isbnSet);
+			priceIndex.remove(isbnSet);
+			stockIndex.remove(isbnSet);
+			searchIndex.removeBooks(removedBooks);
 		} finally {
-			for (Integer ISBN : isbnSet) {
-				releaseLocal(ISBN, true);
-			}
-			globalExclusiveLock.unlock();
+			lockManager.unlockBooks(lockedISBNs, true);
+
+			// Operations on a single book waiting for the locks of the removed
+			// books find out that the books are gone, so the locks are only
+			// removed once unused.
+			lockManager.removeBooks(removedISBNs);
+			lockManager.unlockStore(storeMode);
 		}
 
+		backorders.cancel(isbnSet, new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE));
 	}
 }
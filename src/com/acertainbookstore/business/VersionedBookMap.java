@@ -0,0 +1,341 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * {@link VersionedBookMap} keeps the committed versions of every book as an
+ * immutable {@link StockBook}, so that full-catalogue reads can see a
+ * consistent point-in-time state of the bookstore without holding any lock for
+ * the duration of the scan.
+ *
+ * Writers publish the new versions of the books they changed before releasing
+ * their locks, and every publication is stamped with the next commit
+ * timestamp. A snapshot reads, for every book, the newest version which is not
+ * newer than the latest commit timestamp at the time the snapshot was taken.
+ * Versions which no active snapshot can read anymore are pruned when books are
+ * published.
+ *
+ * @see TwoLevelLockingConcurrentCertainBookStore
+ */
+public class VersionedBookMap {
+
+	/** The newest version of every book, ordered by ISBN. */
+	private final ConcurrentSkipListMap<Integer, BookVersion> versions = new ConcurrentSkipListMap<>();
+
+	/** The timestamp of the latest commit. */
+	private volatile long commitTimestamp = 0;
+
+	/** The number of active snapshots at each timestamp. */
+	private final TreeMap<Long, Integer> activeSnapshots = new TreeMap<>();
+
+	/** The removed books whose tombstones have not been pruned yet. */
+	private final List<BookVersion> tombstones = new ArrayList<>();
+
+	/**
+	 * Publishes the current state of the books as one commit. The caller must
+	 * hold the locks which make the books' state consistent.
+	 *
+	 * @param books
+	 *            the books
+	 */
+	public synchronized void publish(Collection<BookStoreBook> books) {
+		long timestamp = commitTimestamp + 1;
+
+		for (BookStoreBook book : books) {
+			install(new BookVersion(book.getISBN(), timestamp, book.immutableStockBook()));
+		}
+
+		commit(timestamp);
+	}
+
+	/**
+	 * Publishes the removal of the books as one commit.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the removed books
+	 */
+	public synchronized void publishRemoval(Collection<Integer> isbns) {
+		long timestamp = commitTimestamp + 1;
+
+		for (Integer isbn : isbns) {
+			BookVersion tombstone = new BookVersion(isbn, timestamp, null);
+			install(tombstone);
+			tombstones.add(tombstone);
+		}
+
+		commit(timestamp);
+	}
+
+	/**
+	 * Publishes the removal of all books as one commit.
+	 */
+	public synchronized void publishRemoveAll() {
+		publishRemoval(new ArrayList<>(versions.keySet()));
+	}
+
+	/**
+	 * Gets a consistent snapshot of all books.
+	 *
+	 * @return the books, ordered by ISBN
+	 */
+	public List<StockBook> snapshot() {
+		return snapshot(book -> true);
+	}
+
+	/**
+	 * Gets a consistent snapshot of the books matching the filter.
+	 *
+	 * @param filter
+	 *            the filter
+	 * @return the books, ordered by ISBN
+	 */
+	public List<StockBook> snapshot(Predicate<StockBook> filter) {
+		long timestamp = beginSnapshot();
+		List<StockBook> books = new ArrayList<>();
+
+		try {
+			for (BookVersion version : versions.values()) {
+				// Skip the versions committed after the snapshot was taken.
+				while (version != null && version.timestamp > timestamp) {
+					version = version.previous;
+				}
+
+				if (version != null && version.book != null && filter.test(version.book)) {
+					books.add(version.book);
+				}
+			}
+		} finally {
+			endSnapshot(timestamp);
+		}
+
+		return books;
+	}
+
+	/**
+	 * Gets a consistent snapshot of at most <code>numBooks</code> books with an
+	 * ISBN greater than <code>afterISBN</code>.
+	 *
+	 * @param afterISBN
+	 *            the ISBN after which the books start
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the books, ordered by ISBN
+	 */
+	public List<StockBook> snapshot(int afterISBN, int numBooks) {
+		long timestamp = beginSnapshot();
+		List<StockBook> books = new ArrayList<>();
+
+		try {
+			Iterator<BookVersion> iterator = versions.tailMap(afterISBN, false).values().iterator();
+
+			while (books.size() < numBooks && iterator.hasNext()) {
+				StockBook book = readAt(iterator.next(), timestamp);
+
+				if (book != null) {
+					books.add(book);
+				}
+			}
+		} finally {
+			endSnapshot(timestamp);
+		}
+
+		return books;
+	}
+
+	/**
+	 * Gets a consistent snapshot of the books.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @return the books, in the order of the ISBNs, with null for the books
+	 *         which are not in the store
+	 */
+	public List<StockBook> snapshot(Collection<Integer> isbns) {
+		long timestamp = beginSnapshot();
+		List<StockBook> books = new ArrayList<>(isbns.size());
+
+		try {
+			for (Integer isbn : isbns) {
+				BookVersion version = versions.get(isbn);
+				books.add(version == null ? null : readAt(version, timestamp));
+			}
+		} finally {
+			endSnapshot(timestamp);
+		}
+
+		return books;
+	}
+
+	/**
+	 * Reads the newest version of a book which is not newer than the
+	 * timestamp.
+	 *
+	 * @param version
+	 *            the newest version of the book
+	 * @param timestamp
+	 *            the timestamp of the snapshot
+	 * @return the book, or null if it was removed or added later
+	 */
+	private static StockBook readAt(BookVersion version, long timestamp) {
+		while (version != null && version.timestamp > timestamp) {
+			version = version.previous;
+		}
+
+		return version == null ? null : version.book;
+	}
+
+	/**
+	 * Registers a snapshot at the latest commit timestamp.
+	 *
+	 * @return the timestamp of the snapshot
+	 */
+	private synchronized long beginSnapshot() {
+		long timestamp = commitTimestamp;
+		activeSnapshots.merge(timestamp, 1, Integer::sum);
+		return timestamp;
+	}
+
+	/**
+	 * Unregisters the snapshot.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the snapshot
+	 */
+	private synchronized void endSnapshot(long timestamp) {
+		activeSnapshots.computeIfPresent(timestamp, (key, count) -> count == 1 ? null : count - 1);
+		pruneTombstones();
+	}
+
+	/**
+	 * Installs the version as the newest version of its book and prunes the
+	 * versions which no snapshot can read anymore.
+	 *
+	 * @param version
+	 *            the version
+	 */
+	private void install(BookVersion version) {
+		version.previous = versions.get(version.isbn);
+		versions.put(version.isbn, version);
+		prune(version, oldestReadableTimestamp(version.timestamp));
+	}
+
+	/**
+	 * Makes the commit visible to new snapshots.
+	 *
+	 * @param timestamp
+	 *            the commit timestamp
+	 */
+	private void commit(long timestamp) {
+		commitTimestamp = timestamp;
+		pruneTombstones();
+	}
+
+	/**
+	 * Removes the books whose tombstones are older than every active snapshot.
+	 */
+	private void pruneTombstones() {
+		long oldestReadable = oldestReadableTimestamp(commitTimestamp);
+		Iterator<BookVersion> iterator = tombstones.iterator();
+
+		while (iterator.hasNext()) {
+			BookVersion tombstone = iterator.next();
+
+			if (tombstone.timestamp <= oldestReadable) {
+				// The book may have been added again since it was removed.
+				versions.remove(tombstone.isbn, tombstone);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Gets the oldest timestamp which an active snapshot can read at.
+	 *
+	 * @param latest
+	 *            the timestamp to use if there are no active snapshots
+	 * @return the oldest readable timestamp
+	 */
+	private long oldestReadableTimestamp(long latest) {
+		return activeSnapshots.isEmpty() ? latest : activeSnapshots.firstKey();
+	}
+
+	/**
+	 * Drops the versions of the chain which are older than the newest version
+	 * readable at <code>oldestReadable</code>.
+	 *
+	 * @param version
+	 *            the newest version of the chain
+	 * @param oldestReadable
+	 *            the oldest readable timestamp
+	 */
+	private static void prune(BookVersion version, long oldestReadable) {
+		while (version != null && version.timestamp > oldestReadable) {
+			version = version.previous;
+		}
+
+		if (version != null) {
+			version.previous = null;
+		}
+	}
+
+	/**
+	 * Gets the number of versions kept for all books, including the
+	 * tombstones of removed books, which only exceeds the number of books
+	 * while snapshots read older versions.
+	 *
+	 * @return the number of versions
+	 */
+	public int getNumVersions() {
+		int numVersions = 0;
+
+		for (BookVersion version : versions.values()) {
+			while (version != null) {
+				numVersions++;
+				version = version.previous;
+			}
+		}
+
+		return numVersions;
+	}
+
+	/**
+	 * {@link BookVersion} is one committed version of a book, linked to the
+	 * version it replaced.
+	 */
+	private static final class BookVersion {
+
+		/** The ISBN. */
+		private final int isbn;
+
+		/** The commit timestamp. */
+		private final long timestamp;
+
+		/** The committed state of the book, or null if the book was removed. */
+		private final StockBook book;
+
+		/** The previous version. */
+		private volatile BookVersion previous;
+
+		/**
+		 * Instantiates a new {@link BookVersion}.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @param timestamp
+		 *            the commit timestamp
+		 * @param book
+		 *            the committed state of the book, or null if removed
+		 */
+		private BookVersion(int isbn, long timestamp, StockBook book) {
+			this.isbn = isbn;
+			this.timestamp = timestamp;
+			this.book = book;
+		}
+	}
+}
@@ -3,8 +3,10 @@ package com.acertainbookstore.client;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
@@ -37,9 +39,30 @@ public class BookStoreHTTPProxy implements BookStore {
 	/** The server address. */
 	protected String serverAddress;
 
+	/** The near cache of books, or null if books are not cached. */
+	private BookStoreNearCache nearCache = null;
+
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} which answers
+	 * {@link #getBooks(Set)} for recently fetched books from a near cache.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param nearCacheSize
+	 *            the maximum number of cached books
+	 * @param nearCacheTtlMillis
+	 *            the time to live of a cached book in milliseconds
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(String serverAddress, int nearCacheSize, long nearCacheTtlMillis) throws Exception {
+		this(serverAddress);
+		nearCache = new BookStoreNearCache(nearCacheSize, nearCacheTtlMillis);
+	}
+
 	/**
 	 * Initializes a new {@link BookStoreHTTPProxy}.
 	 *
@@ -91,6 +114,15 @@ public class BookStoreHTTPProxy implements BookStore {
 		this.serverAddress = serverAddress;
 	}
 
+	/**
+	 * Gets the near cache.
+	 *
+	 * @return the near cache, or null if books are not cached
+	 */
+	public BookStoreNearCache getNearCache() {
+		return nearCache;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -99,7 +131,7 @@ public class BookStoreHTTPProxy implements BookStore {
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		performHttpExchange(bookStoreRequest);
 	}
 
 	/*
@@ -109,11 +141,28 @@ public class BookStoreHTTPProxy implements BookStore {
 	 */
 	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
-		return (List<Book>) bookStoreResponse.getList();
+		if (nearCache == null || isbnSet == null) {
+			String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+			BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
+			BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+			return (List<Book>) bookStoreResponse.getList();
+		}
+
+		// Only fetch the books which are not in the near cache.
+		Set<Integer> missingISBNs = new HashSet<>();
+		List<Book> books = nearCache.get(isbnSet, missingISBNs);
+
+		if (!missingISBNs.isEmpty()) {
+			String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+			BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, missingISBNs);
+			BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+			List<Book> fetchedBooks = (List<Book>) bookStoreResponse.getList();
+			nearCache.put(fetchedBooks, bookStoreResponse.getCatalogueEpoch(),
+					bookStoreResponse.getCatalogueVersion());
+			books.addAll(fetchedBooks);
+		}
+
+		return books;
 	}
 
 	/*
@@ -131,8 +180,7 @@ public class BookStoreHTTPProxy implements BookStore {
 				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
 
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
 		return (List<Book>) bookStoreResponse.getList();
 	}
 
@@ -161,7 +209,7 @@ public class BookStoreHTTPProxy implements BookStore {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookRating);
 
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		performHttpExchange(bookStoreRequest);
 	}
 
 	/*
@@ -177,8 +225,171 @@ public class BookStoreHTTPProxy implements BookStore {
 				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodeNumBooks;
 
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+		return (List<Book>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#searchBooks(java.lang.String,
+	 * int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Book> searchBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		String urlEncodedQuery = URLEncoder.encode(query, StandardCharsets.UTF_8);
+		String urlEncodeNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.SEARCHBOOKS + "?"
+				+ BookStoreConstants.QUERY_PARAM + "=" + urlEncodedQuery + "&"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodeNumBooks;
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+		return (List<Book>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#autocompleteBooks(java.lang.
+	 * String, int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Book> autocompleteBooks(String query, int numBooks) throws BookStoreException {
+		if (query == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		String urlEncodedQuery = URLEncoder.encode(query, StandardCharsets.UTF_8);
+		String urlEncodeNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.AUTOCOMPLETEBOOKS + "?"
+				+ BookStoreConstants.QUERY_PARAM + "=" + urlEncodedQuery + "&"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodeNumBooks;
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+		return (List<Book>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#getBooksByPrice(float,
+	 * float, int, int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Book> getBooksByPrice(float minPrice, float maxPrice, int afterISBN, int numBooks)
+			throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSBYPRICE + "?"
+				+ BookStoreConstants.MIN_PARAM + "=" + URLEncoder.encode(Float.toString(minPrice), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.MAX_PARAM + "=" + URLEncoder.encode(Float.toString(maxPrice), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.AFTER_ISBN_PARAM + "=" + URLEncoder.encode(Integer.toString(afterISBN), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+		return (List<Book>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStore#reserveBooks(java.util.Set,
+	 * long)
+	 */
+	@Override
+	public long reserveBooks(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException {
+		String urlEncodedTTL = URLEncoder.encode(Long.toString(ttlMillis), StandardCharsets.UTF_8);
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RESERVEBOOKS + "?"
+				+ BookStoreConstants.TTL_PARAM + "=" + urlEncodedTTL;
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesToReserve);
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+		return (Long) bookStoreResponse.getList().get(0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#commitReservation(long)
+	 */
+	@Override
+	public void commitReservation(long reservationId) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.COMMITRESERVATION;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, reservationId);
+		performHttpExchange(bookStoreRequest);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.BookStore#releaseReservation(long)
+	 */
+	@Override
+	public void releaseReservation(long reservationId) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RELEASERESERVATION;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, reservationId);
+		performHttpExchange(bookStoreRequest);
+	}
+
+	/**
+	 * Waits for the copies of the books with a long poll: the server parks the
+	 * request without a thread until the copies are restocked or the timeout
+	 * elapses. The calling thread is blocked meanwhile and the returned future
+	 * is already completed, so the timeout must be shorter than the timeout of
+	 * the HTTP client.
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStore#awaitBooks(java.util.Set,
+	 *      boolean, long)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<Boolean> awaitBooks(Set<BookCopy> bookCopies, boolean buy, long timeoutMillis)
+			throws BookStoreException {
+		if (timeoutMillis >= BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS) {
+			throw new BookStoreException("timeoutMillis = " + timeoutMillis + ", but it must be less than "
+					+ BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		}
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.AWAITBOOKS + "?"
+				+ BookStoreConstants.BUY_PARAM + "=" + URLEncoder.encode(Boolean.toString(buy), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.TIMEOUT_PARAM + "=" + URLEncoder.encode(Long.toString(timeoutMillis), StandardCharsets.UTF_8);
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopies);
+		BookStoreResponse bookStoreResponse = performHttpExchange(bookStoreRequest);
+		return CompletableFuture.completedFuture(((List<Boolean>) bookStoreResponse.getList()).get(0));
+	}
+
+	/**
+	 * Performs the HTTP exchange and lets the near cache observe the catalogue
+	 * version reported by the server.
+	 *
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookStoreResponse performHttpExchange(BookStoreRequest bookStoreRequest) throws BookStoreException {
 		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
 				serializer.get());
-		return (List<Book>) bookStoreResponse.getList();
+
+		if (nearCache != null) {
+			nearCache.observeCatalogueVersion(bookStoreResponse.getCatalogueEpoch(),
+					bookStoreResponse.getCatalogueVersion());
+		}
+
+		return bookStoreResponse;
 	}
 }
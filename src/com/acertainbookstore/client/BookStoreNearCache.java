@@ -0,0 +1,234 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.business.Book;
+
+/**
+ * {@link BookStoreNearCache} keeps the books most recently fetched by a
+ * {@link BookStoreHTTPProxy}, so that repeated lookups of the same ISBNs are
+ * answered without a round trip to the server. The title, author and price of
+ * a book never change, so a cached book only becomes stale when the book is
+ * removed.
+ *
+ * Removals are detected through the catalogue version which the server reports
+ * with every response: when a newer version is observed, all cached books are
+ * dropped. The version starts over when the server restarts, so the server
+ * also reports the epoch of the version, and all cached books are dropped
+ * when another epoch is observed. Entries also expire after a fixed time to live, which bounds the
+ * staleness for clients that are answered from the cache only.
+ *
+ * @see BookStoreHTTPProxy
+ */
+public class BookStoreNearCache {
+
+	/** The maximum number of cached books. */
+	private final int maxEntries;
+
+	/** The time to live of a cached book in milliseconds. */
+	private final long ttlMillis;
+
+	/** The cached books by ISBN, in access order. */
+	private final LinkedHashMap<Integer, CacheEntry> entries;
+
+	/** The latest catalogue version observed from the server. */
+	private long catalogueVersion;
+
+	/** The epoch of the latest catalogue version. */
+	private long catalogueEpoch;
+
+	/** The number of lookups answered entirely from the cache. */
+	private final LongAdder hits = new LongAdder();
+
+	/** The number of lookups which needed a round trip to the server. */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Instantiates a new {@link BookStoreNearCache}.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of cached books
+	 * @param ttlMillis
+	 *            the time to live of a cached book in milliseconds
+	 */
+	public BookStoreNearCache(int maxEntries, long ttlMillis) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries = " + maxEntries + ", but it must be positive");
+		}
+
+		if (ttlMillis < 1) {
+			throw new IllegalArgumentException("ttlMillis = " + ttlMillis + ", but it must be positive");
+		}
+
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets the cached books with the ISBNs and collects the ISBNs which have to
+	 * be fetched from the server.
+	 *
+	 * @param isbnSet
+	 *            the ISBNs
+	 * @param missingISBNs
+	 *            the set the ISBNs of the books which are not cached are added
+	 *            to
+	 * @return the cached books
+	 */
+	public synchronized List<Book> get(Set<Integer> isbnSet, Set<Integer> missingISBNs) {
+		List<Book> books = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		for (Integer isbn : isbnSet) {
+			CacheEntry entry = entries.get(isbn);
+
+			if (entry == null || entry.expiresAt <= now) {
+				if (entry != null) {
+					entries.remove(isbn);
+				}
+
+				missingISBNs.add(isbn);
+			} else {
+				books.add(entry.book);
+			}
+		}
+
+		if (missingISBNs.isEmpty()) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+
+		return books;
+	}
+
+	/**
+	 * Caches books fetched from the server. The books are only cached if they
+	 * were read at the latest catalogue version, since a concurrent removal may
+	 * have been observed after they were read.
+	 *
+	 * @param books
+	 *            the books
+	 * @param responseEpoch
+	 *            the epoch of the catalogue version reported with the books
+	 * @param responseVersion
+	 *            the catalogue version reported with the books
+	 */
+	public synchronized void put(Collection<? extends Book> books, long responseEpoch, long responseVersion) {
+		observeCatalogueVersion(responseEpoch, responseVersion);
+
+		if (responseEpoch != catalogueEpoch || responseVersion < catalogueVersion) {
+			return;
+		}
+
+		long expiresAt = System.currentTimeMillis() + ttlMillis;
+
+		for (Book book : books) {
+			entries.put(book.getISBN(), new CacheEntry(book, expiresAt));
+		}
+
+		// Evict the least recently used books.
+		Iterator<Integer> iterator = entries.keySet().iterator();
+
+		while (entries.size() > maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Observes the catalogue version reported by the server, dropping all
+	 * cached books if books were removed since the last observed version, or
+	 * if the server restarted.
+	 *
+	 * @param responseEpoch
+	 *            the epoch of the catalogue version reported by the server
+	 * @param responseVersion
+	 *            the catalogue version reported by the server
+	 */
+	public synchronized void observeCatalogueVersion(long responseEpoch, long responseVersion) {
+		if (responseEpoch != catalogueEpoch || responseVersion > catalogueVersion) {
+			catalogueEpoch = responseEpoch;
+			catalogueVersion = responseVersion;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Drops all cached books.
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * Gets the number of cached books.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of lookups answered without a round trip to the server.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of lookups which needed a round trip to the server.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the fraction of lookups answered without a round trip to the
+	 * server, i.e. the reduction of requests sent to the server.
+	 *
+	 * @return the hit rate, or 0 if there were no lookups
+	 */
+	public double getHitRate() {
+		long numHits = hits.sum();
+		long numLookups = numHits + misses.sum();
+		return numLookups == 0 ? 0.0 : (double) numHits / numLookups;
+	}
+
+	/**
+	 * {@link CacheEntry} is a cached book and its expiry time.
+	 */
+	private static final class CacheEntry {
+
+		/** The book. */
+		private final Book book;
+
+		/** The time the entry expires at, in milliseconds. */
+		private final long expiresAt;
+
+		/**
+		 * Instantiates a new {@link CacheEntry}.
+		 *
+		 * @param book
+		 *            the book
+		 * @param expiresAt
+		 *            the expiry time in milliseconds
+		 */
+		private CacheEntry(Book book, long expiresAt) {
+			this.book = book;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
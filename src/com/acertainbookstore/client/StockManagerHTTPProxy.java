@@ -1,7 +1,10 @@
 package com.acertainbookstore.client;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -128,6 +131,46 @@ public class StockManagerHTTPProxy implements StockManager {
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooks(int afterISBN, int numBooks) throws BookStoreException {
+		String urlEncodedAfterISBN = URLEncoder.encode(Integer.toString(afterISBN), StandardCharsets.UTF_8);
+		String urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS + "?"
+				+ BookStoreConstants.AFTER_ISBN_PARAM + "=" + urlEncodedAfterISBN + "&"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
+	/**
+	 * Streams all books in the bookstore, ordered by ISBN, to the consumer.
+	 * The server reads and sends the books page by page, so neither the server
+	 * nor the client holds the whole catalogue in memory. Like
+	 * {@link #getBooks(int, int)}, every page is consistent on its own.
+	 *
+	 * @param consumer
+	 *            the consumer of the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public void streamBooks(Consumer<StockBook> consumer) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.STREAMBOOKS;
+		BookStoreUtility.performStreamingHttpExchange(client, urlString, serializer.get(), bookStoreResponse -> {
+			for (Object book : bookStoreResponse.getList()) {
+				consumer.accept((StockBook) book);
+			}
+		});
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -155,6 +198,45 @@ public class StockManagerHTTPProxy implements StockManager {
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooksInDemand(int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksInDemand(int numBooks) throws BookStoreException {
+		String urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSINDEMAND + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksByNumCopies(int,
+	 * int, int, int)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooksByNumCopies(int minCopies, int maxCopies, int afterISBN, int numBooks)
+			throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSBYNUMCOPIES + "?"
+				+ BookStoreConstants.MIN_PARAM + "=" + URLEncoder.encode(Integer.toString(minCopies), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.MAX_PARAM + "=" + URLEncoder.encode(Integer.toString(maxCopies), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.AFTER_ISBN_PARAM + "=" + URLEncoder.encode(Integer.toString(afterISBN), StandardCharsets.UTF_8) + "&"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+				serializer.get());
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
 
 	/*
 	 * (non-Javadoc)
@@ -0,0 +1,121 @@
+package com.acertainbookstore.client.tests;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AbstractLocalServerTest} is the fixture of the tests talking to a
+ * server on a local port through the HTTP proxies. Every test gets a server
+ * with an empty store on a free port.
+ */
+public abstract class AbstractLocalServerTest {
+
+	/** The server. */
+	protected Server server;
+
+	/** The port of the server. */
+	protected int port;
+
+	/** The client. */
+	protected BookStoreHTTPProxy client;
+
+	/** The store manager. */
+	protected StockManagerHTTPProxy storeManager;
+
+	/**
+	 * Starts a server on a free port and the proxies talking to it.
+	 *
+	 * @throws Exception
+	 *             if the server or the proxies cannot be started
+	 */
+	@Before
+	public void setUp() throws Exception {
+		startServer(0);
+		client = newClient("http://localhost:" + port);
+		storeManager = new StockManagerHTTPProxy("http://localhost:" + port + "/stock");
+	}
+
+	/**
+	 * Stops the proxies and the server.
+	 *
+	 * @throws Exception
+	 *             if the server cannot be stopped
+	 */
+	@After
+	public void tearDown() throws Exception {
+		client.stop();
+		storeManager.stop();
+		server.stop();
+	}
+
+	/**
+	 * Starts a server with an empty store.
+	 *
+	 * @param listenOnPort
+	 *            the port, or 0 for a free port
+	 * @throws Exception
+	 *             if the server cannot be started
+	 */
+	protected void startServer(int listenOnPort) throws Exception {
+		TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+		server = new Server(listenOnPort);
+		server.setHandler(newHandler(store));
+		server.start();
+		port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+	}
+
+	/**
+	 * Creates the handler of the server.
+	 *
+	 * @param store
+	 *            the store
+	 * @return the handler
+	 */
+	protected BookStoreHTTPMessageHandler newHandler(TwoLevelLockingConcurrentCertainBookStore store) {
+		return new BookStoreHTTPMessageHandler(store, store);
+	}
+
+	/**
+	 * Creates the client.
+	 *
+	 * @param address
+	 *            the address of the server
+	 * @return the client
+	 * @throws Exception
+	 *             if the client cannot be started
+	 */
+	protected BookStoreHTTPProxy newClient(String address) throws Exception {
+		return new BookStoreHTTPProxy(address);
+	}
+
+	/**
+	 * Adds books with one copy each.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	protected void addBooks(Integer... isbns) throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<>();
+
+		for (int isbn : isbns) {
+			booksToAdd.add(new ImmutableStockBook(isbn, "Title", "Author", 1f, 1, 0, 0, 0, false));
+		}
+
+		storeManager.addBooks(booksToAdd);
+	}
+}
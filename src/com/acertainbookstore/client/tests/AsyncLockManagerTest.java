@@ -0,0 +1,90 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.acertainbookstore.server.AsyncLockManager;
+
+/**
+ * {@link AsyncLockManagerTest} tests the {@link AsyncLockManager}.
+ *
+ * @see AsyncLockManager
+ */
+public class AsyncLockManagerTest {
+
+	/**
+	 * Tests that a lock is handed to the waiting requests in the order they
+	 * asked for it, and dropped once no request holds it.
+	 */
+	@Test
+	public void testFirstInFirstOut() {
+		AsyncLockManager lockManager = new AsyncLockManager();
+		CompletableFuture<Void> first = lockManager.lock(Collections.singleton(1));
+		CompletableFuture<Void> second = lockManager.lock(Collections.singleton(1));
+		CompletableFuture<Void> third = lockManager.lock(Collections.singleton(1));
+
+		assertTrue(first.isDone());
+		assertFalse(second.isDone());
+		assertFalse(third.isDone());
+
+		lockManager.unlock(Collections.singleton(1));
+		assertTrue(second.isDone());
+		assertFalse(third.isDone());
+
+		lockManager.unlock(Collections.singleton(1));
+		assertTrue(third.isDone());
+		assertEquals(1, lockManager.getNumLockedBooks());
+
+		lockManager.unlock(Collections.singleton(1));
+		assertEquals(0, lockManager.getNumLockedBooks());
+	}
+
+	/**
+	 * Tests that the books of a request are locked in ascending order of their
+	 * ISBNs, so a request waiting for a book does not hold the books after it.
+	 */
+	@Test
+	public void testAscendingOrder() {
+		AsyncLockManager lockManager = new AsyncLockManager();
+		CompletableFuture<Void> holder = lockManager.lock(Collections.singleton(2));
+		CompletableFuture<Void> waiter = lockManager.lock(Arrays.asList(3, 2, 1));
+
+		// The waiter holds book 1 and waits for book 2, without holding book 3.
+		assertTrue(holder.isDone());
+		assertFalse(waiter.isDone());
+		assertFalse(lockManager.lock(Collections.singleton(1)).isDone());
+		assertTrue(lockManager.lock(Collections.singleton(3)).isDone());
+
+		// Once it has book 2, it waits for book 3.
+		lockManager.unlock(Collections.singleton(2));
+		assertFalse(waiter.isDone());
+
+		lockManager.unlock(Collections.singleton(3));
+		assertTrue(waiter.isDone());
+	}
+
+	/**
+	 * Tests that requests locking the same books in opposite orders do not
+	 * wait for each other in a cycle.
+	 */
+	@Test
+	public void testNoDeadlock() {
+		AsyncLockManager lockManager = new AsyncLockManager();
+		CompletableFuture<Void> first = lockManager.lock(Arrays.asList(1, 2));
+		CompletableFuture<Void> second = lockManager.lock(Arrays.asList(2, 1));
+
+		assertTrue(first.isDone());
+		assertFalse(second.isDone());
+
+		lockManager.unlock(Arrays.asList(1, 2));
+		assertTrue(second.isDone());
+
+		lockManager.unlock(Arrays.asList(2, 1));
+		assertEquals(0, lockManager.getNumLockedBooks());
+	}
+}
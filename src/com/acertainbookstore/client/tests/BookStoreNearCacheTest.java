@@ -0,0 +1,158 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.BookStoreNearCache;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookStoreNearCacheTest} tests the {@link BookStoreNearCache}, on its
+ * own and in a {@link BookStoreHTTPProxy} talking to a server on a local port.
+ *
+ * @see BookStoreNearCache
+ */
+public class BookStoreNearCacheTest extends AbstractLocalServerTest {
+
+	/** The time to live of the cached books in the proxy, in milliseconds. */
+	private static final long TTL_MILLIS = 60000;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.client.tests.AbstractLocalServerTest#newClient(java
+	 * .lang.String)
+	 */
+	@Override
+	protected BookStoreHTTPProxy newClient(String address) throws Exception {
+		return new BookStoreHTTPProxy(address, 100, TTL_MILLIS);
+	}
+
+	/**
+	 * Tests that books fetched once are answered from the cache.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testHits() throws BookStoreException {
+		addBooks(1, 2);
+		BookStoreNearCache nearCache = client.getNearCache();
+
+		client.getBooks(new HashSet<>(Arrays.asList(1, 2)));
+		assertEquals(0, nearCache.getHits());
+		assertEquals(2, nearCache.size());
+
+		List<Book> books = client.getBooks(Collections.singleton(2));
+		assertEquals(1, nearCache.getHits());
+		assertEquals(1, books.size());
+		assertEquals(2, books.get(0).getISBN());
+	}
+
+	/**
+	 * Tests that removing books drops the cached books once the client sees
+	 * the new catalogue version.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testInvalidationOnRemoval() throws BookStoreException {
+		addBooks(1, 2, 3);
+		BookStoreNearCache nearCache = client.getNearCache();
+		client.getBooks(new HashSet<>(Arrays.asList(1, 2)));
+		storeManager.removeBooks(Collections.singleton(1));
+
+		// The next round trip reports the new version.
+		client.getBooks(Collections.singleton(3));
+		assertEquals(1, nearCache.size());
+
+		try {
+			client.getBooks(Collections.singleton(1));
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the cache keeps filling after the server restarted, although
+	 * the catalogue version started over, and that the books cached before the
+	 * restart are dropped.
+	 *
+	 * @throws Exception
+	 *             if the server cannot be restarted
+	 */
+	@Test
+	public void testServerRestart() throws Exception {
+		BookStoreNearCache nearCache = client.getNearCache();
+		addBooks(1, 2, 3);
+		storeManager.removeBooks(Collections.singleton(3));
+		client.getBooks(Collections.singleton(1));
+		assertEquals(1, nearCache.size());
+
+		server.stop();
+		startServer(port);
+		addBooks(2);
+
+		client.getBooks(Collections.singleton(2));
+		assertEquals(1, nearCache.size());
+		client.getBooks(Collections.singleton(2));
+		assertEquals(1, nearCache.getHits());
+
+		try {
+			client.getBooks(Collections.singleton(1));
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that cached books expire after their time to live.
+	 *
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testExpiry() throws InterruptedException {
+		BookStoreNearCache nearCache = new BookStoreNearCache(10, 50);
+		Set<Integer> isbns = Collections.singleton(1);
+		nearCache.put(Collections.singleton(new ImmutableBook(1, "Title", "Author", 1f)), 7, 0);
+
+		Set<Integer> missingISBNs = new HashSet<>();
+		assertEquals(1, nearCache.get(isbns, missingISBNs).size());
+		assertTrue(missingISBNs.isEmpty());
+
+		Thread.sleep(100);
+		assertTrue(nearCache.get(isbns, missingISBNs).isEmpty());
+		assertEquals(isbns, missingISBNs);
+		assertEquals(0, nearCache.size());
+	}
+
+	/**
+	 * Tests that books read at an older catalogue version of the same epoch
+	 * are not cached.
+	 */
+	@Test
+	public void testStaleVersionNotCached() {
+		BookStoreNearCache nearCache = new BookStoreNearCache(10, TTL_MILLIS);
+		nearCache.observeCatalogueVersion(7, 2);
+		nearCache.put(Collections.singleton(new ImmutableBook(1, "Title", "Author", 1f)), 7, 1);
+		assertEquals(0, nearCache.size());
+
+		nearCache.put(Collections.singleton(new ImmutableBook(1, "Title", "Author", 1f)), 7, 2);
+		assertEquals(1, nearCache.size());
+	}
+}
@@ -0,0 +1,183 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreResponseCache;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreResponseCacheTest} tests the {@link BookStoreResponseCache},
+ * on its own and behind a {@link BookStoreHTTPMessageHandler} served on a
+ * local port.
+ *
+ * @see BookStoreResponseCache
+ */
+public class BookStoreResponseCacheTest extends AbstractLocalServerTest {
+
+	/** The serialized response used by the tests of the cache on its own. */
+	private static final byte[] CONTENT = new byte[] { 1, 2, 3 };
+
+	/** The response cache of the server. */
+	private BookStoreResponseCache serverCache;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.client.tests.AbstractLocalServerTest#newHandler(com.
+	 * acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore)
+	 */
+	@Override
+	protected BookStoreHTTPMessageHandler newHandler(TwoLevelLockingConcurrentCertainBookStore store) {
+		serverCache = new BookStoreResponseCache(100);
+		return new BookStoreHTTPMessageHandler(store, store, serverCache);
+	}
+
+	/**
+	 * Tests that a response computed while responses of its tag were
+	 * invalidated is not cached.
+	 */
+	@Test
+	public void testConcurrentInvalidationPreventsCaching() {
+		BookStoreResponseCache cache = new BookStoreResponseCache(10);
+		long generation = cache.getGeneration(BookStoreMessageTag.GETBOOKS);
+
+		// The invalidation happens while the response is computed.
+		cache.invalidateISBNs(BookStoreMessageTag.GETBOOKS, Collections.singleton(1));
+		cache.put(BookStoreMessageTag.GETBOOKS, "a", Collections.singleton(1), CONTENT, generation);
+		assertNull(cache.get(BookStoreMessageTag.GETBOOKS, "a"));
+		assertEquals(0, cache.size());
+
+		// Invalidating another tag does not prevent caching.
+		generation = cache.getGeneration(BookStoreMessageTag.GETBOOKS);
+		cache.invalidate(BookStoreMessageTag.GETTOPRATEDBOOKS);
+		cache.put(BookStoreMessageTag.GETBOOKS, "a", Collections.singleton(1), CONTENT, generation);
+		assertArrayEquals(CONTENT, cache.get(BookStoreMessageTag.GETBOOKS, "a"));
+	}
+
+	/**
+	 * Tests that invalidating ISBNs only removes the responses of the tag which
+	 * depend on these ISBNs.
+	 */
+	@Test
+	public void testInvalidateISBNs() {
+		BookStoreResponseCache cache = new BookStoreResponseCache(10);
+		long generation = cache.getGeneration(BookStoreMessageTag.GETBOOKS);
+		cache.put(BookStoreMessageTag.GETBOOKS, "a", Arrays.asList(1, 2), CONTENT, generation);
+		cache.put(BookStoreMessageTag.GETBOOKS, "b", Arrays.asList(3), CONTENT, generation);
+		cache.put(BookStoreMessageTag.GETTOPRATEDBOOKS, "c", null, CONTENT,
+				cache.getGeneration(BookStoreMessageTag.GETTOPRATEDBOOKS));
+
+		cache.invalidateISBNs(BookStoreMessageTag.GETBOOKS, Collections.singleton(2));
+
+		assertNull(cache.get(BookStoreMessageTag.GETBOOKS, "a"));
+		assertNotNull(cache.get(BookStoreMessageTag.GETBOOKS, "b"));
+		assertNotNull(cache.get(BookStoreMessageTag.GETTOPRATEDBOOKS, "c"));
+		assertEquals(1, cache.getInvalidations());
+	}
+
+	/**
+	 * Tests that the cache keeps at most its maximum number of responses,
+	 * evicting the least recently used one.
+	 */
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		BookStoreResponseCache cache = new BookStoreResponseCache(2);
+		long generation = cache.getGeneration(BookStoreMessageTag.GETBOOKS);
+		cache.put(BookStoreMessageTag.GETBOOKS, "a", Collections.singleton(1), CONTENT, generation);
+		cache.put(BookStoreMessageTag.GETBOOKS, "b", Collections.singleton(2), CONTENT, generation);
+
+		// Using "a" makes "b" the least recently used response.
+		assertNotNull(cache.get(BookStoreMessageTag.GETBOOKS, "a"));
+		cache.put(BookStoreMessageTag.GETBOOKS, "c", Collections.singleton(3), CONTENT, generation);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(BookStoreMessageTag.GETBOOKS, "b"));
+		assertNotNull(cache.get(BookStoreMessageTag.GETBOOKS, "a"));
+		assertNotNull(cache.get(BookStoreMessageTag.GETBOOKS, "c"));
+
+		// Evicted responses no longer depend on their ISBNs.
+		cache.invalidateISBNs(BookStoreMessageTag.GETBOOKS, Collections.singleton(2));
+		assertEquals(0, cache.getInvalidations());
+	}
+
+	/**
+	 * Tests that the server answers repeated lookups of books from the cache,
+	 * and no longer after the books are removed.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testRemoveBooksInvalidatesCachedBooks() throws BookStoreException {
+		addBooks(1, 2);
+		Set<Integer> first = Collections.singleton(1);
+		Set<Integer> second = Collections.singleton(2);
+
+		client.getBooks(first);
+		client.getBooks(second);
+		client.getBooks(first);
+		assertEquals(1, serverCache.getHits());
+		assertEquals(2, serverCache.size());
+
+		storeManager.removeBooks(first);
+
+		// Only the response which depends on the removed book is dropped.
+		assertEquals(1, serverCache.size());
+		client.getBooks(second);
+		assertEquals(2, serverCache.getHits());
+
+		try {
+			client.getBooks(first);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		// The failed lookup is not cached.
+		assertEquals(1, serverCache.size());
+	}
+
+	/**
+	 * Tests that the server only caches the editor picks if all of them were
+	 * returned, since a subset is picked at random.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testEditorPicksCachedOnlyIfAllReturned() throws BookStoreException {
+		addBooks(1, 2, 3);
+		Set<BookEditorPick> editorPicks = new HashSet<>();
+		editorPicks.add(new BookEditorPick(1, true));
+		editorPicks.add(new BookEditorPick(2, true));
+		storeManager.updateEditorPicks(editorPicks);
+
+		client.getEditorPicks(1);
+		client.getEditorPicks(1);
+		assertEquals(0, serverCache.getHits());
+		assertEquals(0, serverCache.size());
+
+		assertEquals(2, client.getEditorPicks(5).size());
+		assertEquals(2, client.getEditorPicks(5).size());
+		assertEquals(1, serverCache.getHits());
+
+		// Changing the picks drops the cached picks.
+		editorPicks.clear();
+		editorPicks.add(new BookEditorPick(3, true));
+		storeManager.updateEditorPicks(editorPicks);
+		assertEquals(3, client.getEditorPicks(5).size());
+	}
+}
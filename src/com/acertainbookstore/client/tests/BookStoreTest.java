@@ -3,12 +3,16 @@ package com.acertainbookstore.client.tests;
 import static org.junit.Assert.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import com.acertainbookstore.business.*;
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -16,6 +20,7 @@ import org.junit.Test;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.server.PurchaseBatcher;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
@@ -57,13 +62,41 @@ public class BookStoreTest {
 			String singleLockProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SINGLE_LOCK);
 			singleLock = (singleLockProperty != null) ? Boolean.parseBoolean(singleLockProperty) : singleLock;
 
+			String partitionsProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_PARTITIONS);
+			String shardsProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SHARDS);
+			String adaptiveLockingProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_ADAPTIVE_LOCKING);
+
 			if (localTest) {
-				if (singleLock) {
+				if (Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_DETERMINISTIC)) {
+					DeterministicCertainBookStore store = new DeterministicCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_RING_BUFFER)) {
+					RingBufferCertainBookStore store = new RingBufferCertainBookStore();
+					storeManager = store;
+					client = store;
+				} else if (shardsProperty != null) {
+					ShardedCertainBookStore store = new ShardedCertainBookStore(Integer.parseInt(shardsProperty));
+					storeManager = store;
+					client = store;
+				} else if (partitionsProperty != null) {
+					PartitionedConcurrentCertainBookStore store = new PartitionedConcurrentCertainBookStore(
+							Integer.parseInt(partitionsProperty));
+					storeManager = store;
+					client = store;
+				} else if (adaptiveLockingProperty != null) {
+					AdaptiveLockingConcurrentCertainBookStore store = new AdaptiveLockingConcurrentCertainBookStore(
+							Integer.parseInt(adaptiveLockingProperty), 0,
+							Long.getLong(BookStoreConstants.PROPERTY_KEY_RATING_STALENESS, 0));
+					storeManager = store;
+					client = store;
+				} else if (singleLock) {
 					SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
 					storeManager = store;
 					client = store;
 				} else {
-					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore();
+					TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(0,
+							Long.getLong(BookStoreConstants.PROPERTY_KEY_RATING_STALENESS, 0));
 					storeManager = store;
 					client = store;
 				}
@@ -106,6 +139,16 @@ public class BookStoreTest {
 				false);
 	}
 
+	/**
+	 * Helper method to wait until the ratings made so far are applied, for
+	 * stores which apply ratings in batches.
+	 */
+	public void flushRatings() {
+		if (client instanceof TwoLevelLockingConcurrentCertainBookStore) {
+			((TwoLevelLockingConcurrentCertainBookStore) client).flushRatings();
+		}
+	}
+
 	/**
 	 * Method to add a book, executed before every test case is run.
 	 *
@@ -357,6 +400,304 @@ public class BookStoreTest {
 				&& booksInStorePreTest.size() == booksInStorePostTest.size());
 	}
 
+	/**
+	 * Tests that books can be searched by the words of their title and author.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testSearchBooks() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 50, NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		// Words of the title match regardless of case, in order of ISBN.
+		List<Book> books = client.searchBooks("programming", 10);
+		assertEquals(2, books.size());
+		assertEquals(TEST_ISBN + 1, books.get(0).getISBN());
+		assertEquals(TEST_ISBN + 2, books.get(1).getISBN());
+
+		// All words must match, in the title or the author.
+		books = client.searchBooks("Programming, Knuth!", 10);
+		assertEquals(1, books.size());
+		assertEquals("Donald Knuth", books.get(0).getAuthor());
+
+		assertEquals(1, client.searchBooks("programming", 1).size());
+		assertTrue(client.searchBooks("programming pascal", 10).isEmpty());
+
+		// Removed books are no longer found.
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 1);
+		storeManager.removeBooks(isbnSet);
+
+		books = client.searchBooks("programming", 10);
+		assertEquals(1, books.size());
+		assertEquals(TEST_ISBN + 2, books.get(0).getISBN());
+	}
+
+	/**
+	 * Tests that typed queries are completed to the highest rated books.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testAutocompleteBooks() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 2, 6, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 50, NUM_COPIES, 0, 1, 5, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 3, "Programming Pearls", "Jon Bentley", (float) 40,
+				NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		// Completions are ranked by average rating, unrated books last.
+		List<Book> books = client.autocompleteBooks("Prog", 10);
+		assertEquals(3, books.size());
+		assertEquals(TEST_ISBN + 2, books.get(0).getISBN());
+		assertEquals(TEST_ISBN + 1, books.get(1).getISBN());
+		assertEquals(TEST_ISBN + 3, books.get(2).getISBN());
+
+		assertEquals(1, client.autocompleteBooks("prog", 1).size());
+
+		// Earlier words must be complete words of the title or author.
+		books = client.autocompleteBooks("programming kn", 10);
+		assertEquals(1, books.size());
+		assertEquals(TEST_ISBN + 1, books.get(0).getISBN());
+		assertTrue(client.autocompleteBooks("progr kn", 10).isEmpty());
+
+		// Removed books are no longer completed.
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 2);
+		storeManager.removeBooks(isbnSet);
+
+		books = client.autocompleteBooks("prog", 10);
+		assertEquals(2, books.size());
+		assertEquals(TEST_ISBN + 1, books.get(0).getISBN());
+	}
+
+	/**
+	 * Tests that a negative number of books cannot be searched.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testSearchBooksInvalidNumBooks() throws BookStoreException {
+		try {
+			client.searchBooks("potter", -1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the books in stock in a price range are paged by price.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksByPrice() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 5, NUM_COPIES, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 15, NUM_COPIES, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 3, "Programming Pearls", "Jon Bentley", (float) 20,
+				NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		List<Book> page = client.getBooksByPrice(5, 15, 0, 2);
+		assertEquals(2, page.size());
+		assertEquals(TEST_ISBN + 1, page.get(0).getISBN());
+		assertEquals(TEST_ISBN, page.get(1).getISBN());
+
+		Book last = page.get(1);
+		page = client.getBooksByPrice(last.getPrice(), 15, last.getISBN(), 2);
+		assertEquals(1, page.size());
+		assertEquals(TEST_ISBN + 2, page.get(0).getISBN());
+
+		// Books out of stock leave the range.
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN + 1, NUM_COPIES));
+		client.buyBooks(booksToBuy);
+
+		page = client.getBooksByPrice(5, 15, 0, 10);
+		assertEquals(2, page.size());
+		assertEquals(TEST_ISBN, page.get(0).getISBN());
+		assertTrue(client.getBooksByPrice(15, 5, 0, 10).isEmpty());
+	}
+
+	/**
+	 * Tests that a negative number of books cannot be paged by price.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksByPriceInvalidNumBooks() throws BookStoreException {
+		try {
+			client.getBooksByPrice(0, 100, 0, -1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Gets the number of copies in stock of the default book.
+	 *
+	 * @return the number of copies
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private int getDefaultBookNumCopies() throws BookStoreException {
+		return storeManager.getBooksByISBN(Collections.singleton(TEST_ISBN)).get(0).getNumCopies();
+	}
+
+	/**
+	 * Tests that reserved copies are taken out of the stock and stay sold
+	 * when the reservation is committed.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testCommitReservation() throws BookStoreException {
+		Set<BookCopy> booksToReserve = new HashSet<BookCopy>();
+		booksToReserve.add(new BookCopy(TEST_ISBN, 3));
+
+		long reservationId = client.reserveBooks(booksToReserve, 60000);
+		assertEquals(NUM_COPIES - 3, getDefaultBookNumCopies());
+
+		client.commitReservation(reservationId);
+		assertEquals(NUM_COPIES - 3, getDefaultBookNumCopies());
+
+		// A reservation is only committed once.
+		try {
+			client.commitReservation(reservationId);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		// Copies which are not in stock cannot be reserved.
+		booksToReserve.clear();
+		booksToReserve.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+
+		try {
+			client.reserveBooks(booksToReserve, 60000);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(NUM_COPIES - 3, getDefaultBookNumCopies());
+	}
+
+	/**
+	 * Tests that the copies of released and expired reservations are given
+	 * back to the stock.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testReleaseReservation() throws BookStoreException, InterruptedException {
+		Set<BookCopy> booksToReserve = new HashSet<BookCopy>();
+		booksToReserve.add(new BookCopy(TEST_ISBN, 3));
+
+		long reservationId = client.reserveBooks(booksToReserve, 60000);
+		client.releaseReservation(reservationId);
+		assertEquals(NUM_COPIES, getDefaultBookNumCopies());
+
+		try {
+			client.commitReservation(reservationId);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		reservationId = client.reserveBooks(booksToReserve, 50);
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while (getDefaultBookNumCopies() != NUM_COPIES && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(NUM_COPIES, getDefaultBookNumCopies());
+
+		try {
+			client.releaseReservation(reservationId);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the copies of a reservation are not given to a book added
+	 * with the same ISBN after the reserved book was removed.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testReleaseReservationAfterRemoval() throws BookStoreException {
+		Set<BookCopy> booksToReserve = new HashSet<BookCopy>();
+		booksToReserve.add(new BookCopy(TEST_ISBN, 3));
+		long reservationId = client.reserveBooks(booksToReserve, 60000);
+
+		storeManager.removeBooks(Collections.singleton(TEST_ISBN));
+		initializeBooks();
+
+		client.releaseReservation(reservationId);
+		assertEquals(NUM_COPIES, getDefaultBookNumCopies());
+	}
+
+	/**
+	 * Tests that a customer waiting for a book which is sold out buys it when
+	 * it is restocked, and that waits time out.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAwaitBooks() throws Exception {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+		client.buyBooks(booksToBuy);
+
+		Set<BookCopy> booksToAwait = new HashSet<BookCopy>();
+		booksToAwait.add(new BookCopy(TEST_ISBN, 1));
+		assertFalse(client.awaitBooks(booksToAwait, false, 50).get());
+
+		CompletableFuture<Boolean> backorder = CompletableFuture.supplyAsync(() -> {
+			try {
+				return client.awaitBooks(booksToAwait, true, 10000).get();
+			} catch (Exception ex) {
+				throw new CompletionException(ex);
+			}
+		});
+
+		Set<BookCopy> booksToCopy = new HashSet<BookCopy>();
+		booksToCopy.add(new BookCopy(TEST_ISBN, 2));
+		storeManager.addCopies(booksToCopy);
+
+		assertTrue(backorder.get());
+		assertEquals(1, getDefaultBookNumCopies());
+		assertTrue(client.awaitBooks(booksToAwait, false, 50).get());
+	}
+
 	/**
 	 * Two clients C1 and C2, running in different threads, each invoke a fixed number
 	 * of operations, configured as a parameter, against the BookStore and StockManager
@@ -696,67 +1037,527 @@ public class BookStoreTest {
 	}
 
 	/**
-	 * Tests concurrency through editor pick toggeling. This allows us to further test
-	 * concurrency correctness of the BookStore interface
-	 * We have two threads C1 and C2, C1 will run and toggle the editor status for a set of books
-	 * while C2 will retrieve the editors picks and validate if it is consistent.
-	 * I.e. if all books are either editors picks or not. Since we initialize all as false,
-	 * we should never get a mix of true and false
+	 * Tests that concurrent purchases of a single book sell exactly the copies
+	 * in stock, and that every purchase which finds no copies left is recorded
+	 * as a sale miss.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
 	 * @throws InterruptedException
+	 *             the interrupted exception
 	 */
 	@Test
-	public void additionalConcurrencyTest5() throws InterruptedException {
-		final int ITERATIONS = 150;
-		final int NUM_BOOKS = 50;
+	public void testConcurrentBuysOfOneBook() throws BookStoreException, InterruptedException {
+		int NUM_CLIENT_THREADS = 8;
+		int ITERATIONS = 100;
+		AtomicInteger numBought = new AtomicInteger();
+		AtomicInteger numMissed = new AtomicInteger();
 
-		Set<StockBook> booksToAdd = new HashSet<>();
-		for (int i = 1; i <= NUM_BOOKS; i++) {
-			booksToAdd.add(
-					new ImmutableStockBook(i, "Title", "Author",1f, 5, 0, 0, 0, false));
+		Thread[] clientThreads = new Thread[NUM_CLIENT_THREADS];
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i] = new Thread(() -> {
+				Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+				booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+				for (int j = 0; j < ITERATIONS; j++) {
+					try {
+						client.buyBooks(booksToBuy);
+						numBought.incrementAndGet();
+					} catch (BookStoreException e) {
+						numMissed.incrementAndGet();
+					}
+				}
+			});
+			clientThreads[i].start();
 		}
 
-		final AtomicBoolean concurrentTestHasFailed = new AtomicBoolean(false);
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i].join();
+		}
 
-		try {
-			// Add books to store
-			storeManager.addBooks(booksToAdd);
+		StockBook book = storeManager.getBooks().get(0);
+		assertEquals(NUM_COPIES, numBought.get());
+		assertEquals(NUM_CLIENT_THREADS * ITERATIONS - NUM_COPIES, numMissed.get());
+		assertEquals(0, book.getNumCopies());
+		assertEquals(numMissed.get(), book.getNumSaleMisses());
+	}
 
-			// Prepare editor pick toggles
-			Set<BookEditorPick> toggleEditorPicksTrue = booksToAdd.stream()
-					.map(book -> new BookEditorPick(book.getISBN(), true))
-					.collect(Collectors.toSet());
+	/**
+	 * Tests that batched purchases are each applied atomically, and that every
+	 * purchase gets its own outcome. Half of the purchases of every thread are
+	 * invalid and must fail without affecting the valid ones in their batch.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testConcurrentBatchedBuys() throws BookStoreException, InterruptedException {
+		PurchaseBatcher purchaseBatcher;
+
+		if (client instanceof TwoLevelLockingConcurrentCertainBookStore) {
+			purchaseBatcher = new PurchaseBatcher(((TwoLevelLockingConcurrentCertainBookStore) client)::buyOrders, 0);
+		} else if (client instanceof SingleLockConcurrentCertainBookStore) {
+			purchaseBatcher = new PurchaseBatcher(((SingleLockConcurrentCertainBookStore) client)::buyOrders, 0);
+		} else {
+			// Only these stores apply batches of purchases.
+			Assume.assumeTrue(false);
+			return;
+		}
 
-			Set<BookEditorPick> toggleEditorPicksFalse = booksToAdd.stream()
-					.map(book -> new BookEditorPick(book.getISBN(), false))
-					.collect(Collectors.toSet());
+		int NUM_CLIENT_THREADS = 8;
+		int ITERATIONS = 100;
+		AtomicInteger numBought = new AtomicInteger();
+		AtomicInteger numInvalid = new AtomicInteger();
 
-			// Thread C1: Toggles editor pick status
-			Thread C1Thread = new Thread(() -> {
-				try {
-					for (int i = 0; i < ITERATIONS; i++) {
-						// Set all to true
-						storeManager.updateEditorPicks(toggleEditorPicksTrue);
-						// Set all to false
-						storeManager.updateEditorPicks(toggleEditorPicksFalse);
+		Thread[] clientThreads = new Thread[NUM_CLIENT_THREADS];
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i] = new Thread(() -> {
+				for (int j = 0; j < ITERATIONS; j++) {
+					Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+					booksToBuy.add(new BookCopy(j % 2 == 0 ? TEST_ISBN : -1, 1));
+					try {
+						purchaseBatcher.buyBooks(booksToBuy);
+						numBought.incrementAndGet();
+					} catch (BookStoreException e) {
+						numInvalid.incrementAndGet();
 					}
-				} catch (BookStoreException e) {
-					concurrentTestHasFailed.set(true);
-					e.printStackTrace();
 				}
 			});
+			clientThreads[i].start();
+		}
 
-			// Thread C2: Retrieves editor picks and validates consistency
-			Thread C2Thread = new Thread(() -> {
-				try {
-					for (int i = 0; i < ITERATIONS * 2; i++) { // Twice the iterations to match toggles
-						List<Book> editorPicks = client.getEditorPicks(NUM_BOOKS);
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i].join();
+		}
 
-						// Validate snapshot
-						boolean allTrue = editorPicks.size() == NUM_BOOKS;
-						boolean allFalse = editorPicks.isEmpty();
+		int numValid = NUM_CLIENT_THREADS * ITERATIONS / 2;
+		assertEquals(numValid, numBought.get());
+		assertEquals(NUM_CLIENT_THREADS * ITERATIONS - numValid, numInvalid.get());
 
-						if (!allTrue && !allFalse) {
-							concurrentTestHasFailed.set(true);
+		// The copies left are not enough for this purchase.
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+		try {
+			purchaseBatcher.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		StockBook book = storeManager.getBooks().get(0);
+		assertEquals(NUM_COPIES - numValid, book.getNumCopies());
+		assertEquals(numValid, book.getNumSaleMisses());
+	}
+
+	/**
+	 * Tests that concurrent ratings of a single book are all applied, and that
+	 * the book is then the top rated book.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testConcurrentRatingsOfOneBook() throws BookStoreException, InterruptedException {
+		// The single lock store, which the server runs by default, does not
+		// support ratings.
+		Assume.assumeTrue(localTest && !singleLock);
+
+		int NUM_CLIENT_THREADS = 8;
+		int ITERATIONS = 100;
+		AtomicInteger totalRating = new AtomicInteger();
+
+		Thread[] clientThreads = new Thread[NUM_CLIENT_THREADS];
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i] = new Thread(() -> {
+				for (int j = 0; j < ITERATIONS; j++) {
+					int rating = j % 6;
+					Set<BookRating> booksToRate = new HashSet<BookRating>();
+					booksToRate.add(new BookRating(TEST_ISBN, rating));
+					try {
+						client.rateBooks(booksToRate);
+						totalRating.addAndGet(rating);
+					} catch (BookStoreException e) {
+						; // Checked by the number of ratings below
+					}
+				}
+			});
+			clientThreads[i].start();
+		}
+
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i].join();
+		}
+
+		flushRatings();
+
+		StockBook book = storeManager.getBooks().get(0);
+		assertEquals(NUM_CLIENT_THREADS * ITERATIONS, book.getNumTimesRated());
+		assertEquals(totalRating.get(), book.getTotalRating());
+
+		List<Book> topRatedBooks = client.getTopRatedBooks(1);
+		assertEquals(1, topRatedBooks.size());
+		assertEquals(TEST_ISBN, topRatedBooks.get(0).getISBN());
+	}
+
+	/**
+	 * Tests that the two level store releases all its locks after operations
+	 * on several books, including operations which fail part way.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testLocksReleasedAfterFailures() throws BookStoreException {
+		// Only the two level store locks through a lock manager.
+		Assume.assumeTrue(client instanceof TwoLevelLockingConcurrentCertainBookStore);
+		LockManager lockManager = ((TwoLevelLockingConcurrentCertainBookStore) client).getLockManager();
+		addBooks(TEST_ISBN + 1, 1);
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		booksToBuy.add(new BookCopy(TEST_ISBN + 1, 1));
+		client.buyBooks(booksToBuy);
+
+		// The copies of the second book are sold out.
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		booksToBuy.add(new BookCopy(-1, 1));
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN);
+		isbns.add(TEST_ISBN + 2);
+		try {
+			storeManager.getBooksByISBN(isbns);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		try {
+			storeManager.removeBooks(isbns);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		client.getEditorPicks(1);
+		client.getTopRatedBooks(1);
+		storeManager.getBooks();
+
+		assertEquals(0, lockManager.getNumHeldLocks());
+		assertEquals(0, lockManager.getStoreStatistics().getHolds());
+		assertTrue(lockManager.getStoreStatistics().getAcquisitions() > 0);
+
+		// Locking only the store does not lock the books.
+		if (!lockManager.isCoarse()) {
+			assertTrue(lockManager.getBookStatistics().getAcquisitions() > 0);
+		}
+	}
+
+	/**
+	 * Tests that the two level store drops the locks of removed books, also
+	 * when customers buy the books while they are removed and added again.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLocksOfRemovedBooksDropped() throws Exception {
+		// Only the two level store locks through a lock manager.
+		Assume.assumeTrue(client instanceof TwoLevelLockingConcurrentCertainBookStore);
+		LockManager lockManager = ((TwoLevelLockingConcurrentCertainBookStore) client).getLockManager();
+		int NUM_CLIENT_THREADS = 4;
+		int ITERATIONS = 200;
+		Set<Integer> churnedISBNs = Collections.singleton(TEST_ISBN + 1);
+		AtomicBoolean done = new AtomicBoolean(false);
+
+		Thread[] clientThreads = new Thread[NUM_CLIENT_THREADS];
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i] = new Thread(() -> {
+				Set<BookCopy> booksToBuy = Collections.singleton(new BookCopy(TEST_ISBN + 1, 1));
+
+				while (!done.get()) {
+					try {
+						client.buyBooks(booksToBuy);
+					} catch (BookStoreException ex) {
+						;
+					}
+				}
+			});
+			clientThreads[i].start();
+		}
+
+		try {
+			for (int i = 0; i < ITERATIONS; i++) {
+				addBooks(TEST_ISBN + 1, NUM_COPIES);
+				storeManager.removeBooks(churnedISBNs);
+			}
+		} finally {
+			done.set(true);
+
+			for (Thread clientThread : clientThreads) {
+				clientThread.join();
+			}
+		}
+
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		storeManager.removeBooks(churnedISBNs);
+		assertEquals(Collections.singleton(TEST_ISBN), lockManager.getBookISBNs());
+	}
+
+	/**
+	 * Tests that a request locking more books than the escalation threshold
+	 * switches the adaptive store to locking only the store, and that
+	 * purchases stay atomic while the store keeps switching granularity.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testLockGranularitySwitches() throws BookStoreException, InterruptedException {
+		AdaptiveLockingConcurrentCertainBookStore store = new AdaptiveLockingConcurrentCertainBookStore(2);
+		LockManager lockManager = store.getLockManager();
+		int NUM_BOOKS = 3;
+		int NUM_CLIENT_THREADS = 4;
+		int ITERATIONS = 100;
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		for (int i = 1; i <= NUM_BOOKS; i++) {
+			booksToAdd.add(new ImmutableStockBook(i, "Title", "Author", 1f, NUM_CLIENT_THREADS * ITERATIONS, 0, 0, 0,
+					false));
+		}
+
+		// Adding three books escalates.
+		store.addBooks(booksToAdd);
+		assertTrue(lockManager.isCoarse());
+
+		lockManager.setCoarse(false);
+		assertFalse(lockManager.isCoarse());
+
+		AtomicBoolean done = new AtomicBoolean(false);
+		Thread switchThread = new Thread(() -> {
+			for (boolean coarse = true; !done.get(); coarse = !coarse) {
+				lockManager.setCoarse(coarse);
+				Thread.yield();
+			}
+		});
+		switchThread.start();
+
+		Thread[] clientThreads = new Thread[NUM_CLIENT_THREADS];
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			int isbn = 1 + i % NUM_BOOKS;
+			clientThreads[i] = new Thread(() -> {
+				Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+				booksToBuy.add(new BookCopy(isbn, 1));
+				Set<BookCopy> allBooksToBuy = new HashSet<BookCopy>();
+				for (int j = 1; j <= NUM_BOOKS; j++) {
+					allBooksToBuy.add(new BookCopy(j, 1));
+				}
+				for (int j = 0; j < ITERATIONS; j++) {
+					try {
+						store.buyBooks(j % 2 == 0 ? booksToBuy : allBooksToBuy);
+						store.addCopies(j % 2 == 0 ? booksToBuy : allBooksToBuy);
+					} catch (BookStoreException e) {
+						fail(e.getMessage());
+					}
+				}
+			});
+			clientThreads[i].start();
+		}
+
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i].join();
+		}
+
+		done.set(true);
+		switchThread.join();
+
+		for (StockBook book : store.getBooks()) {
+			assertEquals(NUM_CLIENT_THREADS * ITERATIONS, book.getNumCopies());
+			assertEquals(0, book.getNumSaleMisses());
+		}
+
+		assertTrue(lockManager.getNumSwitches() > 2);
+		assertEquals(0, lockManager.getNumHeldLocks());
+		store.close();
+	}
+
+	/**
+	 * Tests that the adaptive store switches to locking only the store when
+	 * the requests lock many books each without waiting for them, even
+	 * though none of them escalates, and not when they lock a single book.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testLockOverheadSwitches() throws BookStoreException {
+		AdaptiveLockingConcurrentCertainBookStore store = new AdaptiveLockingConcurrentCertainBookStore(4);
+		LockManager lockManager = store.getLockManager();
+		int NUM_BOOKS = 4;
+		int NUM_REQUESTS = 256;
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		Set<BookCopy> allBookCopies = new HashSet<BookCopy>();
+		for (int i = 1; i <= NUM_BOOKS; i++) {
+			booksToAdd.add(new ImmutableStockBook(i, "Title", "Author", 1f, 1, 0, 0, 0, false));
+			allBookCopies.add(new BookCopy(i, 1));
+		}
+		store.addBooks(booksToAdd);
+
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			store.addCopies(Collections.singleton(new BookCopy(1, 1)));
+		}
+		store.adapt();
+		assertFalse(lockManager.isCoarse());
+
+		// The store may check the locks by itself in between.
+		for (int round = 0; round < 10 && !lockManager.isCoarse(); round++) {
+			for (int i = 0; i < NUM_REQUESTS; i++) {
+				store.addCopies(allBookCopies);
+			}
+			store.adapt();
+		}
+
+		assertTrue(lockManager.isCoarse());
+		assertEquals(0, lockManager.getNumLargeRequests());
+		store.close();
+	}
+
+	/**
+	 * Tests that purchases of a book whose copies are split into shares never
+	 * sell more copies than the stock, while the book is restocked, and that
+	 * the copies left and sold add up to the copies added.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testEscrowPurchases() throws BookStoreException, InterruptedException {
+		TwoLevelLockingConcurrentCertainBookStore store = new TwoLevelLockingConcurrentCertainBookStore(4);
+		int NUM_CLIENT_THREADS = 4;
+		int ITERATIONS = 200;
+		int INITIAL_COPIES = NUM_CLIENT_THREADS * ITERATIONS / 4;
+		int RESTOCKS = ITERATIONS / 2;
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(1, "Title", "Author", 1f, INITIAL_COPIES, 0, 0, 0, false));
+		store.addBooks(booksToAdd);
+
+		Set<BookCopy> booksToBuy = Collections.singleton(new BookCopy(1, 1));
+		AtomicInteger numBought = new AtomicInteger();
+		AtomicInteger numMissed = new AtomicInteger();
+
+		Thread[] clientThreads = new Thread[NUM_CLIENT_THREADS];
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i] = new Thread(() -> {
+				for (int j = 0; j < ITERATIONS; j++) {
+					try {
+						store.buyBooks(booksToBuy);
+						numBought.incrementAndGet();
+					} catch (BookStoreException e) {
+						numMissed.incrementAndGet();
+					}
+				}
+			});
+			clientThreads[i].start();
+		}
+
+		for (int i = 0; i < RESTOCKS; i++) {
+			store.addCopies(booksToBuy);
+		}
+
+		for (int i = 0; i < NUM_CLIENT_THREADS; i++) {
+			clientThreads[i].join();
+		}
+
+		// More copies are bought than ever added, so some purchases miss.
+		StockBook book = store.getBooks().get(0);
+		assertEquals(NUM_CLIENT_THREADS * ITERATIONS, numBought.get() + numMissed.get());
+		assertTrue(numMissed.get() > 0);
+		assertEquals(INITIAL_COPIES + RESTOCKS, numBought.get() + book.getNumCopies());
+	}
+
+	/**
+	 * Tests concurrency through editor pick toggeling. This allows us to further test
+	 * concurrency correctness of the BookStore interface
+	 * We have two threads C1 and C2, C1 will run and toggle the editor status for a set of books
+	 * while C2 will retrieve the editors picks and validate if it is consistent.
+	 * I.e. if all books are either editors picks or not. Since we initialize all as false,
+	 * we should never get a mix of true and false
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void additionalConcurrencyTest5() throws InterruptedException {
+		final int ITERATIONS = 150;
+		final int NUM_BOOKS = 50;
+
+		Set<StockBook> booksToAdd = new HashSet<>();
+		for (int i = 1; i <= NUM_BOOKS; i++) {
+			booksToAdd.add(
+					new ImmutableStockBook(i, "Title", "Author",1f, 5, 0, 0, 0, false));
+		}
+
+		final AtomicBoolean concurrentTestHasFailed = new AtomicBoolean(false);
+
+		try {
+			// Add books to store
+			storeManager.addBooks(booksToAdd);
+
+			// Prepare editor pick toggles
+			Set<BookEditorPick> toggleEditorPicksTrue = booksToAdd.stream()
+					.map(book -> new BookEditorPick(book.getISBN(), true))
+					.collect(Collectors.toSet());
+
+			Set<BookEditorPick> toggleEditorPicksFalse = booksToAdd.stream()
+					.map(book -> new BookEditorPick(book.getISBN(), false))
+					.collect(Collectors.toSet());
+
+			// Thread C1: Toggles editor pick status
+			Thread C1Thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < ITERATIONS; i++) {
+						// Set all to true
+						storeManager.updateEditorPicks(toggleEditorPicksTrue);
+						// Set all to false
+						storeManager.updateEditorPicks(toggleEditorPicksFalse);
+					}
+				} catch (BookStoreException e) {
+					concurrentTestHasFailed.set(true);
+					e.printStackTrace();
+				}
+			});
+
+			// Thread C2: Retrieves editor picks and validates consistency
+			Thread C2Thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < ITERATIONS * 2; i++) { // Twice the iterations to match toggles
+						List<Book> editorPicks = client.getEditorPicks(NUM_BOOKS);
+
+						// Validate snapshot
+						boolean allTrue = editorPicks.size() == NUM_BOOKS;
+						boolean allFalse = editorPicks.isEmpty();
+
+						if (!allTrue && !allFalse) {
+							concurrentTestHasFailed.set(true);
 							fail("Inconsistent editor pick snapshot observed");
 						}
 					}
@@ -784,6 +1585,165 @@ public class BookStoreTest {
 		assertFalse(concurrentTestHasFailed.get());
 	}
 
+	/**
+	 * Tests that snapshots observe failed purchases atomically. C1 repeatedly
+	 * tries to buy more copies than available of a fixed collection of books,
+	 * which records a sale miss for every book of the collection at once. C2
+	 * continuously calls getBooks and ensures that all books of the collection
+	 * have the same number of sale misses in every snapshot.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void additionalConcurrencyTest6() throws InterruptedException {
+		final int ITERATIONS = 500;
+		final int NUM_BOOKS = 50;
+
+		Set<StockBook> booksToAdd = new HashSet<>();
+		for (int i = 1; i <= NUM_BOOKS; i++) {
+			booksToAdd.add(
+					new ImmutableStockBook(i, "Title", "Author", 1f, 1, 0, 0, 0, false));
+		}
+
+		final AtomicBoolean concurrentTestHasFailed = new AtomicBoolean(false);
+
+		try {
+			storeManager.addBooks(booksToAdd);
+
+			Set<BookCopy> booksToBuy = booksToAdd.stream()
+					.map(book -> new BookCopy(book.getISBN(), 2))
+					.collect(Collectors.toSet());
+
+			// Thread C1: Fails to buy all books at once
+			Thread C1Thread = new Thread(() -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					try {
+						client.buyBooks(booksToBuy);
+						concurrentTestHasFailed.set(true);
+					} catch (BookStoreException e) {
+						; // Expected, all books miss one copy
+					}
+				}
+			});
+
+			// Thread C2: Checks that all books have the same sale misses
+			Thread C2Thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < ITERATIONS; i++) {
+						Set<Long> saleMisses = storeManager.getBooks().stream()
+								.filter(book -> book.getISBN() <= NUM_BOOKS)
+								.map(StockBook::getNumSaleMisses)
+								.collect(Collectors.toSet());
+
+						if (saleMisses.size() != 1) {
+							concurrentTestHasFailed.set(true);
+							fail("Inconsistent sale misses observed: " + saleMisses);
+						}
+					}
+				} catch (BookStoreException e) {
+					concurrentTestHasFailed.set(true);
+					e.printStackTrace();
+					fail("Exception in C2: " + e.getMessage());
+				}
+			});
+
+			C1Thread.start();
+			C2Thread.start();
+
+			C1Thread.join();
+			C2Thread.join();
+
+			// All attempts are eventually visible
+			for (StockBook book : storeManager.getBooks()) {
+				if (book.getISBN() <= NUM_BOOKS) {
+					assertEquals(ITERATIONS, book.getNumSaleMisses());
+				}
+			}
+		} catch (BookStoreException e) {
+			e.printStackTrace();
+			fail("Exception during setup: " + e.getMessage());
+		}
+
+		assertFalse(concurrentTestHasFailed.get());
+	}
+
+	/**
+	 * Tests that the books read by ISBN and by page are consistent with each
+	 * other while a thread C1 buys a copy of all books at once and adds it
+	 * back, i.e. that every read sees all books either bought or replenished.
+	 *
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testConsistentBooksByISBN() throws InterruptedException {
+		final int ITERATIONS = 300;
+		final int NUM_BOOKS = 50;
+
+		Set<StockBook> booksToAdd = new HashSet<>();
+		for (int i = 1; i <= NUM_BOOKS; i++) {
+			booksToAdd.add(
+					new ImmutableStockBook(i, "Title", "Author", 1f, 1, 0, 0, 0, false));
+		}
+
+		Set<Integer> isbns = booksToAdd.stream().map(StockBook::getISBN).collect(Collectors.toSet());
+		final AtomicBoolean concurrentTestHasFailed = new AtomicBoolean(false);
+
+		try {
+			storeManager.addBooks(booksToAdd);
+
+			Set<BookCopy> booksToBuy = booksToAdd.stream()
+					.map(book -> new BookCopy(book.getISBN(), 1))
+					.collect(Collectors.toSet());
+
+			// Thread C1: Buys all books at once and replenishes them
+			Thread C1Thread = new Thread(() -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					try {
+						client.buyBooks(booksToBuy);
+						storeManager.addCopies(booksToBuy);
+					} catch (BookStoreException e) {
+						concurrentTestHasFailed.set(true);
+						e.printStackTrace();
+					}
+				}
+			});
+
+			// Thread C2: Checks that all books have the same number of copies
+			Thread C2Thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < ITERATIONS; i++) {
+						Set<Integer> byISBN = storeManager.getBooksByISBN(isbns).stream()
+								.map(StockBook::getNumCopies)
+								.collect(Collectors.toSet());
+						Set<Integer> byPage = storeManager.getBooks(0, NUM_BOOKS).stream()
+								.map(StockBook::getNumCopies)
+								.collect(Collectors.toSet());
+
+						if (byISBN.size() != 1 || byPage.size() != 1) {
+							concurrentTestHasFailed.set(true);
+							fail("Inconsistent copies observed: " + byISBN + ", " + byPage);
+						}
+					}
+				} catch (BookStoreException e) {
+					concurrentTestHasFailed.set(true);
+					e.printStackTrace();
+					fail("Exception in C2: " + e.getMessage());
+				}
+			});
+
+			C1Thread.start();
+			C2Thread.start();
+
+			C1Thread.join();
+			C2Thread.join();
+		} catch (BookStoreException e) {
+			e.printStackTrace();
+			fail("Exception during setup: " + e.getMessage());
+		}
+
+		assertFalse(concurrentTestHasFailed.get());
+	}
+
 
 	/**
 	 * Tear down after class.
@@ -798,6 +1758,10 @@ public class BookStoreTest {
 		if (!localTest) {
 			((BookStoreHTTPProxy) client).stop();
 			((StockManagerHTTPProxy) storeManager).stop();
+		} else if (client instanceof AdaptiveLockingConcurrentCertainBookStore) {
+			((AdaptiveLockingConcurrentCertainBookStore) client).close();
+		} else if (client instanceof AbstractPartitionedCertainBookStore) {
+			((AbstractPartitionedCertainBookStore) client).close();
 		}
 	}
 
@@ -0,0 +1,154 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.LockManager;
+
+/**
+ * {@link LockManagerTest} tests the upgrades and statistics of the
+ * {@link LockManager}.
+ *
+ * @see LockManager
+ */
+public class LockManagerTest {
+
+	/**
+	 * Waits until the book locks were waited for a number of times.
+	 *
+	 * @param lockManager
+	 *            the lock manager
+	 * @param numWaits
+	 *            the number of waits
+	 */
+	private static void awaitWaits(LockManager lockManager, long numWaits) {
+		while (lockManager.getBookStatistics().getWaits() < numWaits) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Makes a thread wait for a book while the current thread holds it.
+	 *
+	 * @param lockManager
+	 *            the lock manager
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param holdMillis
+	 *            the time the book is held once the thread waits for it
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	private static void contend(LockManager lockManager, int isbn, long holdMillis) throws InterruptedException {
+		long numWaits = lockManager.getBookStatistics().getWaits();
+		assertTrue(lockManager.lockExistingBook(isbn, true));
+
+		Thread waiter = new Thread(() -> {
+			lockManager.lockExistingBook(isbn, false);
+			lockManager.unlockBook(isbn, false);
+		});
+		waiter.start();
+
+		awaitWaits(lockManager, numWaits + 1);
+		Thread.sleep(holdMillis);
+		lockManager.unlockBook(isbn, true);
+		waiter.join();
+	}
+
+	/**
+	 * Tests that an upgraded lock excludes the readers of the book until it
+	 * is released.
+	 *
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testUpgrade() throws InterruptedException {
+		LockManager lockManager = new LockManager();
+		lockManager.addBook(1);
+
+		assertTrue(lockManager.lockExistingBook(1, false));
+		assertTrue(lockManager.upgradeBook(1));
+
+		AtomicBoolean read = new AtomicBoolean(false);
+		Thread reader = new Thread(() -> {
+			lockManager.lockExistingBook(1, false);
+			read.set(true);
+			lockManager.unlockBook(1, false);
+		});
+		reader.start();
+
+		awaitWaits(lockManager, 1);
+		assertFalse(read.get());
+
+		lockManager.unlockBook(1, true);
+		reader.join();
+		assertTrue(read.get());
+		assertEquals(0, lockManager.getNumHeldLocks());
+	}
+
+	/**
+	 * Tests that a thread upgrading a book while another thread waits to
+	 * upgrade it fails and keeps its shared lock, and that the waiting thread
+	 * upgrades once the shared lock is released.
+	 *
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testConcurrentUpgrade() throws InterruptedException {
+		LockManager lockManager = new LockManager();
+		lockManager.addBook(1);
+		AtomicBoolean upgraded = new AtomicBoolean(false);
+
+		assertTrue(lockManager.lockExistingBook(1, false));
+
+		Thread upgrader = new Thread(() -> {
+			lockManager.lockExistingBook(1, false);
+			upgraded.set(lockManager.upgradeBook(1));
+			lockManager.unlockBook(1, true);
+		});
+		upgrader.start();
+
+		// The other thread waits for the shared lock of this one.
+		awaitWaits(lockManager, 1);
+		assertFalse(lockManager.upgradeBook(1));
+		assertEquals(1, lockManager.getNumHeldLocks());
+
+		lockManager.unlockBook(1, false);
+		upgrader.join();
+		assertTrue(upgraded.get());
+		assertEquals(0, lockManager.getNumHeldLocks());
+	}
+
+	/**
+	 * Tests that the hottest book locks are the ones waited for the longest,
+	 * in descending order of the time waited.
+	 *
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testHottestBookStatistics() throws InterruptedException {
+		LockManager lockManager = new LockManager();
+
+		for (int isbn = 1; isbn <= 3; isbn++) {
+			lockManager.addBook(isbn);
+		}
+
+		contend(lockManager, 1, 10);
+		contend(lockManager, 2, 200);
+
+		List<LockManager.LockStatistics> hottest = lockManager.getHottestBookStatistics(2);
+		assertEquals(2, hottest.size());
+		assertEquals("book 2", hottest.get(0).getName());
+		assertEquals("book 1", hottest.get(1).getName());
+		assertTrue(hottest.get(0).getWaitNanos() >= hottest.get(1).getWaitNanos());
+		assertEquals(1, hottest.get(0).getWaits());
+		assertEquals(3, lockManager.getHottestBookStatistics(10).size());
+	}
+}
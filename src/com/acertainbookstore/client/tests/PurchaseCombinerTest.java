@@ -0,0 +1,162 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.PurchaseCombiner;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link PurchaseCombinerTest} tests the {@link PurchaseCombiner} with a store
+ * keeping the copies of its books in counters.
+ *
+ * @see PurchaseCombiner
+ */
+public class PurchaseCombinerTest {
+
+	/** The number of customers buying at once. */
+	private static final int NUM_CUSTOMERS = 8;
+
+	/** The number of purchases of every customer. */
+	private static final int NUM_PURCHASES = 200;
+
+	/**
+	 * Runs customers at once and waits for them.
+	 *
+	 * @param customer
+	 *            the purchases of a customer, given the index of the customer
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static void runCustomers(Customer customer) throws Exception {
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> failures = new ArrayList<>();
+
+		for (int i = 0; i < NUM_CUSTOMERS; i++) {
+			int index = i;
+			threads.add(new Thread(() -> {
+				try {
+					customer.buy(index);
+				} catch (Exception | AssertionError ex) {
+					synchronized (failures) {
+						failures.add(ex);
+					}
+				}
+			}));
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		if (!failures.isEmpty() && failures.get(0) instanceof AssertionError) {
+			throw (AssertionError) failures.get(0);
+		} else if (!failures.isEmpty()) {
+			throw (Exception) failures.get(0);
+		}
+	}
+
+	/**
+	 * The purchases of a customer.
+	 */
+	@FunctionalInterface
+	private interface Customer {
+
+		/**
+		 * Makes the purchases.
+		 *
+		 * @param index
+		 *            the index of the customer
+		 * @throws Exception
+		 *             the exception
+		 */
+		void buy(int index) throws Exception;
+	}
+
+	/**
+	 * Tests that concurrent purchases of a book buy exactly the copies in
+	 * stock.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConcurrentPurchases() throws Exception {
+		int numCopies = NUM_CUSTOMERS * NUM_PURCHASES / 2;
+		AtomicInteger stock = new AtomicInteger(numCopies);
+		AtomicInteger numBought = new AtomicInteger();
+		PurchaseCombiner combiner = new PurchaseCombiner((isbn, purchases) -> {
+			for (PurchaseCombiner.Purchase purchase : purchases) {
+				if (stock.get() >= purchase.getBookCopy().getNumCopies()) {
+					stock.addAndGet(-purchase.getBookCopy().getNumCopies());
+					purchase.setBought(true);
+				}
+			}
+		});
+
+		runCustomers(index -> {
+			for (int i = 0; i < NUM_PURCHASES; i++) {
+				if (combiner.buy(new BookCopy(1, 1))) {
+					numBought.incrementAndGet();
+				}
+			}
+		});
+
+		assertEquals(0, stock.get());
+		assertEquals(numCopies, numBought.get());
+		assertEquals(0, combiner.size());
+	}
+
+	/**
+	 * Tests that the pending purchases of books are not kept once the books
+	 * are no longer bought, whether the books exist or not, and that invalid
+	 * ISBNs are rejected before any purchase is pending.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPendingPurchasesDropped() throws Exception {
+		PurchaseCombiner combiner = new PurchaseCombiner((isbn, purchases) -> {
+			for (PurchaseCombiner.Purchase purchase : purchases) {
+				if (isbn % 2 == 0) {
+					purchase.setFailure(new BookStoreException("ISBN = " + isbn + " is not available"));
+				}
+			}
+		});
+
+		try {
+			combiner.buy(new BookCopy(-1, 1));
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		assertEquals(0, combiner.size());
+
+		runCustomers(index -> {
+			for (int i = 0; i < NUM_PURCHASES; i++) {
+				int isbn = 1 + index * NUM_PURCHASES + i;
+
+				try {
+					assertFalse(combiner.buy(new BookCopy(isbn, 1)));
+					assertTrue(isbn % 2 == 1);
+				} catch (BookStoreException ex) {
+					assertTrue(isbn % 2 == 0);
+				}
+			}
+		});
+
+		assertEquals(0, combiner.size());
+	}
+}
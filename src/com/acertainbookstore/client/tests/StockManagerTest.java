@@ -13,9 +13,15 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainbookstore.business.AbstractPartitionedCertainBookStore;
+import com.acertainbookstore.business.AdaptiveLockingConcurrentCertainBookStore;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.DeterministicCertainBookStore;
+import com.acertainbookstore.business.PartitionedConcurrentCertainBookStore;
+import com.acertainbookstore.business.RingBufferCertainBookStore;
+import com.acertainbookstore.business.ShardedCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
@@ -57,7 +63,33 @@ public class StockManagerTest {
 			String localTestProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
 			localTest = (localTestProperty != null) ? Boolean.parseBoolean(localTestProperty) : localTest;
 			
-			if (localTest) {
+			String partitionsProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_PARTITIONS);
+			String shardsProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_SHARDS);
+			String adaptiveLockingProperty = System.getProperty(BookStoreConstants.PROPERTY_KEY_ADAPTIVE_LOCKING);
+
+			if (localTest && Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_DETERMINISTIC)) {
+				DeterministicCertainBookStore store = new DeterministicCertainBookStore();
+				storeManager = store;
+				client = store;
+			} else if (localTest && Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_RING_BUFFER)) {
+				RingBufferCertainBookStore store = new RingBufferCertainBookStore();
+				storeManager = store;
+				client = store;
+			} else if (localTest && shardsProperty != null) {
+				ShardedCertainBookStore store = new ShardedCertainBookStore(Integer.parseInt(shardsProperty));
+				storeManager = store;
+				client = store;
+			} else if (localTest && partitionsProperty != null) {
+				PartitionedConcurrentCertainBookStore store = new PartitionedConcurrentCertainBookStore(
+						Integer.parseInt(partitionsProperty));
+				storeManager = store;
+				client = store;
+			} else if (localTest && adaptiveLockingProperty != null) {
+				AdaptiveLockingConcurrentCertainBookStore store = new AdaptiveLockingConcurrentCertainBookStore(
+						Integer.parseInt(adaptiveLockingProperty));
+				storeManager = store;
+				client = store;
+			} else if (localTest) {
 				SingleLockConcurrentCertainBookStore store = new SingleLockConcurrentCertainBookStore();
 				storeManager = store;
 				client = store;
@@ -451,6 +483,163 @@ public class StockManagerTest {
 		assertTrue(booksToAdd.containsAll(listBooks) && booksToAdd.size() == listBooks.size());
 	}
 
+	/**
+	 * Tests that paging through the books with getBooks(afterISBN, numBooks)
+	 * returns every book exactly once, ordered by ISBN.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksPaginated() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		for (int i = 1; i <= 10; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Title " + i, "Author", (float) 10, NUM_COPIES, 0, 0,
+					0, false));
+		}
+		storeManager.addBooks(booksToAdd);
+
+		List<StockBook> pagedBooks = new ArrayList<StockBook>();
+		List<StockBook> page;
+		int afterISBN = 0;
+
+		do {
+			page = storeManager.getBooks(afterISBN, 3);
+			assertTrue(page.size() <= 3);
+			pagedBooks.addAll(page);
+
+			if (!page.isEmpty()) {
+				afterISBN = page.get(page.size() - 1).getISBN();
+			}
+		} while (page.size() == 3);
+
+		List<StockBook> booksInStoreList = storeManager.getBooks();
+		assertTrue(pagedBooks.containsAll(booksInStoreList) && pagedBooks.size() == booksInStoreList.size());
+
+		for (int i = 1; i < pagedBooks.size(); i++) {
+			assertTrue(pagedBooks.get(i - 1).getISBN() < pagedBooks.get(i).getISBN());
+		}
+	}
+
+	/**
+	 * Tests that a page of books cannot be requested with an invalid number of
+	 * books.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksPaginatedInvalidNumBooks() throws BookStoreException {
+		try {
+			storeManager.getBooks(0, -1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the most demanded books are returned in order of sale misses
+	 * and leave the books in demand when copies are added.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksInDemandMostDemanded() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, NUM_COPIES, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 50, NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		// Miss one copy of the first book and three copies of the second.
+		for (int[] miss : new int[][] { { TEST_ISBN + 1, 1 }, { TEST_ISBN + 2, 3 } }) {
+			Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+			booksToBuy.add(new BookCopy(miss[0], NUM_COPIES + miss[1]));
+
+			try {
+				client.buyBooks(booksToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+		}
+
+		List<StockBook> mostDemanded = storeManager.getBooksInDemand(1);
+		assertEquals(1, mostDemanded.size());
+		assertEquals(TEST_ISBN + 2, mostDemanded.get(0).getISBN());
+		assertEquals(3, mostDemanded.get(0).getNumSaleMisses());
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand(10);
+		assertEquals(2, booksInDemand.size());
+		assertEquals(TEST_ISBN + 1, booksInDemand.get(1).getISBN());
+
+		// Adding copies resets the sale misses.
+		Set<BookCopy> booksToCopy = new HashSet<BookCopy>();
+		booksToCopy.add(new BookCopy(TEST_ISBN + 2, NUM_COPIES));
+		storeManager.addCopies(booksToCopy);
+
+		booksInDemand = storeManager.getBooksInDemand(10);
+		assertEquals(1, booksInDemand.size());
+		assertEquals(TEST_ISBN + 1, booksInDemand.get(0).getISBN());
+	}
+
+	/**
+	 * Tests that a negative number of most demanded books is rejected.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksInDemandInvalidNumBooks() throws BookStoreException {
+		try {
+			storeManager.getBooksInDemand(-1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the books running out of stock are found by their number of
+	 * copies as books are bought and restocked.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksByNumCopies() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "The Art of Computer Programming", "Donald Knuth",
+				(float) 300, 1, 0, 0, 0, false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "The C Programming Language",
+				"Dennis Ritchie and Brian Kerninghan", (float) 50, 3, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		List<StockBook> lowStock = storeManager.getBooksByNumCopies(0, NUM_COPIES - 1, 0, 10);
+		assertEquals(2, lowStock.size());
+		assertEquals(TEST_ISBN + 1, lowStock.get(0).getISBN());
+		assertEquals(TEST_ISBN + 2, lowStock.get(1).getISBN());
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 2));
+		booksToBuy.add(new BookCopy(TEST_ISBN + 2, 3));
+		client.buyBooks(booksToBuy);
+
+		Set<BookCopy> booksToCopy = new HashSet<BookCopy>();
+		booksToCopy.add(new BookCopy(TEST_ISBN + 1, NUM_COPIES));
+		storeManager.addCopies(booksToCopy);
+
+		lowStock = storeManager.getBooksByNumCopies(0, NUM_COPIES - 1, 0, 10);
+		assertEquals(2, lowStock.size());
+		assertEquals(TEST_ISBN + 2, lowStock.get(0).getISBN());
+		assertEquals(0, lowStock.get(0).getNumCopies());
+		assertEquals((int) TEST_ISBN, lowStock.get(1).getISBN());
+		assertEquals(NUM_COPIES - 2, lowStock.get(1).getNumCopies());
+	}
+
 	/**
 	 * Tests basic removeAllBooks functionality.
 	 *
@@ -475,6 +664,50 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that restocking a book while it is removed and added again neither
+	 * blocks nor brings the removed book back.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testAddCopiesWhileRemovingBook() throws BookStoreException, InterruptedException {
+		Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+		booksToAdd.add(new BookCopy(TEST_ISBN, 1));
+
+		Thread storeManagerThread = new Thread(() -> {
+			for (int i = 0; i < 1000; i++) {
+				try {
+					storeManager.addCopies(booksToAdd);
+				} catch (BookStoreException e) {
+					// The book was removed at that moment.
+				}
+			}
+		});
+		storeManagerThread.start();
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		Set<StockBook> booksToReAdd = new HashSet<StockBook>();
+		booksToReAdd.add(getDefaultBook());
+
+		for (int i = 0; i < 100; i++) {
+			storeManager.removeBooks(isbnSet);
+			assertTrue(storeManager.getBooks().isEmpty());
+			storeManager.addBooks(booksToReAdd);
+		}
+
+		storeManagerThread.join(10000);
+		assertFalse(storeManagerThread.isAlive());
+
+		List<StockBook> booksInStoreList = storeManager.getBooks();
+		assertEquals(1, booksInStoreList.size());
+		assertTrue(booksInStoreList.get(0).getNumCopies() >= NUM_COPIES);
+	}
+
 	/**
 	 * Tear down after class.
 	 *
@@ -488,6 +721,10 @@ public class StockManagerTest {
 		if (!localTest) {
 			((BookStoreHTTPProxy) client).stop();
 			((StockManagerHTTPProxy) storeManager).stop();
+		} else if (client instanceof AdaptiveLockingConcurrentCertainBookStore) {
+			((AdaptiveLockingConcurrentCertainBookStore) client).close();
+		} else if (client instanceof AbstractPartitionedCertainBookStore) {
+			((AbstractPartitionedCertainBookStore) client).close();
 		}
 	}
 }
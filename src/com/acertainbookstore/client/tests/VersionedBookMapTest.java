@@ -0,0 +1,65 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookStoreBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.VersionedBookMap;
+
+/**
+ * {@link VersionedBookMapTest} tests that the {@link VersionedBookMap} keeps
+ * old versions of the books only while snapshots can read them.
+ *
+ * @see VersionedBookMap
+ */
+public class VersionedBookMapTest {
+
+	/**
+	 * Tests that publishing a book again drops its older versions when no
+	 * snapshot is active.
+	 */
+	@Test
+	public void testOldVersionsPruned() {
+		VersionedBookMap versionedBookMap = new VersionedBookMap();
+		BookStoreBook book = new BookStoreBook(1, "Title", "Author", 1f, 1);
+
+		for (int i = 0; i < 3; i++) {
+			book.addCopies(1);
+			versionedBookMap.publish(Collections.singleton(book));
+		}
+
+		assertEquals(1, versionedBookMap.getNumVersions());
+		assertEquals(4, versionedBookMap.snapshot().get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that a snapshot keeps reading the versions of its timestamp while
+	 * books are changed and removed, and that these versions and the
+	 * tombstones of the removed books are dropped once it ends.
+	 */
+	@Test
+	public void testSnapshotVersionsAndTombstonesPruned() {
+		VersionedBookMap versionedBookMap = new VersionedBookMap();
+		BookStoreBook book = new BookStoreBook(1, "Title", "Author", 1f, 1);
+		versionedBookMap.publish(Collections.singleton(book));
+
+		// The filter runs while the snapshot is active.
+		List<StockBook> books = versionedBookMap.snapshot(snapshotBook -> {
+			book.addCopies(1);
+			versionedBookMap.publish(Collections.singleton(book));
+			versionedBookMap.publishRemoval(Collections.singleton(1));
+			assertEquals(3, versionedBookMap.getNumVersions());
+			return true;
+		});
+
+		assertEquals(1, books.size());
+		assertEquals(1, books.get(0).getNumCopies());
+		assertEquals(0, versionedBookMap.getNumVersions());
+		assertTrue(versionedBookMap.snapshot().isEmpty());
+	}
+}
@@ -2,6 +2,7 @@ package com.acertainbookstore.interfaces;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
@@ -67,4 +68,117 @@ public interface BookStore {
 	 *             the book store exception
 	 */
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException;
+
+	/**
+	 * Searches the books whose title or author contain all the words of the
+	 * query, ignoring case and punctuation.
+	 *
+	 * @param query
+	 *            the query
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return at most numBooks matching books, in order of ISBN
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<Book> searchBooks(String query, int numBooks) throws BookStoreException;
+
+	/**
+	 * Completes a query typed by a customer to the highest rated books. All
+	 * words of the query but the last must be words of the title or author of
+	 * a book, and the last word must be the beginning of one.
+	 *
+	 * @param query
+	 *            the query typed so far
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return at most numBooks books, highest average rating first and then in
+	 *         order of ISBN
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<Book> autocompleteBooks(String query, int numBooks) throws BookStoreException;
+
+	/**
+	 * Gets a page of at most numBooks books in stock with a price between
+	 * minPrice and maxPrice, both inclusive, ordered by price and then by
+	 * ISBN. Books priced minPrice with an ISBN not greater than afterISBN are
+	 * skipped, so passing the price and the ISBN of the last book of a page as
+	 * minPrice and afterISBN gets the next page, and passing 0 as afterISBN
+	 * gets the first page.
+	 *
+	 * @param minPrice
+	 *            the minimum price
+	 * @param maxPrice
+	 *            the maximum price
+	 * @param afterISBN
+	 *            the ISBN after which the books priced minPrice start
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<Book> getBooksByPrice(float minPrice, float maxPrice, int afterISBN, int numBooks)
+			throws BookStoreException;
+
+	/**
+	 * Reserves copies of books for a checkout. The copies are taken out of the
+	 * stock at once, as by buyBooks, and are held for the customer until the
+	 * reservation is committed, released, or expires after ttlMillis
+	 * milliseconds, whichever happens first. Copies of expired reservations
+	 * are given back to the stock.
+	 *
+	 * @param bookCopiesToReserve
+	 *            the book copies to reserve
+	 * @param ttlMillis
+	 *            the time to live of the reservation in milliseconds
+	 * @return the identifier of the reservation
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public long reserveBooks(Set<BookCopy> bookCopiesToReserve, long ttlMillis) throws BookStoreException;
+
+	/**
+	 * Buys the copies of a reservation.
+	 *
+	 * @param reservationId
+	 *            the identifier of the reservation
+	 * @throws BookStoreException
+	 *             if the reservation was already committed, released or
+	 *             expired
+	 */
+	public void commitReservation(long reservationId) throws BookStoreException;
+
+	/**
+	 * Gives the copies of a reservation back to the stock.
+	 *
+	 * @param reservationId
+	 *            the identifier of the reservation
+	 * @throws BookStoreException
+	 *             if the reservation was already committed, released or
+	 *             expired
+	 */
+	public void releaseReservation(long reservationId) throws BookStoreException;
+
+	/**
+	 * Waits until the copies of the books are in stock, e.g. after buyBooks
+	 * failed, instead of polling the store. If buy is true, the copies are
+	 * bought as soon as they are all in stock, before any later customer can
+	 * buy them. Customers waiting for the same books are served in the order
+	 * they started waiting.
+	 *
+	 * @param bookCopies
+	 *            the book copies to wait for
+	 * @param buy
+	 *            whether to buy the copies when they are in stock
+	 * @param timeoutMillis
+	 *            the time to wait in milliseconds
+	 * @return the result, true when the copies are in stock (and bought if
+	 *         buy is true), or false if they were not within the timeout
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public CompletableFuture<Boolean> awaitBooks(Set<BookCopy> bookCopies, boolean buy, long timeoutMillis)
+			throws BookStoreException;
 }
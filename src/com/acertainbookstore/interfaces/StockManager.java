@@ -43,6 +43,23 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooks() throws BookStoreException;
 
+	/**
+	 * Gets a page of at most numBooks books in the bookstore, ordered by ISBN
+	 * and starting after afterISBN. Passing the ISBN of the last book of a
+	 * page gets the next page, and passing 0 gets the first page. Every page
+	 * is consistent on its own, but different pages may be read at different
+	 * times.
+	 *
+	 * @param afterISBN
+	 *            the ISBN after which the page starts
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> getBooks(int afterISBN, int numBooks) throws BookStoreException;
+
 	/**
 	 * Gets the books matching the set of ISBNs given, is different to getBooks
 	 * in the BookStore interface because of the return type of the books.
@@ -64,6 +81,41 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooksInDemand() throws BookStoreException;
 
+	/**
+	 * Gets the numBooks books with the most sale misses, ordered by the number
+	 * of sale misses in descending order and then by ISBN.
+	 *
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the most demanded books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> getBooksInDemand(int numBooks) throws BookStoreException;
+
+	/**
+	 * Gets a page of at most numBooks books with between minCopies and
+	 * maxCopies copies in stock, both inclusive, ordered by the number of
+	 * copies and then by ISBN. Books with minCopies copies and an ISBN not
+	 * greater than afterISBN are skipped, so passing the number of copies and
+	 * the ISBN of the last book of a page as minCopies and afterISBN gets the
+	 * next page, and passing 0 as afterISBN gets the first page.
+	 *
+	 * @param minCopies
+	 *            the minimum number of copies
+	 * @param maxCopies
+	 *            the maximum number of copies
+	 * @param afterISBN
+	 *            the ISBN after which the books with minCopies copies start
+	 * @param numBooks
+	 *            the maximum number of books
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> getBooksByNumCopies(int minCopies, int maxCopies, int afterISBN, int numBooks)
+			throws BookStoreException;
+
 	/**
 	 * Updates the books by mark/unmark them as editor pick.
 	 *
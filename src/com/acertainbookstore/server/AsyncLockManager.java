@@ -0,0 +1,135 @@
+package com.acertainbookstore.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link AsyncLockManager} locks books by ISBN without blocking threads. A
+ * request locking a book which is locked gets a future instead of waiting,
+ * and is queued; the request unlocking the book hands the lock to the first
+ * queued request and completes its future. A request waiting for a lock
+ * therefore does not occupy a thread, and the server can suspend it until
+ * its future completes.
+ *
+ * The books of a request are locked one after the other in ascending order of
+ * their ISBNs, so requests never wait for each other in a cycle. The locks are
+ * exclusive and handed over in the order they were requested.
+ */
+public class AsyncLockManager {
+
+	/** The locked books, by ISBN. Books which are not locked are not in the map. */
+	private final ConcurrentMap<Integer, LockQueue> locks = new ConcurrentHashMap<>();
+
+	/**
+	 * Locks books.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 * @return a future completed once all the books are locked, which is
+	 *         already completed if none of them was locked
+	 */
+	public CompletableFuture<Void> lock(Collection<Integer> isbns) {
+		return lockFrom(new TreeSet<>(isbns).toArray(new Integer[0]), 0);
+	}
+
+	/**
+	 * Locks books, starting at the given one.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books, in ascending order
+	 * @param start
+	 *            the index of the first book to lock
+	 * @return a future completed once the books are locked
+	 */
+	private CompletableFuture<Void> lockFrom(Integer[] isbns, int start) {
+		for (int i = start; i < isbns.length; i++) {
+			CompletableFuture<Void> locked = lock(isbns[i]);
+
+			if (!locked.isDone()) {
+				int next = i + 1;
+				return locked.thenCompose(ignored -> lockFrom(isbns, next));
+			}
+		}
+
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Locks a book.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @return a future completed once the book is locked
+	 */
+	private CompletableFuture<Void> lock(int isbn) {
+		CompletableFuture<Void> locked = new CompletableFuture<>();
+
+		locks.compute(isbn, (key, queue) -> {
+			if (queue == null) {
+				locked.complete(null);
+				return new LockQueue();
+			}
+
+			queue.waiters.add(locked);
+			return queue;
+		});
+
+		return locked;
+	}
+
+	/**
+	 * Unlocks books locked by {@link #lock(Collection)}.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 */
+	public void unlock(Collection<Integer> isbns) {
+		for (int isbn : new TreeSet<>(isbns)) {
+			unlock(isbn);
+		}
+	}
+
+	/**
+	 * Unlocks a book, handing the lock to the first request waiting for it.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	private void unlock(int isbn) {
+		AtomicReference<CompletableFuture<Void>> next = new AtomicReference<>();
+
+		locks.computeIfPresent(isbn, (key, queue) -> {
+			next.set(queue.waiters.poll());
+			return next.get() == null ? null : queue;
+		});
+
+		// The future is completed outside of the map, since completing it runs
+		// the continuation of the waiting request.
+		if (next.get() != null) {
+			next.get().complete(null);
+		}
+	}
+
+	/**
+	 * Gets the number of locked books.
+	 *
+	 * @return the number of locked books
+	 */
+	public int getNumLockedBooks() {
+		return locks.size();
+	}
+
+	/**
+	 * The requests waiting for a locked book.
+	 */
+	private static final class LockQueue {
+
+		/** The futures of the waiting requests, in the order they were made. */
+		private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+	}
+}
@@ -1,10 +1,19 @@
 package com.acertainbookstore.server;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,8 +21,10 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreKryoSerializer;
 import com.acertainbookstore.interfaces.BookStore;
@@ -38,12 +49,40 @@ import com.esotericsoftware.kryo.io.Input;
  * @see CertainBookStore
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
+
+	/** The number of books read and written at a time when streaming the books. */
+	private static final int STREAM_PAGE_SIZE = 1000;
+
 	/** The book store. */
 	private BookStore bookStore = null;
 	
 	/** The stock manager. */
 	private StockManager stockManager = null;
 
+	/** The cache of serialized responses, or null if responses are not cached. */
+	private BookStoreResponseCache responseCache = null;
+
+	/** The batcher of concurrent purchases, or null if purchases are not batched. */
+	private PurchaseBatcher purchaseBatcher = null;
+
+	/**
+	 * The locks purchases wait for without occupying a thread, or null if
+	 * purchases wait in the store.
+	 */
+	private AsyncLockManager asyncLockManager = null;
+
+	/**
+	 * The catalogue version, incremented whenever books are removed so that
+	 * clients can drop the books they cached.
+	 */
+	private final AtomicLong catalogueVersion = new AtomicLong();
+
+	/**
+	 * The epoch of the catalogue version, picked at random when the handler is
+	 * created, so that clients notice that the version started over.
+	 */
+	private final long catalogueEpoch = ThreadLocalRandom.current().nextLong();
+
 	/** The serializer. */
 	private static ThreadLocal<BookStoreSerializer> serializer;
 
@@ -54,8 +93,69 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 *            the book store
 	 */
 	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager) {
+		this(bookStore, stockManager, null);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} which answers the
+	 * read-only catalogue queries from the response cache.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param responseCache
+	 *            the response cache, or null to disable caching
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager,
+			BookStoreResponseCache responseCache) {
+		this(bookStore, stockManager, responseCache, null);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} which applies
+	 * concurrent purchases in batches.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param responseCache
+	 *            the response cache, or null to disable caching
+	 * @param purchaseBatcher
+	 *            the purchase batcher, or null to apply every purchase on its
+	 *            own
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager,
+			BookStoreResponseCache responseCache, PurchaseBatcher purchaseBatcher) {
+		this(bookStore, stockManager, responseCache, purchaseBatcher, null);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} which locks the
+	 * books of a purchase before handing it to the store, suspending the
+	 * request while the books are locked by other purchases.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param responseCache
+	 *            the response cache, or null to disable caching
+	 * @param purchaseBatcher
+	 *            the purchase batcher, or null to apply every purchase on its
+	 *            own
+	 * @param asyncLockManager
+	 *            the lock manager, or null to let purchases wait in the store
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager,
+			BookStoreResponseCache responseCache, PurchaseBatcher purchaseBatcher,
+			AsyncLockManager asyncLockManager) {
 		this.bookStore = bookStore;
 		this.stockManager = stockManager;
+		this.responseCache = responseCache;
+		this.purchaseBatcher = purchaseBatcher;
+		this.asyncLockManager = asyncLockManager;
 
 		// Setup the type of serializer.
 		if (BookStoreConstants.BINARY_SERIALIZATION) {
@@ -65,6 +165,24 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		}
 	}
 
+	/**
+	 * Gets the response cache.
+	 *
+	 * @return the response cache, or null if responses are not cached
+	 */
+	public BookStoreResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Gets the purchase batcher.
+	 *
+	 * @return the purchase batcher, or null if purchases are not batched
+	 */
+	public PurchaseBatcher getPurchaseBatcher() {
+		return purchaseBatcher;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -80,6 +198,11 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		response.setStatus(HttpServletResponse.SC_OK);
 		requestURI = request.getRequestURI();
 
+		// The version is read before the request is served, so the response
+		// never reflects a removal made after the version it reports.
+		response.setHeader(BookStoreConstants.CATALOGUE_EPOCH_HEADER, Long.toString(catalogueEpoch));
+		response.setHeader(BookStoreConstants.CATALOGUE_VERSION_HEADER, Long.toString(catalogueVersion.get()));
+
 		// Need to do request multiplexing
 		if (!BookStoreUtility.isEmpty(requestURI) && requestURI.toLowerCase().startsWith("/stock")) {
 			// The request is from the store manager; more sophisticated.
@@ -111,7 +234,11 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				break;
 
 			case LISTBOOKS:
-				listBooks(response);
+				listBooks(request, response);
+				break;
+
+			case STREAMBOOKS:
+				streamBooks(response);
 				break;
 
 			case UPDATEEDITORPICKS:
@@ -134,6 +261,50 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				getStockBooksByISBN(request, response);
 				break;
 
+			case GETTOPRATEDBOOKS:
+				getTopRatedBooks(request, response);
+				break;
+
+			case GETBOOKSINDEMAND:
+				getBooksInDemand(request, response);
+				break;
+
+			case RATEBOOKS:
+				rateBooks(request, response);
+				break;
+
+			case SEARCHBOOKS:
+				searchBooks(request, response);
+				break;
+
+			case AUTOCOMPLETEBOOKS:
+				autocompleteBooks(request, response);
+				break;
+
+			case GETBOOKSBYPRICE:
+				getBooksByPrice(request, response);
+				break;
+
+			case GETBOOKSBYNUMCOPIES:
+				getBooksByNumCopies(request, response);
+				break;
+
+			case RESERVEBOOKS:
+				reserveBooks(request, response);
+				break;
+
+			case COMMITRESERVATION:
+				commitReservation(request, response);
+				break;
+
+			case RELEASERESERVATION:
+				releaseReservation(request, response);
+				break;
+
+			case AWAITBOOKS:
+				awaitBooks(request, response);
+				break;
+
 			default:
 				System.err.println("Unsupported message tag.");
 				break;
@@ -182,12 +353,130 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	private void getEditorPicks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		byte[] serializedResponseContent = getCachedResponse(BookStoreMessageTag.GETEDITORPICKS, numBooksString);
+
+		if (serializedResponseContent == null) {
+			long generation = getCacheGeneration(BookStoreMessageTag.GETEDITORPICKS);
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+			boolean cacheable = false;
+
+			try {
+				int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+				List<Book> editorPicks = bookStore.getEditorPicks(numBooks);
+				bookStoreResponse.setList(editorPicks);
+
+				// Only cache the picks if all of them were returned, since
+				// otherwise the store picks a random subset on every call.
+				cacheable = editorPicks.size() < numBooks;
+			} catch (BookStoreException ex) {
+				bookStoreResponse.setException(ex);
+			}
+
+			serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+
+			if (cacheable) {
+				cacheResponse(BookStoreMessageTag.GETEDITORPICKS, numBooksString, null, serializedResponseContent,
+						generation);
+			}
+		}
+
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Gets the top rated books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getTopRatedBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		byte[] serializedResponseContent = getCachedResponse(BookStoreMessageTag.GETTOPRATEDBOOKS, numBooksString);
+
+		if (serializedResponseContent == null) {
+			long generation = getCacheGeneration(BookStoreMessageTag.GETTOPRATEDBOOKS);
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+			try {
+				int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+				bookStoreResponse.setList(bookStore.getTopRatedBooks(numBooks));
+			} catch (BookStoreException ex) {
+				bookStoreResponse.setException(ex);
+			}
+
+			serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+
+			if (bookStoreResponse.getException() == null) {
+				cacheResponse(BookStoreMessageTag.GETTOPRATEDBOOKS, numBooksString, null, serializedResponseContent,
+						generation);
+			}
+		}
+
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Searches the books by title and author.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void searchBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String query = URLDecoder.decode(request.getParameter(BookStoreConstants.QUERY_PARAM), StandardCharsets.UTF_8);
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		List<String> argument = Arrays.asList(query, numBooksString);
+		byte[] serializedResponseContent = getCachedResponse(BookStoreMessageTag.SEARCHBOOKS, argument);
+
+		if (serializedResponseContent == null) {
+			long generation = getCacheGeneration(BookStoreMessageTag.SEARCHBOOKS);
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+			try {
+				int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+				bookStoreResponse.setList(bookStore.searchBooks(query, numBooks));
+			} catch (BookStoreException ex) {
+				bookStoreResponse.setException(ex);
+			}
+
+			serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+
+			if (bookStoreResponse.getException() == null) {
+				cacheResponse(BookStoreMessageTag.SEARCHBOOKS, argument, null, serializedResponseContent, generation);
+			}
+		}
+
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Completes a query to the highest rated books. The responses are not
+	 * cached, since the store keeps the completions of short prefixes up to
+	 * date as books are rated.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void autocompleteBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String query = URLDecoder.decode(request.getParameter(BookStoreConstants.QUERY_PARAM), StandardCharsets.UTF_8);
 		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
 			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
-			bookStoreResponse.setList(bookStore.getEditorPicks(numBooks));
+			bookStoreResponse.setList(bookStore.autocompleteBooks(query, numBooks));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -197,7 +486,104 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	}
 
 	/**
-	 * Gets the books.
+	 * Gets a page of the books in stock in a price range. The responses are not
+	 * cached, since books leave and enter the range as they are bought and
+	 * restocked.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getBooksByPrice(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String minString = URLDecoder.decode(request.getParameter(BookStoreConstants.MIN_PARAM), StandardCharsets.UTF_8);
+		String maxString = URLDecoder.decode(request.getParameter(BookStoreConstants.MAX_PARAM), StandardCharsets.UTF_8);
+		String afterISBNString = URLDecoder.decode(request.getParameter(BookStoreConstants.AFTER_ISBN_PARAM),
+				StandardCharsets.UTF_8);
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			float minPrice = BookStoreUtility.convertStringToFloat(minString);
+			float maxPrice = BookStoreUtility.convertStringToFloat(maxString);
+			int afterISBN = BookStoreUtility.convertStringToInt(afterISBNString);
+			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+			bookStoreResponse.setList(bookStore.getBooksByPrice(minPrice, maxPrice, afterISBN, numBooks));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Gets a page of the books with a number of copies in a range.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getBooksByNumCopies(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String minString = URLDecoder.decode(request.getParameter(BookStoreConstants.MIN_PARAM), StandardCharsets.UTF_8);
+		String maxString = URLDecoder.decode(request.getParameter(BookStoreConstants.MAX_PARAM), StandardCharsets.UTF_8);
+		String afterISBNString = URLDecoder.decode(request.getParameter(BookStoreConstants.AFTER_ISBN_PARAM),
+				StandardCharsets.UTF_8);
+		String numBooksString = URLDecoder.decode(request.getParameter(BookStoreConstants.BOOK_NUM_PARAM), StandardCharsets.UTF_8);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			int minCopies = BookStoreUtility.convertStringToInt(minString);
+			int maxCopies = BookStoreUtility.convertStringToInt(maxString);
+			int afterISBN = BookStoreUtility.convertStringToInt(afterISBNString);
+			int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+			bookStoreResponse.setList(stockManager.getBooksByNumCopies(minCopies, maxCopies, afterISBN, numBooks));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Gets the books in demand, or only the most demanded books if the number
+	 * of books is given.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getBooksInDemand(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String numBooksParameter = request.getParameter(BookStoreConstants.BOOK_NUM_PARAM);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			if (numBooksParameter == null) {
+				bookStoreResponse.setList(stockManager.getBooksInDemand());
+			} else {
+				String numBooksString = URLDecoder.decode(numBooksParameter, StandardCharsets.UTF_8);
+				int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+				bookStoreResponse.setList(stockManager.getBooksInDemand(numBooks));
+			}
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Rates books.
 	 *
 	 * @param request
 	 *            the request
@@ -207,22 +593,63 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	@SuppressWarnings("unchecked")
-	private void getBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+	private void rateBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<BookRating> bookRatings = (Set<BookRating>) serializer.get().deserialize(serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			bookStoreResponse.setList(bookStore.getBooks(isbnSet));
+			bookStore.rateBooks(bookRatings);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
+		invalidateCachedResponses(BookStoreMessageTag.GETTOPRATEDBOOKS);
+
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
+	/**
+	 * Gets the books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void getBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		byte[] serializedResponseContent = getCachedResponse(BookStoreMessageTag.GETBOOKS, isbnSet);
+
+		if (serializedResponseContent == null) {
+			long generation = getCacheGeneration(BookStoreMessageTag.GETBOOKS);
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+			try {
+				bookStoreResponse.setList(bookStore.getBooks(isbnSet));
+			} catch (BookStoreException ex) {
+				bookStoreResponse.setException(ex);
+			}
+
+			serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+
+			// Failed lookups are not cached, since adding the missing books
+			// would not invalidate them.
+			if (bookStoreResponse.getException() == null) {
+				cacheResponse(BookStoreMessageTag.GETBOOKS, isbnSet, isbnSet, serializedResponseContent, generation);
+			}
+		}
+
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
 	/**
 	 * Buys books.
 	 *
@@ -238,10 +665,171 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
 		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+
+		if (asyncLockManager == null || bookCopiesToBuy == null || bookCopiesToBuy.contains(null)) {
+			writeBuyBooksResponse(response, bookCopiesToBuy);
+			return;
+		}
+
+		List<Integer> isbns = new ArrayList<>();
+
+		for (BookCopy bookCopy : bookCopiesToBuy) {
+			isbns.add(bookCopy.getISBN());
+		}
+
+		CompletableFuture<Void> locked = asyncLockManager.lock(isbns);
+
+		if (locked.isDone()) {
+			try {
+				writeBuyBooksResponse(response, bookCopiesToBuy);
+			} finally {
+				asyncLockManager.unlock(isbns);
+			}
+
+			return;
+		}
+
+		// The request waits for the books without its thread, and is resumed
+		// on a pooled thread once they are locked.
+		AsyncContext asyncContext;
+
+		try {
+			asyncContext = request.startAsync();
+			asyncContext.setTimeout(0);
+		} catch (RuntimeException ex) {
+			// The books are still handed to the request, which gives them back.
+			locked.thenRun(() -> asyncLockManager.unlock(isbns));
+			throw ex;
+		}
+
+		locked.thenRun(() -> {
+			try {
+				asyncContext.start(() -> {
+					try {
+						writeBuyBooksResponse(response, bookCopiesToBuy);
+					} catch (IOException ioException) {
+						ioException.printStackTrace();
+					} finally {
+						asyncLockManager.unlock(isbns);
+						asyncContext.complete();
+					}
+				});
+			} catch (RuntimeException ex) {
+				// The request is never resumed, so it fails without buying.
+				ex.printStackTrace();
+				asyncLockManager.unlock(isbns);
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				asyncContext.complete();
+			}
+		});
+	}
+
+	/**
+	 * Buys books and writes the outcome.
+	 *
+	 * @param response
+	 *            the response
+	 * @param bookCopiesToBuy
+	 *            the copies to buy
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeBuyBooksResponse(HttpServletResponse response, Set<BookCopy> bookCopiesToBuy)
+			throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			if (purchaseBatcher != null) {
+				purchaseBatcher.buyBooks(bookCopiesToBuy);
+			} else {
+				bookStore.buyBooks(bookCopiesToBuy);
+			}
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Reserves books for a checkout and responds with the identifier of the
+	 * reservation.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void reserveBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String ttlString = URLDecoder.decode(request.getParameter(BookStoreConstants.TTL_PARAM), StandardCharsets.UTF_8);
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> bookCopiesToReserve = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			long ttlMillis = Long.parseLong(ttlString);
+			List<Long> reservationIds = new ArrayList<>();
+			reservationIds.add(bookStore.reserveBooks(bookCopiesToReserve, ttlMillis));
+			bookStoreResponse.setList(reservationIds);
+		} catch (NumberFormatException ex) {
+			bookStoreResponse.setException(new BookStoreException(ex));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Commits a reservation.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void commitReservation(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		long reservationId = (Long) serializer.get().deserialize(serializedRequestContent);
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			bookStore.commitReservation(reservationId);
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
+	/**
+	 * Releases a reservation.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void releaseReservation(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		long reservationId = (Long) serializer.get().deserialize(serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			bookStore.buyBooks(bookCopiesToBuy);
+			bookStore.releaseReservation(reservationId);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -250,6 +838,89 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
+	/**
+	 * Waits for copies of books to be restocked. Unless the copies are already
+	 * in stock, the request is suspended and its thread returned to the pool;
+	 * the response is written from a pooled thread once the store completes
+	 * the wait.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void awaitBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String buyString = URLDecoder.decode(request.getParameter(BookStoreConstants.BUY_PARAM), StandardCharsets.UTF_8);
+		String timeoutString = URLDecoder.decode(request.getParameter(BookStoreConstants.TIMEOUT_PARAM), StandardCharsets.UTF_8);
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> bookCopies = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		CompletableFuture<Boolean> result;
+
+		try {
+			long timeoutMillis = Long.parseLong(timeoutString);
+			result = bookStore.awaitBooks(bookCopies, Boolean.parseBoolean(buyString), timeoutMillis);
+		} catch (NumberFormatException ex) {
+			writeAwaitBooksResponse(response, null, new BookStoreException(ex));
+			return;
+		} catch (BookStoreException ex) {
+			writeAwaitBooksResponse(response, null, ex);
+			return;
+		}
+
+		if (result.isDone()) {
+			writeAwaitBooksResponse(response, result.getNow(false), null);
+			return;
+		}
+
+		// The store times the wait out, so the suspended request does not.
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0);
+
+		result.whenComplete((inStock, ex) -> asyncContext.start(() -> {
+			try {
+				writeAwaitBooksResponse(response, inStock, ex);
+			} catch (IOException ioException) {
+				ioException.printStackTrace();
+			} finally {
+				asyncContext.complete();
+			}
+		}));
+	}
+
+	/**
+	 * Writes the result of waiting for copies of books.
+	 *
+	 * @param response
+	 *            the response
+	 * @param inStock
+	 *            whether the copies are in stock
+	 * @param ex
+	 *            the exception the wait failed with, or null
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeAwaitBooksResponse(HttpServletResponse response, Boolean inStock, Throwable ex)
+			throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		if (ex == null) {
+			List<Boolean> results = new ArrayList<>();
+			results.add(inStock);
+			bookStoreResponse.setList(results);
+		} else if (ex instanceof BookStoreException) {
+			bookStoreResponse.setException((BookStoreException) ex);
+		} else {
+			bookStoreResponse.setException(new BookStoreException(ex));
+		}
+
+		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+		response.getOutputStream().write(serializedResponseContent);
+	}
+
 	/**
 	 * Updates editor picks.
 	 *
@@ -274,22 +945,38 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
+		invalidateCachedResponses(BookStoreMessageTag.GETEDITORPICKS);
+
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
 	/**
-	 * Lists the books.
+	 * Lists the books, or a page of the books if the request has the number of
+	 * books parameter.
 	 *
+	 * @param request
+	 *            the request
 	 * @param response
 	 *            the response
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	private void listBooks(HttpServletResponse response) throws IOException {
+	private void listBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String numBooksParameter = request.getParameter(BookStoreConstants.BOOK_NUM_PARAM);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
 		try {
-			bookStoreResponse.setList(stockManager.getBooks());
+			if (numBooksParameter == null) {
+				bookStoreResponse.setList(stockManager.getBooks());
+			} else {
+				String afterISBNString = URLDecoder.decode(request.getParameter(BookStoreConstants.AFTER_ISBN_PARAM),
+						StandardCharsets.UTF_8);
+				String numBooksString = URLDecoder.decode(numBooksParameter, StandardCharsets.UTF_8);
+				int afterISBN = BookStoreUtility.convertStringToInt(afterISBNString);
+				int numBooks = BookStoreUtility.convertStringToInt(numBooksString);
+				bookStoreResponse.setList(stockManager.getBooks(afterISBN, numBooks));
+			}
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
@@ -298,6 +985,44 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		response.getOutputStream().write(serializedResponseContent);
 	}
 
+	/**
+	 * Streams the books page by page. Every page is written as its length
+	 * followed by the serialized {@link BookStoreResponse} and flushed before
+	 * the next page is read, so the response is sent with chunked transfer
+	 * encoding and the memory used does not grow with the catalogue.
+	 *
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void streamBooks(HttpServletResponse response) throws IOException {
+		DataOutputStream out = new DataOutputStream(response.getOutputStream());
+		int afterISBN = 0;
+		List<StockBook> page;
+
+		do {
+			BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+			try {
+				page = stockManager.getBooks(afterISBN, STREAM_PAGE_SIZE);
+				bookStoreResponse.setList(page);
+			} catch (BookStoreException ex) {
+				bookStoreResponse.setException(ex);
+				page = Collections.emptyList();
+			}
+
+			byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
+			out.writeInt(serializedResponseContent.length);
+			out.write(serializedResponseContent);
+			out.flush();
+
+			if (!page.isEmpty()) {
+				afterISBN = page.get(page.size() - 1).getISBN();
+			}
+		} while (page.size() == STREAM_PAGE_SIZE);
+	}
+
 	/**
 	 * Adds the copies.
 	 *
@@ -348,6 +1073,10 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
+		// New books may already be editor picks or rated, and may match searches.
+		invalidateCachedResponses(BookStoreMessageTag.GETEDITORPICKS, BookStoreMessageTag.GETTOPRATEDBOOKS,
+				BookStoreMessageTag.SEARCHBOOKS);
+
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
 		response.getOutputStream().write(serializedResponseContent);
 	}
@@ -369,6 +1098,12 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
+		if (responseCache != null) {
+			responseCache.invalidateAll();
+		}
+
+		catalogueVersion.incrementAndGet();
+
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
 		response.getOutputStream().write(serializedResponseContent);
 	}
@@ -396,6 +1131,14 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
+		if (responseCache != null) {
+			responseCache.invalidateISBNs(BookStoreMessageTag.GETBOOKS, bookSet);
+			responseCache.invalidate(BookStoreMessageTag.GETEDITORPICKS, BookStoreMessageTag.GETTOPRATEDBOOKS,
+					BookStoreMessageTag.SEARCHBOOKS);
+		}
+
+		catalogueVersion.incrementAndGet();
+
 		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
 		response.getOutputStream().write(serializedResponseContent);
 	}
@@ -413,4 +1156,62 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		in.close();
 		return serializedRequestContent;
 	}
+
+	/**
+	 * Gets the cached response to the request.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @param argument
+	 *            the request argument
+	 * @return the serialized response, or null if it is not cached
+	 */
+	private byte[] getCachedResponse(BookStoreMessageTag tag, Object argument) {
+		return responseCache == null ? null : responseCache.get(tag, argument);
+	}
+
+	/**
+	 * Gets the cache generation of the message tag, which must be read before
+	 * the response is computed.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @return the generation
+	 */
+	private long getCacheGeneration(BookStoreMessageTag tag) {
+		return responseCache == null ? 0 : responseCache.getGeneration(tag);
+	}
+
+	/**
+	 * Caches the response to the request.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @param argument
+	 *            the request argument
+	 * @param isbns
+	 *            the ISBNs the response depends on, or null
+	 * @param serializedResponseContent
+	 *            the serialized response
+	 * @param generation
+	 *            the cache generation read before computing the response
+	 */
+	private void cacheResponse(BookStoreMessageTag tag, Object argument, Set<Integer> isbns,
+			byte[] serializedResponseContent, long generation) {
+		if (responseCache != null) {
+			responseCache.put(tag, argument, isbns, serializedResponseContent, generation);
+		}
+	}
+
+	/**
+	 * Invalidates all cached responses of the message tags.
+	 *
+	 * @param tags
+	 *            the message tags
+	 */
+	private void invalidateCachedResponses(BookStoreMessageTag... tags) {
+		if (responseCache != null) {
+			responseCache.invalidate(tags);
+		}
+	}
 }
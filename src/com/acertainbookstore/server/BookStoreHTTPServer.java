@@ -1,10 +1,16 @@
 package com.acertainbookstore.server;
 
+import com.acertainbookstore.business.AdaptiveLockingConcurrentCertainBookStore;
+import com.acertainbookstore.business.DeterministicCertainBookStore;
+import com.acertainbookstore.business.PartitionedConcurrentCertainBookStore;
+import com.acertainbookstore.business.RingBufferCertainBookStore;
+import com.acertainbookstore.business.ShardedCertainBookStore;
 import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
 
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreMessageTag;
 
 /**
  * Starts the {@link BookStoreHTTPServer} that the clients will communicate
@@ -22,6 +28,9 @@ public class BookStoreHTTPServer {
 	 *  false - two-level locking */
 	private static final boolean SINGLE_LOCK = true;
 
+	/** The maximum number of serialized responses kept in the response cache. */
+	private static final int RESPONSE_CACHE_SIZE = 10000;
+
 	/**
 	 * Prevents the instantiation of a new {@link BookStoreHTTPServer}.
 	 */
@@ -39,15 +48,57 @@ public class BookStoreHTTPServer {
 		int listenOnPort = DEFAULT_PORT;
 		
 		BookStoreHTTPMessageHandler handler = null;
+		BookStoreResponseCache responseCache = new BookStoreResponseCache(RESPONSE_CACHE_SIZE);
 		
-		if (SINGLE_LOCK) {
+		String partitionsString = System.getProperty(BookStoreConstants.PROPERTY_KEY_PARTITIONS);
+		String shardsString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SHARDS);
+		String adaptiveLockingString = System.getProperty(BookStoreConstants.PROPERTY_KEY_ADAPTIVE_LOCKING);
+		String buyBatchWindowString = System.getProperty(BookStoreConstants.PROPERTY_KEY_BUY_BATCH_WINDOW);
+		AsyncLockManager asyncLockManager = Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_ASYNC_LOCKS)
+				? new AsyncLockManager() : null;
+
+		if (Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_DETERMINISTIC)) {
+			DeterministicCertainBookStore bookStore = new DeterministicCertainBookStore();
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache);
+		} else if (Boolean.getBoolean(BookStoreConstants.PROPERTY_KEY_RING_BUFFER)) {
+			RingBufferCertainBookStore bookStore = new RingBufferCertainBookStore();
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache);
+		} else if (shardsString != null) {
+			ShardedCertainBookStore bookStore = new ShardedCertainBookStore(Integer.parseInt(shardsString));
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache);
+		} else if (partitionsString != null) {
+			PartitionedConcurrentCertainBookStore bookStore = new PartitionedConcurrentCertainBookStore(
+					Integer.parseInt(partitionsString));
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache);
+		} else if (adaptiveLockingString != null) {
+			// Switches between the two locking schemes at runtime.
+			AdaptiveLockingConcurrentCertainBookStore bookStore = new AdaptiveLockingConcurrentCertainBookStore(
+					Integer.parseInt(adaptiveLockingString),
+					Integer.getInteger(BookStoreConstants.PROPERTY_KEY_ESCROW, 0),
+					Long.getLong(BookStoreConstants.PROPERTY_KEY_RATING_STALENESS, 0));
+			bookStore.setRatingsListener(() -> responseCache.invalidate(BookStoreMessageTag.GETTOPRATEDBOOKS));
+			PurchaseBatcher purchaseBatcher = buyBatchWindowString == null ? null
+					: new PurchaseBatcher(bookStore::buyOrders, Long.parseLong(buyBatchWindowString));
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache, purchaseBatcher,
+					asyncLockManager);
+		} else if (SINGLE_LOCK) {
 			SingleLockConcurrentCertainBookStore bookStore = new SingleLockConcurrentCertainBookStore();
+			PurchaseBatcher purchaseBatcher = buyBatchWindowString == null ? null
+					: new PurchaseBatcher(bookStore::buyOrders, Long.parseLong(buyBatchWindowString));
 			/* we pass bookStore to BookStoreHTTPMessageHandler constructor twice, 
 			 * since it implements both interfaces: BookStore and StockManager */
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache, purchaseBatcher,
+					asyncLockManager);
 		} else {
-			TwoLevelLockingConcurrentCertainBookStore bookStore = new TwoLevelLockingConcurrentCertainBookStore();
-			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore);
+			TwoLevelLockingConcurrentCertainBookStore bookStore = new TwoLevelLockingConcurrentCertainBookStore(
+					Integer.getInteger(BookStoreConstants.PROPERTY_KEY_ESCROW, 0),
+					Long.getLong(BookStoreConstants.PROPERTY_KEY_RATING_STALENESS, 0));
+			// Ratings may be applied after the requests making them are answered.
+			bookStore.setRatingsListener(() -> responseCache.invalidate(BookStoreMessageTag.GETTOPRATEDBOOKS));
+			PurchaseBatcher purchaseBatcher = buyBatchWindowString == null ? null
+					: new PurchaseBatcher(bookStore::buyOrders, Long.parseLong(buyBatchWindowString));
+			handler = new BookStoreHTTPMessageHandler(bookStore, bookStore, responseCache, purchaseBatcher,
+					asyncLockManager);
 		}		
 		
 		String serverPortString = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
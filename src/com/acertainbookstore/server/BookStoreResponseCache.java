@@ -0,0 +1,395 @@
+package com.acertainbookstore.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreResponseCache} holds already-serialized responses to the
+ * read-only catalogue queries handled by the
+ * {@link BookStoreHTTPMessageHandler}. Entries are keyed by the message tag and
+ * the request argument, bounded in number and evicted in least-recently-used
+ * order.
+ *
+ * Responses that depend on a known set of ISBNs (e.g. GETBOOKS) are invalidated
+ * precisely when one of these ISBNs is removed; responses that depend on the
+ * whole catalogue (e.g. GETTOPRATEDBOOKS) are invalidated per message tag.
+ *
+ * @see BookStoreHTTPMessageHandler
+ */
+public class BookStoreResponseCache {
+
+	/** The maximum number of cached responses. */
+	private final int maxEntries;
+
+	/** The cached responses, in access order. */
+	private final LinkedHashMap<CacheKey, CacheEntry> entries;
+
+	/** The keys of the cached responses which depend on each ISBN. */
+	private final Map<Integer, Set<CacheKey>> keysByISBN;
+
+	/**
+	 * The generation of every message tag, incremented whenever responses for
+	 * the tag are invalidated.
+	 */
+	private final long[] generations;
+
+	/** The number of cache hits. */
+	private final LongAdder hits = new LongAdder();
+
+	/** The number of cache misses. */
+	private final LongAdder misses = new LongAdder();
+
+	/** The number of evicted responses. */
+	private final LongAdder evictions = new LongAdder();
+
+	/** The number of invalidated responses. */
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Instantiates a new {@link BookStoreResponseCache}.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of cached responses
+	 */
+	public BookStoreResponseCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries = " + maxEntries + ", but it must be positive");
+		}
+
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.keysByISBN = new HashMap<>();
+		this.generations = new long[BookStoreMessageTag.values().length];
+	}
+
+	/**
+	 * Gets the current generation of the message tag. The generation must be
+	 * read before the response is computed and passed to
+	 * {@link #put(BookStoreMessageTag, Object, Collection, byte[], long)}, so
+	 * that a response computed concurrently with an invalidation is never
+	 * cached.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @return the generation
+	 */
+	public synchronized long getGeneration(BookStoreMessageTag tag) {
+		return generations[tag.ordinal()];
+	}
+
+	/**
+	 * Gets the cached response to the request.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @param argument
+	 *            the request argument
+	 * @return the serialized response, or null if it is not cached
+	 */
+	public synchronized byte[] get(BookStoreMessageTag tag, Object argument) {
+		CacheEntry entry = entries.get(new CacheKey(tag, argument));
+
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		return entry.content;
+	}
+
+	/**
+	 * Caches the response to the request, unless responses for the tag were
+	 * invalidated since <code>generation</code> was read.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @param argument
+	 *            the request argument
+	 * @param isbns
+	 *            the ISBNs the response depends on, or null if it only depends
+	 *            on the message tag
+	 * @param content
+	 *            the serialized response
+	 * @param generation
+	 *            the generation of the tag when the response was computed
+	 */
+	public synchronized void put(BookStoreMessageTag tag, Object argument, Collection<Integer> isbns, byte[] content,
+			long generation) {
+		if (generation != generations[tag.ordinal()]) {
+			return;
+		}
+
+		CacheKey key = new CacheKey(tag, argument);
+		CacheEntry entry = new CacheEntry(content, isbns == null ? null : new HashSet<>(isbns));
+		CacheEntry previous = entries.put(key, entry);
+
+		if (previous != null) {
+			unindex(key, previous);
+		}
+
+		if (entry.isbns != null) {
+			for (Integer isbn : entry.isbns) {
+				keysByISBN.computeIfAbsent(isbn, k -> new HashSet<>()).add(key);
+			}
+		}
+
+		// Evict the least recently used responses.
+		Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+
+		while (entries.size() > maxEntries && iterator.hasNext()) {
+			Map.Entry<CacheKey, CacheEntry> eldest = iterator.next();
+			iterator.remove();
+			unindex(eldest.getKey(), eldest.getValue());
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Invalidates the responses of the message tag which depend on any of the
+	 * ISBNs.
+	 *
+	 * @param tag
+	 *            the message tag
+	 * @param isbns
+	 *            the ISBNs
+	 */
+	public synchronized void invalidateISBNs(BookStoreMessageTag tag, Collection<Integer> isbns) {
+		generations[tag.ordinal()]++;
+
+		if (isbns == null) {
+			return;
+		}
+
+		for (Integer isbn : isbns) {
+			Set<CacheKey> keys = keysByISBN.get(isbn);
+
+			if (keys == null) {
+				continue;
+			}
+
+			for (CacheKey key : new HashSet<>(keys)) {
+				if (key.tag == tag) {
+					unindex(key, entries.remove(key));
+					invalidations.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidates all responses of the message tags.
+	 *
+	 * @param tags
+	 *            the message tags
+	 */
+	public synchronized void invalidate(BookStoreMessageTag... tags) {
+		for (BookStoreMessageTag tag : tags) {
+			generations[tag.ordinal()]++;
+		}
+
+		Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			Map.Entry<CacheKey, CacheEntry> entry = iterator.next();
+
+			for (BookStoreMessageTag tag : tags) {
+				if (entry.getKey().tag == tag) {
+					iterator.remove();
+					unindex(entry.getKey(), entry.getValue());
+					invalidations.increment();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidates all cached responses.
+	 */
+	public synchronized void invalidateAll() {
+		for (int i = 0; i < generations.length; i++) {
+			generations[i]++;
+		}
+
+		invalidations.add(entries.size());
+		entries.clear();
+		keysByISBN.clear();
+	}
+
+	/**
+	 * Removes the key from the ISBN index.
+	 *
+	 * @param key
+	 *            the key
+	 * @param entry
+	 *            the entry the key was mapped to
+	 */
+	private void unindex(CacheKey key, CacheEntry entry) {
+		if (entry == null || entry.isbns == null) {
+			return;
+		}
+
+		for (Integer isbn : entry.isbns) {
+			Set<CacheKey> keys = keysByISBN.get(isbn);
+
+			if (keys != null) {
+				keys.remove(key);
+
+				if (keys.isEmpty()) {
+					keysByISBN.remove(isbn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of cached responses.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of cache hits.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of cache misses.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the number of responses evicted because the cache was full.
+	 *
+	 * @return the evictions
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Gets the number of responses removed by invalidations.
+	 *
+	 * @return the invalidations
+	 */
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * Gets the fraction of lookups answered from the cache.
+	 *
+	 * @return the hit rate, or 0 if there were no lookups
+	 */
+	public double getHitRate() {
+		long numHits = hits.sum();
+		long numLookups = numHits + misses.sum();
+		return numLookups == 0 ? 0.0 : (double) numHits / numLookups;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Size = " + size() + ", Hits = " + getHits() + ", Misses = " + getMisses() + ", Hit rate = "
+				+ getHitRate() + ", Evictions = " + getEvictions() + ", Invalidations = " + getInvalidations();
+	}
+
+	/**
+	 * {@link CacheKey} identifies a request by its message tag and argument.
+	 */
+	private static final class CacheKey {
+
+		/** The message tag. */
+		private final BookStoreMessageTag tag;
+
+		/** The request argument. */
+		private final Object argument;
+
+		/**
+		 * Instantiates a new {@link CacheKey}.
+		 *
+		 * @param tag
+		 *            the message tag
+		 * @param argument
+		 *            the request argument
+		 */
+		private CacheKey(BookStoreMessageTag tag, Object argument) {
+			this.tag = tag;
+			this.argument = argument;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+
+			CacheKey key = (CacheKey) obj;
+			return tag == key.tag && (argument == null ? key.argument == null : argument.equals(key.argument));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * tag.hashCode() + (argument == null ? 0 : argument.hashCode());
+		}
+	}
+
+	/**
+	 * {@link CacheEntry} is a serialized response and the ISBNs it depends on.
+	 */
+	private static final class CacheEntry {
+
+		/** The serialized response. */
+		private final byte[] content;
+
+		/** The ISBNs the response depends on. */
+		private final Set<Integer> isbns;
+
+		/**
+		 * Instantiates a new {@link CacheEntry}.
+		 *
+		 * @param content
+		 *            the serialized response
+		 * @param isbns
+		 *            the ISBNs
+		 */
+		private CacheEntry(byte[] content, Set<Integer> isbns) {
+			this.content = content;
+			this.isbns = isbns;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.acertainbookstore.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.Combiner;
+
+/**
+ * {@link PurchaseBatcher} gathers the purchases of concurrent requests, so
+ * that the store applies a whole batch of them under one acquisition of its
+ * locks instead of locking once per request. The requests are combined by a
+ * {@link Combiner}, which has the store apply the batches with
+ * {@link Buyer#buy(List)}. Under load, i.e. when the last batch had more than
+ * one order, the combiner additionally waits for the window before taking the
+ * orders, trading latency for larger batches; a request arriving at an idle
+ * server is applied right away.
+ */
+public class PurchaseBatcher {
+
+	/** The combiner of the orders. */
+	private final Combiner<Order> combiner;
+
+	/** The store applying the batches. */
+	private final Buyer buyer;
+
+	/** The number of batches applied. */
+	private final AtomicLong numBatches = new AtomicLong();
+
+	/** The number of orders applied. */
+	private final AtomicLong numOrders = new AtomicLong();
+
+	/**
+	 * {@link Buyer} applies a batch of orders in a store.
+	 */
+	@FunctionalInterface
+	public interface Buyer {
+
+		/**
+		 * Applies the orders atomically one by one, in their order.
+		 *
+		 * @param orders
+		 *            the copies to buy of every order
+		 * @return the exception every order failed with, or null for the
+		 *         orders which were bought
+		 */
+		List<BookStoreException> buy(List<Set<BookCopy>> orders);
+	}
+
+	/**
+	 * Instantiates a new {@link PurchaseBatcher}.
+	 *
+	 * @param buyer
+	 *            the store applying the batches
+	 * @param windowMicros
+	 *            the time the combiner waits for more orders under load, in
+	 *            microseconds, or 0 not to wait
+	 */
+	public PurchaseBatcher(Buyer buyer, long windowMicros) {
+		this.buyer = buyer;
+		this.combiner = new Combiner<>(this::buy, windowMicros);
+	}
+
+	/**
+	 * Buys copies of books, together with the orders made at the same time.
+	 *
+	 * @param bookCopiesToBuy
+	 *            the copies to buy
+	 * @throws BookStoreException
+	 *             if the order is invalid or the copies are not in stock
+	 */
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		combiner.apply(new Order(bookCopiesToBuy));
+	}
+
+	/**
+	 * Has the store apply a batch of orders.
+	 *
+	 * @param batch
+	 *            the orders
+	 */
+	private void buy(List<Order> batch) {
+		List<Set<BookCopy>> orders = new ArrayList<>(batch.size());
+
+		for (Order order : batch) {
+			orders.add(order.bookCopies);
+		}
+
+		List<BookStoreException> failures = buyer.buy(orders);
+
+		for (int i = 0; i < batch.size(); i++) {
+			batch.get(i).setFailure(failures.get(i));
+		}
+
+		numBatches.incrementAndGet();
+		numOrders.addAndGet(batch.size());
+	}
+
+	/**
+	 * Gets the number of batches applied.
+	 *
+	 * @return the number of batches
+	 */
+	public long getNumBatches() {
+		return numBatches.get();
+	}
+
+	/**
+	 * Gets the number of orders applied.
+	 *
+	 * @return the number of orders
+	 */
+	public long getNumOrders() {
+		return numOrders.get();
+	}
+
+	/**
+	 * Gets the average number of orders per batch.
+	 *
+	 * @return the average batch size, or 0 if no batch was applied
+	 */
+	public double getAverageBatchSize() {
+		long batches = getNumBatches();
+		return batches == 0 ? 0 : (double) getNumOrders() / batches;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Batches = " + getNumBatches() + ", Orders = " + getNumOrders() + ", Average batch size = "
+				+ getAverageBatchSize();
+	}
+
+	/**
+	 * A pending order of copies of books.
+	 */
+	private static final class Order extends Combiner.Request {
+
+		/** The copies to buy. */
+		private final Set<BookCopy> bookCopies;
+
+		/**
+		 * Instantiates a new {@link Order}.
+		 *
+		 * @param bookCopies
+		 *            the copies to buy
+		 */
+		private Order(Set<BookCopy> bookCopies) {
+			this.bookCopies = bookCopies;
+		}
+	}
+}
@@ -19,6 +19,41 @@ public final class BookStoreConstants {
 	/** The Constant BOOK_NUM_PARAM. */
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 
+	/**
+	 * The Constant CATALOGUE_VERSION_HEADER names the HTTP response header
+	 * carrying the version of the catalogue, which the server increments
+	 * whenever books are removed.
+	 */
+	public static final String CATALOGUE_VERSION_HEADER = "X-Catalogue-Version";
+
+	/**
+	 * The Constant CATALOGUE_EPOCH_HEADER names the HTTP response header
+	 * carrying the epoch of the catalogue version, which the server picks when
+	 * it starts, since the version starts over with every start.
+	 */
+	public static final String CATALOGUE_EPOCH_HEADER = "X-Catalogue-Epoch";
+
+	/** The Constant AFTER_ISBN_PARAM. */
+	public static final String AFTER_ISBN_PARAM = "after_isbn";
+
+	/** The Constant QUERY_PARAM. */
+	public static final String QUERY_PARAM = "query";
+
+	/** The Constant MIN_PARAM. */
+	public static final String MIN_PARAM = "min";
+
+	/** The Constant MAX_PARAM. */
+	public static final String MAX_PARAM = "max";
+
+	/** The Constant TTL_PARAM. */
+	public static final String TTL_PARAM = "ttl_millis";
+
+	/** The Constant BUY_PARAM. */
+	public static final String BUY_PARAM = "buy";
+
+	/** The Constant TIMEOUT_PARAM. */
+	public static final String TIMEOUT_PARAM = "timeout_millis";
+
 	/** The Constant XMLSTRINGLEN_PARAM. */
 	public static final String XMLSTRINGLEN_PARAM = "len";
 
@@ -48,6 +83,9 @@ public final class BookStoreConstants {
 	/** The Constant NUM_COPIES. */
 	public static final String NUM_COPIES = "The Number of copies: ";
 
+	/** The Constant RESERVATION. */
+	public static final String RESERVATION = "The reservation: ";
+
 	/** The Constant RATING. */
 	public static final String RATING = "The rating: ";
 
@@ -60,6 +98,33 @@ public final class BookStoreConstants {
 	/** The Constant PROPERTY_KEY_SINGLE_LOCK. */
 	public static final String PROPERTY_KEY_SINGLE_LOCK = "singlelock";
 
+	/** The Constant PROPERTY_KEY_PARTITIONS. */
+	public static final String PROPERTY_KEY_PARTITIONS = "partitions";
+
+	/** The Constant PROPERTY_KEY_SHARDS. */
+	public static final String PROPERTY_KEY_SHARDS = "shards";
+
+	/** The Constant PROPERTY_KEY_RING_BUFFER. */
+	public static final String PROPERTY_KEY_RING_BUFFER = "ringbuffer";
+
+	/** The Constant PROPERTY_KEY_DETERMINISTIC. */
+	public static final String PROPERTY_KEY_DETERMINISTIC = "deterministic";
+
+	/** The Constant PROPERTY_KEY_ESCROW. */
+	public static final String PROPERTY_KEY_ESCROW = "escrow";
+
+	/** The Constant PROPERTY_KEY_RATING_STALENESS. */
+	public static final String PROPERTY_KEY_RATING_STALENESS = "ratingstaleness";
+
+	/** The Constant PROPERTY_KEY_ADAPTIVE_LOCKING. */
+	public static final String PROPERTY_KEY_ADAPTIVE_LOCKING = "adaptivelocking";
+
+	/** The Constant PROPERTY_KEY_BUY_BATCH_WINDOW. */
+	public static final String PROPERTY_KEY_BUY_BATCH_WINDOW = "buybatchwindow";
+
+	/** The Constant PROPERTY_KEY_ASYNC_LOCKS. */
+	public static final String PROPERTY_KEY_ASYNC_LOCKS = "asynclocks";
+
 	/** The Constant PROPERTY_KEY_SERVER_PORT. */
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
 
@@ -12,6 +12,9 @@ public enum BookStoreMessageTag {
 	/** The tag for the list books message. */
 	LISTBOOKS,
 
+	/** The tag for the list books message streamed page by page. */
+	STREAMBOOKS,
+
 	/** The tag for the add copies message. */
 	ADDCOPIES,
 
@@ -43,5 +46,29 @@ public enum BookStoreMessageTag {
 	GETBOOKSINDEMAND,
 
 	/** Tag for rating books*/
-	RATEBOOKS;
+	RATEBOOKS,
+
+	/** The tag for the search books message. */
+	SEARCHBOOKS,
+
+	/** The tag for the autocomplete books message. */
+	AUTOCOMPLETEBOOKS,
+
+	/** The tag for the get books by price message. */
+	GETBOOKSBYPRICE,
+
+	/** The tag for the get books by number of copies message. */
+	GETBOOKSBYNUMCOPIES,
+
+	/** The tag for the reserve books message. */
+	RESERVEBOOKS,
+
+	/** The tag for the commit reservation message. */
+	COMMITRESERVATION,
+
+	/** The tag for the release reservation message. */
+	RELEASERESERVATION,
+
+	/** The tag for the await books message. */
+	AWAITBOOKS;
 }
@@ -17,6 +17,18 @@ public class BookStoreResponse {
 	/** The list. */
 	private List<?> list;
 
+	/**
+	 * The catalogue version reported by the server, set by the client from the
+	 * response headers.
+	 */
+	private long catalogueVersion;
+
+	/**
+	 * The epoch of the catalogue version reported by the server, set by the
+	 * client from the response headers.
+	 */
+	private long catalogueEpoch;
+
 	/**
 	 * Instantiates a new {@link BookStoreResponse}.
 	 *
@@ -75,4 +87,42 @@ public class BookStoreResponse {
 	public void setException(BookStoreException exception) {
 		this.exception = exception;
 	}
+
+	/**
+	 * Gets the catalogue version reported by the server.
+	 *
+	 * @return the catalogue version
+	 */
+	public long getCatalogueVersion() {
+		return catalogueVersion;
+	}
+
+	/**
+	 * Sets the catalogue version reported by the server.
+	 *
+	 * @param catalogueVersion
+	 *            the new catalogue version
+	 */
+	public void setCatalogueVersion(long catalogueVersion) {
+		this.catalogueVersion = catalogueVersion;
+	}
+
+	/**
+	 * Gets the epoch of the catalogue version reported by the server.
+	 *
+	 * @return the catalogue epoch
+	 */
+	public long getCatalogueEpoch() {
+		return catalogueEpoch;
+	}
+
+	/**
+	 * Sets the epoch of the catalogue version reported by the server.
+	 *
+	 * @param catalogueEpoch
+	 *            the new catalogue epoch
+	 */
+	public void setCatalogueEpoch(long catalogueEpoch) {
+		this.catalogueEpoch = catalogueEpoch;
+	}
 }
@@ -1,14 +1,20 @@
 package com.acertainbookstore.utils;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
 import org.eclipse.jetty.http.HttpMethod;
 
 import com.acertainbookstore.client.BookStoreClientConstants;
@@ -106,6 +112,27 @@ public final class BookStoreUtility {
 		return returnValue;
 	}
 
+	/**
+	 * Converts a string to a float.
+	 *
+	 * @param str
+	 *            the string
+	 * @return the float
+	 * @throws BookStoreException
+	 *             if the string is not a float
+	 */
+	public static float convertStringToFloat(String str) throws BookStoreException {
+		float returnValue = 0;
+
+		try {
+			returnValue = Float.parseFloat(str);
+		} catch (Exception ex) {
+			throw new BookStoreException(ex);
+		}
+
+		return returnValue;
+	}
+
 	/**
 	 * Converts a string to an integer if possible else it returns the signal
 	 * value for failure passed as parameter.
@@ -205,6 +232,21 @@ public final class BookStoreUtility {
 			throw new BookStoreException("Deserialization error", ex);
 		}
 
+		String catalogueEpoch = response.getHeaders().get(BookStoreConstants.CATALOGUE_EPOCH_HEADER);
+		String catalogueVersion = response.getHeaders().get(BookStoreConstants.CATALOGUE_VERSION_HEADER);
+
+		try {
+			if (catalogueEpoch != null) {
+				bookStoreResponse.setCatalogueEpoch(Long.parseLong(catalogueEpoch));
+			}
+
+			if (catalogueVersion != null) {
+				bookStoreResponse.setCatalogueVersion(Long.parseLong(catalogueVersion));
+			}
+		} catch (NumberFormatException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_RESPONSE_DECODING, ex);
+		}
+
 		BookStoreException exception = bookStoreResponse.getException();
 
 		if (exception != null) {
@@ -213,4 +255,62 @@ public final class BookStoreUtility {
 
 		return bookStoreResponse;
 	}
+
+	/**
+	 * Performs a HTTP GET exchange whose response is a stream of serialized
+	 * {@link BookStoreResponse} frames, each preceded by its length. Every
+	 * frame is handed to the consumer as soon as it has been read, so the
+	 * whole response is never buffered.
+	 *
+	 * @param client
+	 *            the client
+	 * @param urlString
+	 *            the URL string
+	 * @param serializer
+	 *            the serializer
+	 * @param consumer
+	 *            the consumer of the frames
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static void performStreamingHttpExchange(HttpClient client, String urlString,
+			BookStoreSerializer serializer, Consumer<BookStoreResponse> consumer) throws BookStoreException {
+		InputStreamResponseListener listener = new InputStreamResponseListener();
+		client.newRequest(urlString).method(HttpMethod.GET).send(listener);
+
+		try {
+			listener.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+
+		try (InputStream inStream = listener.getInputStream(); DataInputStream in = new DataInputStream(inStream)) {
+			while (true) {
+				int length;
+
+				try {
+					length = in.readInt();
+				} catch (EOFException ex) {
+					// The server closed the stream after the last frame.
+					break;
+				}
+
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				BookStoreResponse bookStoreResponse = (BookStoreResponse) serializer.deserialize(frame);
+
+				if (bookStoreResponse.getException() != null) {
+					throw bookStoreResponse.getException();
+				}
+
+				consumer.accept(bookStoreResponse);
+			}
+		} catch (IOException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_RESPONSE_DECODING, ex);
+		}
+	}
 }
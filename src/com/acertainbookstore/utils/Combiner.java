@@ -0,0 +1,228 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link Combiner} applies the requests of concurrent threads in batches, so
+ * that a whole batch of them is applied in one critical section instead of
+ * one critical section per request.
+ *
+ * A thread adds its request to the pending requests and tries to become the
+ * combiner. The combiner takes the pending requests in the order they were
+ * added, applies them with {@link Applier#apply(List)}, and then wakes their
+ * threads. Threads which do not become the combiner wait until a combiner
+ * applied their request. A combiner which leaves requests pending wakes the
+ * thread of the oldest one, which then tries to become the combiner itself,
+ * so a thread only ever applies the batch it found. Requests arriving while a
+ * batch is applied form the next batch, so batches grow with the load by
+ * themselves. Under load, i.e. when the last batch had more than one request,
+ * the combiner can additionally wait for a window before taking the requests,
+ * trading latency for larger batches.
+ *
+ * @param <T>
+ *            the type of the requests
+ */
+public class Combiner<T extends Combiner.Request> {
+
+	/** The maximum number of requests applied in one batch. */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	/** The number of times a thread yields before waiting for a combiner. */
+	private static final int MAX_YIELDS = 8;
+
+	/** The requests not taken by a combiner yet, in the order they were made. */
+	private final ConcurrentLinkedQueue<T> pending = new ConcurrentLinkedQueue<>();
+
+	/** The lock held by the combiner. */
+	private final ReentrantLock combinerLock = new ReentrantLock();
+
+	/** The code applying the batches. */
+	private final Applier<T> applier;
+
+	/** The time the combiner waits for more requests under load, in nanoseconds. */
+	private final long windowNanos;
+
+	/** The size of the last batch. Only used by the combiner. */
+	private int lastBatchSize = 0;
+
+	/**
+	 * {@link Applier} applies a batch of requests.
+	 *
+	 * @param <T>
+	 *            the type of the requests
+	 */
+	@FunctionalInterface
+	public interface Applier<T> {
+
+		/**
+		 * Applies the requests in their order, setting the outcome of each,
+		 * and makes their effects visible before returning. A runtime
+		 * exception fails all requests of the batch.
+		 *
+		 * @param batch
+		 *            the requests, in the order they were made
+		 */
+		void apply(List<T> batch);
+	}
+
+	/**
+	 * Instantiates a new {@link Combiner} which applies the pending requests
+	 * right away.
+	 *
+	 * @param applier
+	 *            the code applying the batches
+	 */
+	public Combiner(Applier<T> applier) {
+		this(applier, 0);
+	}
+
+	/**
+	 * Instantiates a new {@link Combiner}.
+	 *
+	 * @param applier
+	 *            the code applying the batches
+	 * @param windowMicros
+	 *            the time the combiner waits for more requests under load, in
+	 *            microseconds, or 0 not to wait
+	 */
+	public Combiner(Applier<T> applier, long windowMicros) {
+		if (windowMicros < 0) {
+			throw new IllegalArgumentException("windowMicros = " + windowMicros + ", but it must be non-negative");
+		}
+
+		this.applier = applier;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+	}
+
+	/**
+	 * Applies a request, together with the requests made at the same time.
+	 *
+	 * @param request
+	 *            the request, created by the calling thread
+	 * @throws BookStoreException
+	 *             if the request failed
+	 */
+	public void apply(T request) throws BookStoreException {
+		pending.offer(request);
+		await(request);
+	}
+
+	/**
+	 * Waits until a combiner, possibly the calling thread, applied a pending
+	 * request.
+	 *
+	 * @param request
+	 *            the request
+	 * @throws BookStoreException
+	 *             if the request failed
+	 */
+	private void await(Request request) throws BookStoreException {
+		for (int attempt = 0; !request.done; attempt++) {
+			if (combinerLock.tryLock()) {
+				combine();
+			} else if (attempt < MAX_YIELDS) {
+				// A batch is applied quickly, so let the combiner finish first.
+				Thread.yield();
+			} else {
+				LockSupport.park(this);
+			}
+		}
+
+		if (request.failure != null) {
+			throw request.failure;
+		}
+	}
+
+	/**
+	 * Checks if no request is pending and no thread is the combiner.
+	 *
+	 * @return true, if the combiner is idle
+	 */
+	public boolean isIdle() {
+		return pending.isEmpty() && !combinerLock.isLocked();
+	}
+
+	/**
+	 * Applies the pending requests as the combiner and releases the combiner
+	 * lock.
+	 */
+	private void combine() {
+		List<T> batch = new ArrayList<>();
+
+		try {
+			if (windowNanos > 0 && lastBatchSize > 1) {
+				LockSupport.parkNanos(this, windowNanos);
+			}
+
+			for (T request = pending.poll(); request != null; request = pending.poll()) {
+				batch.add(request);
+
+				if (batch.size() == MAX_BATCH_SIZE) {
+					break;
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				lastBatchSize = batch.size();
+				applier.apply(batch);
+			}
+		} catch (RuntimeException ex) {
+			for (T request : batch) {
+				request.setFailure(new BookStoreException(ex));
+			}
+		} finally {
+			combinerLock.unlock();
+
+			for (Request request : batch) {
+				request.finish();
+			}
+
+			// Requests added while the lock was held would otherwise wait for
+			// the next thread making a request.
+			Request next = pending.peek();
+
+			if (next != null) {
+				LockSupport.unpark(next.thread);
+			}
+		}
+	}
+
+	/**
+	 * {@link Request} is a request waiting to be applied by a combiner. It is
+	 * created by the thread making the request.
+	 */
+	public static class Request {
+
+		/** The thread waiting for the request. */
+		private final Thread thread = Thread.currentThread();
+
+		/** The reason the request failed, or null. */
+		private BookStoreException failure = null;
+
+		/** Whether a combiner applied the request. */
+		private volatile boolean done = false;
+
+		/**
+		 * Sets the reason the request failed.
+		 *
+		 * @param failure
+		 *            the failure, or null if the request succeeded
+		 */
+		public void setFailure(BookStoreException failure) {
+			this.failure = failure;
+		}
+
+		/**
+		 * Wakes the thread once the outcome of the request is visible.
+		 */
+		private void finish() {
+			done = true;
+			LockSupport.unpark(thread);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TimerWheel} is a hashed timer wheel: timeouts are put in the bucket
+ * of the tick at which they expire, modulo the number of buckets, so that
+ * scheduling and cancelling a timeout take constant time and expiring the
+ * timeouts of a tick only visits one bucket. Timeouts further away than one
+ * turn of the wheel stay in their bucket until their deadline is reached.
+ *
+ * The wheel does not run by itself; the owner calls {@link #expire()}
+ * periodically, e.g. once per tick from a single thread, to collect the items
+ * whose timeouts expired.
+ *
+ * @param <T>
+ *            the type of the items
+ */
+public class TimerWheel<T> {
+
+	/** The duration of a tick in nanoseconds. */
+	private final long tickNanos;
+
+	/** The buckets of timeouts by tick, modulo the number of buckets. */
+	private final List<ArrayDeque<Timeout<T>>> buckets;
+
+	/** The mask of the tick giving its bucket. */
+	private final int mask;
+
+	/** The time the wheel was created, from which ticks are counted. */
+	private final long startNanos = System.nanoTime();
+
+	/** The last tick whose timeouts were expired. */
+	private long currentTick = 0;
+
+	/**
+	 * Instantiates a new timer wheel.
+	 *
+	 * @param tickMillis
+	 *            the duration of a tick in milliseconds
+	 * @param numBuckets
+	 *            the number of buckets, a power of two
+	 */
+	public TimerWheel(long tickMillis, int numBuckets) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tickMillis = " + tickMillis + ", but it must be positive");
+		}
+
+		if (numBuckets <= 0 || Integer.bitCount(numBuckets) != 1) {
+			throw new IllegalArgumentException("numBuckets = " + numBuckets + ", but it must be a power of two");
+		}
+
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.mask = numBuckets - 1;
+		this.buckets = new ArrayList<>(numBuckets);
+
+		for (int i = 0; i < numBuckets; i++) {
+			buckets.add(new ArrayDeque<>());
+		}
+	}
+
+	/**
+	 * Schedules the expiry of an item. The item expires on the first tick at
+	 * or after the delay, and never on the tick in progress.
+	 *
+	 * @param item
+	 *            the item
+	 * @param delayMillis
+	 *            the delay in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public synchronized Timeout<T> schedule(T item, long delayMillis) {
+		long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		long deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos, currentTick + 1);
+		Timeout<T> timeout = new Timeout<>(item, deadlineTick);
+		buckets.get((int) (deadlineTick & mask)).add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Expires the timeouts of the ticks elapsed since the last call.
+	 *
+	 * @return the items whose timeouts expired, in no particular order
+	 */
+	public synchronized List<T> expire() {
+		long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+		List<T> expired = new ArrayList<>();
+
+		// After more than one turn every bucket is due, so each is visited once.
+		long lastTick = Math.min(nowTick, currentTick + buckets.size());
+
+		for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+			Iterator<Timeout<T>> iterator = buckets.get((int) (tick & mask)).iterator();
+
+			while (iterator.hasNext()) {
+				Timeout<T> timeout = iterator.next();
+
+				if (timeout.cancelled) {
+					iterator.remove();
+				} else if (timeout.deadlineTick <= nowTick) {
+					iterator.remove();
+					expired.add(timeout.item);
+				}
+			}
+		}
+
+		currentTick = Math.max(currentTick, nowTick);
+		return expired;
+	}
+
+	/**
+	 * The expiry of an item scheduled on a {@link TimerWheel}.
+	 *
+	 * @param <T>
+	 *            the type of the item
+	 */
+	public static final class Timeout<T> {
+
+		/** The item. */
+		private final T item;
+
+		/** The tick at which the item expires. */
+		private final long deadlineTick;
+
+		/** Whether the timeout was cancelled. */
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Instantiates a new timeout.
+		 *
+		 * @param item
+		 *            the item
+		 * @param deadlineTick
+		 *            the tick at which the item expires
+		 */
+		private Timeout(T item, long deadlineTick) {
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * Cancels the timeout. Cancelled timeouts are dropped from the wheel
+		 * when their bucket is next visited.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}